@@ -0,0 +1,116 @@
+package com.uppaal.chiporiginal;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.uppaal.tron.Reporter;
+import com.uppaal.tron.TronException;
+
+/**
+ * Input and output channels of the network nodes, one of each per node.
+ *<p>
+ * The channels are registered with the tester by configure(), then the
+ * input channel identifiers assigned by the tester are mapped to node
+ * indices through an int-indexed table, so dispatching an input is one array
+ * lookup regardless of the number of nodes.
+ */
+public class ChannelRegistry
+{
+    private final String[] inputs;
+    private final String[] inputVars;
+    private final String[] outputs;
+    private final String[] outputVars;
+    private final int[] inputIds;
+    private final int[] outputIds;
+    private volatile int[] nodeOfInput = new int[0]; // tester id -> node
+
+    /**
+     * Creates a registry of the channels, the arrays are indexed by node.
+     * @param inputs the names of input channels.
+     * @param inputVars the names of input variables, null entries for none.
+     * @param outputs the names of output channels.
+     * @param outputVars the names of output variables, null entries for none.
+     */
+    public ChannelRegistry(String[] inputs, String[] inputVars,
+			   String[] outputs, String[] outputVars)
+    {
+	if (inputVars.length != inputs.length
+	    || outputs.length != inputs.length
+	    || outputVars.length != inputs.length)
+	    throw new IllegalArgumentException("one channel per node expected");
+	this.inputs = inputs;
+	this.inputVars = inputVars;
+	this.outputs = outputs;
+	this.outputVars = outputVars;
+	inputIds = new int[inputs.length];
+	outputIds = new int[outputs.length];
+    }
+
+    /**
+     * Creates the registry of the Chip model channels: i_ch_iN with iN_Val
+     * and o_ch_oN with rcv_ValN for nodes N = 1..nodes.
+     * @param nodes the number of network nodes.
+     */
+    public static ChannelRegistry forNodes(int nodes)
+    {
+	String[] in = new String[nodes], inVar = new String[nodes];
+	String[] out = new String[nodes], outVar = new String[nodes];
+	for (int n=0; n<nodes; ++n) {
+	    in[n] = "i_ch_i"+(n+1);
+	    inVar[n] = "i"+(n+1)+"_Val";
+	    out[n] = "o_ch_o"+(n+1);
+	    outVar[n] = "rcv_Val"+(n+1);
+	}
+	return new ChannelRegistry(in, inVar, out, outVar);
+    }
+
+    /**
+     * Declares the channels and variables to the tester and builds the
+     * dispatch table.
+     */
+    public void configure(Reporter reporter)
+	throws TronException, IOException
+    {
+	int max = -1;
+	for (int n=0; n<inputs.length; ++n) {
+	    inputIds[n] = reporter.addInput(inputs[n]);
+	    max = Math.max(max, inputIds[n]);
+	}
+	for (int n=0; n<outputs.length; ++n)
+	    outputIds[n] = reporter.addOutput(outputs[n]);
+	for (int n=0; n<inputs.length; ++n)
+	    if (inputVars[n] != null)
+		reporter.addVarToInput(inputIds[n], inputVars[n]);
+	for (int n=0; n<outputs.length; ++n)
+	    if (outputVars[n] != null)
+		reporter.addVarToOutput(outputIds[n], outputVars[n]);
+	int[] table = new int[max + 1];
+	Arrays.fill(table, -1);
+	for (int n=0; n<inputs.length; ++n) table[inputIds[n]] = n;
+	nodeOfInput = table;
+    }
+
+    /**
+     * Returns the node index of the input channel, -1 if unknown.
+     * @param chan the channel identifier assigned by the tester.
+     */
+    public int nodeOfInput(int chan)
+    {
+	int[] table = nodeOfInput;
+	return (chan >= 0 && chan < table.length) ? table[chan] : -1;
+    }
+
+    /**
+     * Returns the tester identifier of the output channel of the node.
+     */
+    public int outputOf(int node) { return outputIds[node]; }
+
+    /**
+     * Returns the number of nodes.
+     */
+    public int size() { return inputs.length; }
+
+    public String inputName(int node) { return inputs[node]; }
+
+    public String outputName(int node) { return outputs[node]; }
+}
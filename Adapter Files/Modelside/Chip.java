@@ -1,31 +1,102 @@
 package com.uppaal.chiporiginal;
 
+import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.Condition;
 
-import com.uppaal.dummy.WriteModelSimInput;
 import com.uppaal.tron.Reporter;
 import com.uppaal.tron.VirtualThread;
 import com.uppaal.tron.VirtualLock;
 import com.uppaal.tron.VirtualCondition;
 
+/**
+ * Chip stub partitioned by network node: every node has its own state
+ * machine, lock and condition run by its own thread, so the inputs of
+ * independent nodes never contend for one monitor. Outputs are reported
+ * through the ChipListener.
+ */
 public class Chip extends VirtualThread implements ChipInterface
 {
-    private enum Loc { wait, send, Idle, Done }
-    private Loc location;
+    private enum Loc { wait, send }
+
+    /**
+     * State machine of one node: an input moves it to send, and the packet
+     * is reported at its destination unless another input arrives within
+     * a second. The report is made with the node lock released, so inputs
+     * are not held up by the tester connection. With a ModelSimRunner, the
+     * queued stimulus is simulated instead and the packets the testbench
+     * received are reported.
+     */
+    private class Node extends VirtualThread
+    {
+	final int index;
+	Loc location = Loc.wait;
+	VirtualLock lock = null;
+	Condition cond = null;
+	int sourceNode = 0;
+	int destinationNode = 0;
+
+	Node(int index)
+	{
+	    super("Chip.Node"+(index+1));
+	    this.index = index;
+	}
+
+	public void run() {
+	    lock.lock();
+	    try { execute(); }
+	    catch (InterruptedException e){}
+	    System.out.println(getName()+" interrupted in "+location);
+	    lock.unlock();
+	}
+
+	protected void execute() throws InterruptedException
+	{
+	    while (started) {
+		switch (location) {
+		case wait:
+		    cond.await();
+		    break;
+		case send:
+		    if (!cond.await(1000, TimeUnit.MILLISECONDS)) {
+			int output = destinationNode - 1;
+			if (output < 0 || output >= nodes.length) output = index;
+			int source = sourceNode;
+			location = Loc.wait;
+			lock.unlock(); // inputs may arrive while reporting
+			try {
+			    if (runner != null) reportSimulated();
+			    else listener.reportOutput(output, source);
+			} finally { lock.lock(); }
+		    } // else state is already updated
+		    break;
+		}
+	    }
+	}
+    }
+
+    private final Node[] nodes;
     
     Reporter reporter = null;
+    ModelSimRunner runner = null;
 
-    Lock lock = null;
-    Condition cond = null;
-    boolean started = false;
+    volatile boolean started = false;
     ChipListener listener = null;
 
     public Chip(int mutant)
+    {
+	this(mutant, 4);
+    }
+
+    /**
+     * @param nodes the number of network nodes.
+     */
+    public Chip(int mutant, int nodes)
     {
 	super("Chip");
-	location = Loc.wait;
+	this.nodes = new Node[nodes];
+	for (int n=0; n<nodes; ++n) this.nodes[n] = new Node(n);
     }
 
 //    public void setReporter(Reporter r) 
@@ -38,6 +109,35 @@ public class Chip extends VirtualThread implements ChipInterface
 	this.listener = listener;
     }
 
+    /**
+     * Sets the runner simulating the stimulus, null to report the stub
+     * outputs.
+     */
+    public void setRunner(ModelSimRunner runner)
+    {
+	this.runner = runner;
+    }
+
+    /**
+     * Simulates the queued stimulus and reports the received packets. The
+     * testbench numbers the nodes from 0, the channels from 1.
+     */
+    private void reportSimulated()
+    {
+	ResultCache.Records received;
+	try { received = runner.simulate(); }
+	catch (IOException e) {
+	    System.err.println("Chip: simulation failed: "+e.getMessage());
+	    return;
+	}
+	PacketRecord r = new PacketRecord();
+	for (int i=0; i<received.size(); ++i) {
+	    received.get(i, r);
+	    if (r.destination >= 0 && r.destination < nodes.length)
+		listener.reportOutput(r.destination, r.source + 1);
+	}
+    }
+
     public synchronized void waitForStart() throws InterruptedException
     { 
 	while (!started) wait(); 
@@ -46,32 +146,22 @@ public class Chip extends VirtualThread implements ChipInterface
     public void run() {
 	try { execute(); }
 	catch (InterruptedException e){}
-	System.out.println("Chip interrupted in "+location);
-	reporter.disconnect();
-	lock.unlock();
+	System.out.println("Chip interrupted");
+	if (listener != null) listener.disconnect();
     }
 
     protected void execute() throws InterruptedException
     {
-	lock = new VirtualLock("DummyLock");
-	cond = lock.newCondition();
-	lock.lock();
-	// notify that dummy is ready:
-	synchronized (this) { started = true; notifyAll(); }
-
-	while (started) {
-	    switch (location) {
-	    case wait:
-		cond.await();
-		break;
-	    case Idle:
-		if (!cond.await(1000, TimeUnit.MILLISECONDS)) {
-		    listener.reportMyOutput();
-		    location = Loc.Done;
-		} // else state is already updated
-		break;
-	    }
+	for (Node node: nodes) { // clock objects are created by this thread
+	    node.lock = new VirtualLock("NodeLock"+(node.index+1));
+	    node.cond = node.lock.newCondition();
 	}
+	// notify that chip is ready:
+	synchronized (this) { started = true; notifyAll(); }
+	for (Node node: nodes) node.start();
+	deactivate(); // joining must not hold the virtual time
+	for (Node node: nodes) node.join();
+	activate();
     } 
     
 //    protected void execute() throws InterruptedException
@@ -128,91 +218,32 @@ public class Chip extends VirtualThread implements ChipInterface
 //	
 //    }
 
-    public void handleMyInput1(int sourceNode, int destinationNode) throws InterruptedException
-    {
-    	if (!started) waitForStart();
-	lock.lock();
-	switch (location) {
-	case wait:
-	    location = Loc.send;
-	    WriteModelSimInput.writeFile(sourceNode, destinationNode);
-	    cond.signalAll();
-	    break;
-	
-	case send:
-	    location = Loc.wait;
-	    WriteModelSimInput.writeFile(sourceNode, destinationNode);
-	    cond.signalAll();
-	    break;    
-	    
-	}
-	lock.unlock();
-    }
-
-    public void handleMyInput2(int sourceNode, int destinationNode) throws InterruptedException
+    public void handleInput(int channel, int sourceNode, int destinationNode) throws InterruptedException
     {
     	if (!started) waitForStart();
-	lock.lock();
-	switch (location) {
+	Node node = nodes[channel];
+	node.lock.lock();
+	node.sourceNode = sourceNode;
+	node.destinationNode = destinationNode;
+	switch (node.location) {
 	case wait:
-	    location = Loc.send;
+	    node.location = Loc.send;
 	    WriteModelSimInput.writeFile(sourceNode, destinationNode);
-	    cond.signalAll();
-	    break;
+	    node.lock.signalAllAndUnlock(node.cond);
+	    return;
 	
 	case send:
-	    location = Loc.wait;
+	    node.location = Loc.wait;
 	    WriteModelSimInput.writeFile(sourceNode, destinationNode);
-	    cond.signalAll();
-	    break;
+	    node.lock.signalAllAndUnlock(node.cond);
+	    return;
 	    
 	}
-	lock.unlock();
+	node.lock.unlock();
     }
 
-	public void handleMyInput3(int sourceNode, int destinationNode) throws InterruptedException {
-		if (!started) waitForStart();
-	    	lock.lock();
-	    	switch (location) {
-	    	case wait:
-	    	    location = Loc.send;
-	    	    WriteModelSimInput.writeFile(sourceNode, destinationNode);
-	    	    cond.signalAll();
-	    	    break;
-	    	
-	    	case send:
-	    	    location = Loc.wait;
-	    	    WriteModelSimInput.writeFile(sourceNode, destinationNode);
-	    	    cond.signalAll();
-	    	    break;
-	    	    
-	    	}
-	    	lock.unlock();
-	        }
-
-	public void handleMyInput4(int sourceNode, int destinationNode) throws InterruptedException {
-		if (!started) waitForStart();
-    	lock.lock();
-    	switch (location) {
-    	case wait:
-    	    location = Loc.send;
-    	    WriteModelSimInput.writeFile(sourceNode, destinationNode);
-    	    cond.signalAll();
-    	    break;
-    	
-    	case send:
-    	    location = Loc.wait;
-    	    WriteModelSimInput.writeFile(sourceNode, destinationNode);
-    	    cond.signalAll();
-    	    break;
-    	    
-    	}
-    	lock.unlock();
-        }
-
 	public void setReporter(Reporter r) {
-		// TODO Auto-generated method stub
-		
+		reporter = r;
 	}
 
 }
@@ -10,14 +10,22 @@ public interface ChipInterface
 
     public void join() throws InterruptedException;
 
-    // public void setChipListener(ChipListener listener);
+    public void setChipListener(ChipListener listener);
     
     public void setReporter(Reporter r);
 
-    public void handleMyInput1(int sourceNode, int destinationNode) throws InterruptedException;
-    public void handleMyInput2(int sourceNode, int destinationNode) throws InterruptedException;
-    public void handleMyInput3(int sourceNode, int destinationNode) throws InterruptedException;
-    public void handleMyInput4(int sourceNode, int destinationNode) throws InterruptedException;
+    /**
+     * Sets the runner simulating the stimulus, null for none.
+     */
+    public void setRunner(ModelSimRunner runner);
+
+    /**
+     * Handles the input of a node.
+     * @param channel the input channel index (the node index).
+     * @param sourceNode the node number sending the packet.
+     * @param destinationNode the node number the packet is sent to.
+     */
+    public void handleInput(int channel, int sourceNode, int destinationNode) throws InterruptedException;
     
     
     
@@ -4,6 +4,11 @@ import com.uppaal.tron.Reporter;
 
 public interface ChipListener
 {
-    public void reportMyOutput();
+    /**
+     * Reports the packet received at the node.
+     * @param node the node index of the output channel.
+     * @param value the value of the output variable.
+     */
+    public void reportOutput(int node, int value);
     public void disconnect();
 }
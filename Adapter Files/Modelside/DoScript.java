@@ -0,0 +1,158 @@
+package com.uppaal.chiporiginal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reading of the ModelSim .do scripts of a simulation, e.g. simulate.do.
+ *<p>
+ * The compilation (vlib and vcom commands) may be in the script itself or
+ * in the scripts it includes with do, such as compile.do; the included
+ * scripts are read relative to the directory of the script, where the
+ * simulator runs.
+ */
+public class DoScript
+{
+    /**
+     * Returns the files compiled by the vcom commands of a script and of
+     * the scripts it includes, in compilation order.
+     */
+    public static List<String> sources(File script) throws IOException
+    {
+	List<String> files = new ArrayList<String>();
+	sources(script, files, new HashSet<File>());
+	return files;
+    }
+
+    /**
+     * Tells whether a script compiles and does nothing else: vlib and vcom
+     * commands, the scripts it includes compiling only as well.
+     */
+    public static boolean compileOnly(File script) throws IOException
+    {
+	List<String[]> commands = commands(script);
+	for (String[] words : commands) {
+	    if ("vlib".equals(words[0]) || "vcom".equals(words[0])) continue;
+	    if (!"do".equals(words[0]) || words.length < 2) return false;
+	    File included = include(script, words[1]);
+	    if (!included.isFile() || !compileOnly(included)) return false;
+	}
+	return !commands.isEmpty();
+    }
+
+    /**
+     * Copies a script without its compilation: the vlib and vcom commands
+     * and the includes of scripts compiling only are left out.
+     */
+    public static void withoutCompile(File script, File out)
+	throws IOException
+    {
+	copy(script, out, true);
+    }
+
+    /**
+     * Copies a script without its compilation and its run commands: the
+     * elaboration of the design and the commands setting up the run (wave,
+     * vcd), to be run batch by batch.
+     */
+    public static void elaboration(File script, File out) throws IOException
+    {
+	copy(script, out, false);
+    }
+
+    private static void copy(File script, File out, boolean run)
+	throws IOException
+    {
+	List<String> lines = new ArrayList<String>();
+	BufferedReader in = new BufferedReader(new FileReader(script));
+	try {
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		String[] words = line.trim().split("\\s+");
+		if ("vlib".equals(words[0]) || "vcom".equals(words[0])
+		    || (!run && "run".equals(words[0])))
+		    continue;
+		if ("do".equals(words[0]) && words.length > 1) {
+		    File included = include(script, words[1]);
+		    if (included.isFile() && compileOnly(included)) continue;
+		}
+		lines.add(line);
+	    }
+	} finally {
+	    in.close();
+	}
+	PrintWriter w = new PrintWriter(new FileWriter(out));
+	try {
+	    w.println("# generated from "+script.getName()
+		      +" without the compilation"+(run ? "" : " and runs"));
+	    for (String l : lines) w.println(l);
+	} finally {
+	    w.close();
+	}
+    }
+
+    private static void sources(File script, List<String> files,
+				Set<File> read)
+	throws IOException
+    {
+	if (!read.add(script.getAbsoluteFile())) return; // included twice
+	for (String[] words : commands(script)) {
+	    if ("do".equals(words[0]) && words.length > 1) {
+		File included = include(script, words[1]);
+		if (included.isFile()) sources(included, files, read);
+		continue;
+	    }
+	    if (!"vcom".equals(words[0])) continue;
+	    for (int i=1; i<words.length; ++i) {
+		String w = words[i];
+		if (w.startsWith("-")) {
+		    if ("-work".equals(w)) ++i; // and the library
+		    continue; // an option
+		}
+		files.add(unquote(w));
+	    }
+	}
+    }
+
+    /**
+     * Returns the words of the commands of a script, comments and blank
+     * lines left out.
+     */
+    private static List<String[]> commands(File script) throws IOException
+    {
+	List<String[]> commands = new ArrayList<String[]>();
+	BufferedReader in = new BufferedReader(new FileReader(script));
+	try {
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		line = line.trim();
+		if (line.length() == 0 || line.startsWith("#")) continue;
+		commands.add(line.split("\\s+"));
+	    }
+	} finally {
+	    in.close();
+	}
+	return commands;
+    }
+
+    private static File include(File script, String name)
+    {
+	return new File(script.getAbsoluteFile().getParentFile(),
+			unquote(name));
+    }
+
+    private static String unquote(String w)
+    {
+	if (w.length() > 1 && w.startsWith("\"") && w.endsWith("\""))
+	    return w.substring(1, w.length() - 1);
+	return w;
+    }
+}
@@ -0,0 +1,189 @@
+package com.uppaal.chiporiginal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * Stand-in for the simulator in command line mode, to exercise
+ * SimulatorSession and the adapter without ModelSim.
+ *<p>
+ * Commands are read from the standard input one per line, and their output
+ * is printed with the "# " prefix of the ModelSim transcript. "echo" prints
+ * its arguments, "run <time> [unit]" advances the simulation time, "restart"
+ * resets it, "do <file>" executes the commands of the file and "quit" exits
+ * ("quit -sim" only unloads the design); other commands do nothing unless
+ * the script says so. The script (-s file) has
+ * lines "<command> <action> [text]", the actions of every line whose
+ * command is the first word of the input line are performed in order:
+ *<pre>
+ * print &lt;text&gt;            prints the text
+ * error &lt;text&gt;            prints "** Error: text"
+ * append &lt;file&gt; &lt;text&gt;    appends the text as a line to the file
+ * truncate &lt;file&gt;         empties the file
+ * sleep &lt;millis&gt;         waits
+ * exit &lt;status&gt;          exits
+ *</pre>
+ * In the text, $now is replaced by the simulation time in ns, $runs by the
+ * number of runs and $args by the arguments of the command.
+ *<p>
+ * As vsim, the commands of a -do file are executed before the standard
+ * input, and the output is also written to the -l log file, if any.
+ *<p>
+ * Usage: FakeSimulator [-s script] [-do file] [-l logfile]
+ */
+public class FakeSimulator
+{
+    private final ArrayList<String[]> script = new ArrayList<String[]>();
+    private long now = 0; // ns
+    private long runs = 0;
+    private Writer log = null;
+
+    public FakeSimulator(String scriptFile) throws IOException
+    {
+	if (scriptFile == null) return;
+	BufferedReader in = new BufferedReader(new FileReader(scriptFile));
+	try {
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		line = line.trim();
+		if (line.length() == 0 || line.startsWith("#")) continue;
+		String[] rule = line.split("\\s+", 3);
+		if (rule.length < 2)
+		    throw new IOException("bad script line: "+line);
+		script.add(rule);
+	    }
+	} finally {
+	    in.close();
+	}
+    }
+
+    /** The status of serve() after a quit command. */
+    public static final int QUIT = -1;
+    /** The status of serve() at the end of the input. */
+    public static final int END = -2;
+
+    /**
+     * Executes the commands until the input ends, quit or an exit action.
+     * @return the status of the exit action, QUIT or END.
+     */
+    public int serve(BufferedReader in)
+	throws IOException, InterruptedException
+    {
+	String line;
+	while ((line = in.readLine()) != null) {
+	    line = line.trim();
+	    if (line.length() == 0) continue;
+	    int space = line.indexOf(' ');
+	    String cmd = (space < 0) ? line : line.substring(0, space);
+	    String args = (space < 0) ? "" : line.substring(space + 1).trim();
+	    if ("quit".equals(cmd) && !"-sim".equals(args)) return QUIT;
+	    if ("echo".equals(cmd)) print(args);
+	    else if ("run".equals(cmd)) {
+		now += nanos(args);
+		++runs;
+	    } else if ("restart".equals(cmd)) now = 0;
+	    else if ("do".equals(cmd) && new File(args).isFile()) {
+		BufferedReader included =
+		    new BufferedReader(new FileReader(args));
+		try {
+		    int status = serve(included);
+		    if (status != END) return status;
+		} finally {
+		    included.close();
+		}
+	    }
+	    for (String[] rule : script) {
+		if (!rule[0].equals(cmd)) continue;
+		String text = (rule.length > 2) ? expand(rule[2], args) : "";
+		if ("print".equals(rule[1])) print(text);
+		else if ("error".equals(rule[1])) print("** Error: "+text);
+		else if ("append".equals(rule[1])) {
+		    String[] ft = text.split("\\s+", 2);
+		    Writer w = new FileWriter(ft[0], true);
+		    try { w.write((ft.length > 1 ? ft[1] : "")+"\n"); }
+		    finally { w.close(); }
+		} else if ("truncate".equals(rule[1]))
+		    new FileWriter(text.trim(), false).close();
+		else if ("sleep".equals(rule[1]))
+		    Thread.sleep(Long.parseLong(text.trim()));
+		else if ("exit".equals(rule[1]))
+		    return Integer.parseInt(text.trim());
+		else print("** Error: unknown script action "+rule[1]);
+	    }
+	}
+	return END;
+    }
+
+    /**
+     * Copies the output to the log file.
+     */
+    public void setLog(String logFile) throws IOException
+    {
+	log = new FileWriter(logFile);
+    }
+
+    private void print(String text) throws IOException
+    {
+	System.out.println("# "+text);
+	System.out.flush();
+	if (log != null) {
+	    log.write("# "+text+"\n");
+	    log.flush();
+	}
+    }
+
+    private String expand(String text, String args)
+    {
+	return text.replace("$now", Long.toString(now))
+	    .replace("$runs", Long.toString(runs))
+	    .replace("$args", args);
+    }
+
+    /**
+     * Converts a run length, e.g. "10000 ns" or "10 us", to nanoseconds.
+     */
+    private static long nanos(String args)
+    {
+	String[] w = args.split("\\s+");
+	if (w.length == 0 || w[0].length() == 0) return 0;
+	double v;
+	try { v = Double.parseDouble(w[0]); }
+	catch (NumberFormatException e) { return 0; } // e.g. -all
+	String unit = (w.length > 1) ? w[1] : "ns";
+	if ("ps".equals(unit)) v /= 1000;
+	else if ("us".equals(unit)) v *= 1000;
+	else if ("ms".equals(unit)) v *= 1000000;
+	else if ("sec".equals(unit)) v *= 1000000000;
+	return (long)v;
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+	String scriptFile = null, doFile = null, logFile = null;
+	for (int i=0; i+1<args.length; i+=2) {
+	    if ("-s".equals(args[i])) scriptFile = args[i+1];
+	    else if ("-do".equals(args[i])) doFile = args[i+1];
+	    else if ("-l".equals(args[i])) logFile = args[i+1];
+	}
+	FakeSimulator sim = new FakeSimulator(scriptFile);
+	if (logFile != null) sim.setLog(logFile);
+	if (doFile != null) {
+	    BufferedReader in = new BufferedReader(new FileReader(doFile));
+	    try {
+		int status = sim.serve(in);
+		if (status != END) System.exit(status == QUIT ? 0 : status);
+	    } finally {
+		in.close();
+	    }
+	}
+	int status = sim.serve(new BufferedReader
+			       (new InputStreamReader(System.in)));
+	System.exit(status < 0 ? 0 : status);
+    }
+}
@@ -0,0 +1,294 @@
+package com.uppaal.chiporiginal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Incremental compilation of the VHDL sources of a simulation script.
+ *<p>
+ * The sources are those of the vcom commands of the script (e.g.
+ * simulate.do) and of the scripts it includes (compile.do), in their
+ * compilation order. Each one is hashed, and the
+ * units it declares (entities, packages) and uses (use work.X, entity
+ * work.X, component X, package body X) give the dependencies between the
+ * files: package, then entity, then testbench. A source is recompiled if
+ * its hash differs from the one of its last successful compilation, or if
+ * a source it depends on is recompiled. The plan is written as a .do
+ * script, run by a Runner (vsim, an open SimulatorSession, or a stub),
+ * and the hashes are saved once it succeeds.
+ */
+public class IncrementalCompile
+{
+    /**
+     * Executes a compilation script.
+     */
+    public interface Runner
+    {
+	/**
+	 * @return 0 on success, else the number of errors or the status.
+	 */
+	public int run(File script) throws IOException;
+    }
+
+    private static final Pattern DECLARES = Pattern.compile
+	("^\\s*(?:entity|package)\\s+(\\w+)\\s+is\\b");
+    private static final Pattern USES = Pattern.compile
+	("\\b(?:use\\s+work\\.|entity\\s+work\\.|component\\s+|"
+	 +"package\\s+body\\s+)(\\w+)");
+
+    /**
+     * The compilation script written by build(), in the directory of the
+     * simulation script.
+     */
+    public static final String SCRIPT = "compile_incremental.do";
+
+    private final File script;
+    private final File directory;
+    private String library = "work";
+    private File state;
+
+    /**
+     * @param script the simulation script listing the sources.
+     */
+    public IncrementalCompile(File script)
+    {
+	this.script = script;
+	directory = script.getAbsoluteFile().getParentFile();
+	state = new File(directory, ".compiled");
+    }
+
+    public void setLibrary(String library) { this.library = library; }
+
+    /**
+     * Sets the file keeping the hashes of the compiled sources.
+     */
+    public void setStateFile(File state) { this.state = state; }
+
+    /**
+     * Returns the sources to recompile, in compilation order.
+     */
+    public List<String> plan() throws IOException
+    {
+	List<String> sources = DoScript.sources(script);
+	Map<String, String> hashes = hash(sources);
+	Map<String, String> compiled = new HashMap<String, String>();
+	if (new File(directory, library).isDirectory())
+	    compiled = load(); // else no library, compile all
+	// file of each unit, then files each file depends on:
+	Map<String, String> owner = new HashMap<String, String>();
+	Map<String, Set<String>> uses = new HashMap<String, Set<String>>();
+	for (String s : sources) {
+	    Set<String> units = new HashSet<String>();
+	    scan(new File(directory, s), owner, s, units);
+	    uses.put(s, units);
+	}
+	Set<String> dirty = new HashSet<String>();
+	List<String> plan = new ArrayList<String>();
+	for (String s : sources) { // compilation order: dependencies first
+	    boolean changed = !hashes.get(s).equals(compiled.get(s));
+	    for (String unit : uses.get(s)) {
+		String dep = owner.get(unit);
+		if (dep != null && !dep.equals(s) && dirty.contains(dep))
+		    changed = true;
+	    }
+	    if (changed) {
+		dirty.add(s);
+		plan.add(s);
+	    }
+	}
+	return plan;
+    }
+
+    /**
+     * Writes the compilation script of the plan.
+     */
+    public void writeScript(List<String> plan, File out) throws IOException
+    {
+	PrintWriter w = new PrintWriter(new FileWriter(out));
+	try {
+	    w.println("# generated by IncrementalCompile from "
+		      +script.getName());
+	    if (!new File(directory, library).isDirectory())
+		w.println("vlib "+library);
+	    for (String s : plan)
+		w.println("vcom -work "+library+" \""+s+"\"");
+	} finally {
+	    w.close();
+	}
+    }
+
+    /**
+     * Recompiles what changed.
+     * @return the number of sources compiled.
+     * @throws IOException if the compilation fails, the hashes are then
+     * left as they were.
+     */
+    public int build(Runner runner) throws IOException
+    {
+	List<String> plan = plan();
+	if (plan.isEmpty()) return 0;
+	File out = new File(directory, SCRIPT);
+	writeScript(plan, out);
+	int status = runner.run(out);
+	if (status != 0)
+	    throw new IOException("compilation of "+plan+" failed: "+status);
+	commit(plan);
+	return plan.size();
+    }
+
+    /**
+     * Saves the hashes of the sources of a plan once it was compiled by
+     * its script, when it is not run through build().
+     */
+    public void commit(List<String> plan) throws IOException
+    {
+	Map<String, String> compiled = load();
+	compiled.putAll(hash(plan));
+	save(compiled);
+    }
+
+    /**
+     * Returns a runner starting vsim in batch mode in the directory.
+     */
+    public static Runner vsim(final File directory)
+    {
+	return new Runner() {
+		public int run(File script) throws IOException {
+		    ProcessBuilder pb = new ProcessBuilder
+			(Arrays.asList("vsim", "-c", "-do", "do "
+				       +script.getName()+"; quit -f"));
+		    pb.directory(directory);
+		    pb.redirectErrorStream(true);
+		    Process p = pb.start();
+		    p.getOutputStream().close();
+		    BufferedReader r = new BufferedReader
+			(new InputStreamReader(p.getInputStream()));
+		    int errors = 0;
+		    String line;
+		    while ((line = r.readLine()) != null) {
+			System.out.println(line);
+			if (line.startsWith("# ** Error")) ++errors;
+		    }
+		    try {
+			int status = p.waitFor();
+			return (errors > 0) ? errors : status;
+		    } catch (InterruptedException e) {
+			p.destroyForcibly();
+			throw new IOException("interrupted while compiling");
+		    }
+		}
+	    };
+    }
+
+    /**
+     * Returns a runner executing the script in an open session.
+     */
+    public static Runner session(final SimulatorSession session)
+    {
+	return new Runner() {
+		public int run(File script) throws IOException {
+		    return session.execute("do "+script.getName());
+		}
+	    };
+    }
+
+    private static void scan(File source, Map<String, String> owner,
+			     String name, Set<String> units)
+	throws IOException
+    {
+	BufferedReader in = new BufferedReader(new FileReader(source));
+	try {
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		int comment = line.indexOf("--");
+		if (comment >= 0) line = line.substring(0, comment);
+		line = line.toLowerCase();
+		Matcher m = DECLARES.matcher(line);
+		if (m.find() && !owner.containsKey(m.group(1)))
+		    owner.put(m.group(1), name);
+		m = USES.matcher(line);
+		while (m.find()) units.add(m.group(1));
+	    }
+	} finally {
+	    in.close();
+	}
+    }
+
+    private Map<String, String> hash(List<String> sources) throws IOException
+    {
+	MessageDigest md;
+	try { md = MessageDigest.getInstance("SHA-256"); }
+	catch (NoSuchAlgorithmException e) { throw new IOException(e); }
+	Map<String, String> hashes = new LinkedHashMap<String, String>();
+	for (String s : sources) {
+	    byte[] d = md.digest(Files.readAllBytes
+				 (new File(directory, s).toPath()));
+	    StringBuilder hex = new StringBuilder();
+	    for (byte b : d)
+		hex.append(Character.forDigit((b >> 4) & 15, 16))
+		    .append(Character.forDigit(b & 15, 16));
+	    hashes.put(s, hex.toString());
+	}
+	return hashes;
+    }
+
+    private Map<String, String> load() throws IOException
+    {
+	Map<String, String> compiled = new LinkedHashMap<String, String>();
+	if (!state.exists()) return compiled;
+	BufferedReader in = new BufferedReader(new FileReader(state));
+	try {
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		int space = line.indexOf(' ');
+		if (space > 0)
+		    compiled.put(line.substring(space + 1),
+				 line.substring(0, space));
+	    }
+	} finally {
+	    in.close();
+	}
+	return compiled;
+    }
+
+    private void save(Map<String, String> compiled) throws IOException
+    {
+	PrintWriter w = new PrintWriter(new FileWriter(state));
+	try {
+	    for (Map.Entry<String, String> e : compiled.entrySet())
+		w.println(e.getValue()+" "+e.getKey());
+	} finally {
+	    w.close();
+	}
+    }
+
+    public static void main(String args[]) throws IOException
+    {
+	if (args.length < 1) {
+	    System.err.println("Usage: IncrementalCompile simulate.do");
+	    return;
+	}
+	File script = new File(args[0]);
+	IncrementalCompile compile = new IncrementalCompile(script);
+	int n = compile.build(vsim(script.getAbsoluteFile().getParentFile()));
+	System.out.println(n+" sources compiled");
+    }
+}
@@ -0,0 +1,128 @@
+package com.uppaal.chiporiginal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer queue of input events, each a
+ * channel with its own parameters, stored in preallocated int slots.
+ *<p>
+ * The producer (the Reporter thread calling Adapter.perform()) and the
+ * consumer (the input thread) never lock: each one owns its index and
+ * publishes it by an atomic write, so offering and polling allocate nothing
+ * and block nobody. A full ring rejects the event, the caller keeps
+ * it elsewhere.
+ *<p>
+ * Depth metrics (current, maximum and rejected count) are kept for tuning
+ * the capacity.
+ */
+public class InputRing
+{
+    /**
+     * Reusable holder of a polled event.
+     */
+    public static class Event
+    {
+	public int chan;
+	/** The number of valid parameters. */
+	public int count;
+	public final int[] params;
+
+	public Event(int width) { params = new int[width]; }
+    }
+
+    private final int[] slots;
+    private final int mask;
+    private final int stride;
+    private final int width;
+    private final AtomicLong head = new AtomicLong(); // next to poll
+    private final AtomicLong tail = new AtomicLong(); // next to offer
+    private long cachedHead = 0; // producer's view of head
+    private volatile int maxDepth = 0;
+    private volatile long rejected = 0;
+
+    /**
+     * Creates an empty ring.
+     * @param capacity the number of events, rounded up to a power of two.
+     * @param width the maximum number of parameters of an event.
+     */
+    public InputRing(int capacity, int width)
+    {
+	int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+	this.width = width;
+	stride = width + 2; // channel, count, parameters
+	mask = size - 1;
+	slots = new int[size * stride];
+    }
+
+    /**
+     * Appends the event, called by the producer only.
+     * @return false if the ring is full or the event has too many
+     * parameters.
+     */
+    public boolean offer(int chan, int[] params)
+    {
+	long t = tail.get();
+	if (params.length > width || t - cachedHead > mask) {
+	    cachedHead = head.get();
+	    if (params.length > width || t - cachedHead > mask) {
+		++rejected;
+		return false;
+	    }
+	}
+	int i = (int)(t & mask) * stride;
+	slots[i] = chan;
+	slots[i + 1] = params.length;
+	System.arraycopy(params, 0, slots, i + 2, params.length);
+	tail.set(t + 1); // publish, seen by a consumer about to wait
+	int depth = (int)(t + 1 - cachedHead);
+	if (depth > maxDepth) maxDepth = depth;
+	return true;
+    }
+
+    /**
+     * Removes the oldest event, called by the consumer only.
+     * @param e the holder to copy the event into.
+     * @return false if the ring is empty.
+     */
+    public boolean poll(Event e)
+    {
+	long h = head.get();
+	if (h == tail.get()) return false;
+	int i = (int)(h & mask) * stride;
+	e.chan = slots[i];
+	e.count = slots[i + 1];
+	System.arraycopy(slots, i + 2, e.params, 0, e.count);
+	head.lazySet(h + 1); // release the slot
+	return true;
+    }
+
+    /**
+     * Checks whether there are no events.
+     */
+    public boolean isEmpty() { return (head.get() == tail.get()); }
+
+    /**
+     * Returns the number of events in the ring.
+     */
+    public int depth() { return (int)(tail.get() - head.get()); }
+
+    /**
+     * Returns the largest number of events seen in the ring.
+     */
+    public int maxDepth() { return maxDepth; }
+
+    /**
+     * Returns the number of events rejected because the ring was full.
+     */
+    public long rejected() { return rejected; }
+
+    /**
+     * Returns the number of events the ring can hold.
+     */
+    public int capacity() { return mask + 1; }
+
+    /**
+     * Returns the maximum number of parameters of an event.
+     */
+    public int width() { return width; }
+}
@@ -1,8 +1,27 @@
 package com.uppaal.chiporiginal;
 
+import java.io.File;
+import java.io.IOException;
+
+import com.uppaal.tron.LocalClock;
 import com.uppaal.tron.Reporter;
 import com.uppaal.tron.VirtualThread;
 
+/**
+ * Runs the adapter of the chip model.
+ *<p>
+ * Usage: Main [-M mutant] [-C host port | -CM host port | -L] [-n nodes]
+ * [-S simulation-directory [-R cache-directory] [-P packet-file]] [-N]
+ *<pre>
+ * -M   the mutant of the chip stub
+ * -C   the remote virtual clock, -CM multiplexed, -L an in-process one
+ * -n   the number of network nodes, 4 by default
+ * -S   simulates the stimulus with ModelSim in the directory
+ * -R   caches the simulation results in the directory
+ * -P   stores the packets injected and received in the file
+ * -N   non-blocking transport to the tester
+ *</pre>
+ */
 public class Main
 {
     protected ChipInterface chip = null;
@@ -11,6 +30,13 @@ public class Main
     TestIOHandler testIOHandler = null;// receives and delivers inputs
 
     protected int mutant = 0;
+    protected int nodes = 4; // network nodes, one input and output channel each
+    protected LocalClock clock = null; // in-process virtual clock, if any
+    protected File simulation = null; // directory of simulate.do, if any
+    protected File cache = null; // directory of cached results, if any
+    protected String packets = null; // file of the packet store, if any
+    protected PacketStore store = null;
+    protected ModelSimRunner runner = null;
 
     public Main(String args[])
     {
@@ -45,6 +71,58 @@ public class Main
 				       "-C localhost 6521"); 
 		    return ;
 		}
+	    } else if ("-CM".equals(args[i])) {
+		if (i+2<args.length) {
+		    int port = Integer.parseInt(args[i+2]);
+		    if (port <= 0) {
+			System.err.println("The specified port ("+args[i+2]+
+					   ") is not in valid range.");
+			return;
+		    }
+		    VirtualThread.setRemoteClock(args[i+1], port, true);
+		    i += 3;
+		} else {
+		    System.err.println("Specify multiplexed virtual clock, like: "+
+				       "-CM localhost 6522"); 
+		    return ;
+		}
+	    } else if ("-L".equals(args[i])) {
+		clock = new LocalClock(); // no clock process
+		VirtualThread.setLocalClock(clock);
+		i++;
+	    } else if ("-n".equals(args[i])) {
+		if (i+1<args.length) nodes = Integer.parseInt(args[i+1]);
+		else {
+		    System.err.println("Specify the number of nodes.");
+		    return ;
+		}
+		i += 2 ;
+	    } else if ("-S".equals(args[i])) {
+		if (i+1<args.length) simulation = new File(args[i+1]);
+		else {
+		    System.err.println("Specify the simulation directory.");
+		    return ;
+		}
+		i += 2 ;
+	    } else if ("-R".equals(args[i])) {
+		if (i+1<args.length) cache = new File(args[i+1]);
+		else {
+		    System.err.println("Specify the cache directory, like: "+
+				       "-R cache");
+		    return ;
+		}
+		i += 2 ;
+	    } else if ("-P".equals(args[i])) {
+		if (i+1<args.length) packets = args[i+1];
+		else {
+		    System.err.println("Specify the packet file, like: "+
+				       "-P packets.bin");
+		    return ;
+		}
+		i += 2 ;
+	    } else if ("-N".equals(args[i])) {
+		Reporter.NIO = true; // non-blocking tester transport
+		i++;
 	    } else {
 		System.err.println("Uninterpreted option: "+args[i]);
 		i++;
@@ -54,14 +132,33 @@ public class Main
 
     protected void initialize()
     {
-	chip = new Chip(mutant);
+	chip = new Chip(mutant, nodes);
+	if (simulation != null) try {
+	    runner = new ModelSimRunner(simulation, nodes);
+	    chip.setRunner(runner);
+	} catch (IOException e) {
+	    System.err.println("No simulation: "+e);
+	}
+	if (runner != null && cache != null) try {
+	    runner.setCache(new ResultCache(cache, 16L << 20, 256L << 20));
+	} catch (IOException e) {
+	    System.err.println("No result cache: "+e);
+	}
+	if (runner != null && packets != null) try {
+	    store = new PacketStore(nodes, 64 * 1024, packets);
+	    runner.getScoreboard().setStore(store);
+	} catch (IOException e) {
+	    System.err.println("No packet store: "+e);
+	}
     }
 
     protected void initializeIO()
     {
-	testIOHandler = new TestIOHandler(chip);
+	testIOHandler = new TestIOHandler(chip,
+					  ChannelRegistry.forNodes(nodes));
 	reporter = new Reporter(testIOHandler, 9999);
-	chip.setReporter(reporter); //setChipListener(testIOHandler);
+	chip.setReporter(reporter);
+	chip.setChipListener(testIOHandler);
     }
 
     public void play(){
@@ -69,6 +166,25 @@ public class Main
 	System.out.println("Chip started");
 	try { chip.join(); }
 	catch (InterruptedException e) {}
+	if (runner != null) {
+	    Scoreboard board = runner.getScoreboard();
+	    System.out.println("Packets injected: "+board.getInjected()
+			       +", matched: "+board.getMatched()
+			       +", lost: "+board.getLost()
+			       +", unexpected: "+board.getUnexpected());
+	    try { runner.close(); }
+	    catch (IOException e) { System.err.println(e); }
+	}
+	if (store != null) {
+	    System.out.println("Packets stored: "+store.size()+" in "+packets);
+	    try { store.close(); }
+	    catch (IOException e) { System.err.println(e); }
+	}
+	if (clock != null)
+	    System.out.println("Virtual time skipped: "
+			       +clock.getSkippedMicros()/1000+" ms in "
+			       +clock.getJumps()+" jumps, host time spent: "
+			       +clock.getSpentNanos()/1000000+" ms");
     }
 
     public static void main(String args[])
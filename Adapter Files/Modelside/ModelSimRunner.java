@@ -0,0 +1,240 @@
+package com.uppaal.chiporiginal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the simulation of the stimulus queued by WriteModelSimInput and
+ * returns the packets the testbench reports.
+ *<p>
+ * The simulator is kept open in a SimulatorSession started in the
+ * simulation directory (e.g. tmp/simul_temp). Each simulate() first commits
+ * the buffered stimulus and the testgen_N.txt files of the batch, so the
+ * testbench never reads a stale file. The design is compiled and
+ * elaborated once, by the simulation script without its run commands, as
+ * the session is opened; each batch is then a restart and a run as long as
+ * the batch needs, accounted by a RunLength set on the shared
+ * StimulusWriter and taken from it with the records of the batch. The
+ * sources changed since are recompiled (IncrementalCompile) and the design
+ * elaborated again before the next run. The lines the testbench appended to
+ * its output file since the previous run are parsed after each run.
+ *<p>
+ * The packets of the batch and those received are matched by a Scoreboard;
+ * the packets of the batch not received by the end of its run are declared
+ * lost, those queued meanwhile are left to the next batch. The simulation
+ * of each batch starts at time 0, the packets being sent at the times the
+ * RunLength accounts; the lines of TB_Package carry no time, their packets
+ * are taken as received at the end of the run.
+ *<p>
+ * With a ResultCache, the simulator is only run for stimulus, scripts and
+ * sources not simulated before; the cached packets are returned otherwise.
+ */
+public class ModelSimRunner
+{
+    private final File directory;
+    private final int nodes;
+    private final SimulatorSession session;
+    private final Scoreboard scoreboard;
+    private final RunLength runLength;
+    private ResultCache cache = null;
+    private static final String SETUP = "simulate_setup.do"; // generated
+    private boolean elaborated = false;
+
+    private String script = "simulate.do";
+    private String output = "outputfile.txt";
+    private long position = 0; // of the first unread output byte
+
+    /**
+     * Creates a runner of ModelSim in the simulation directory.
+     * @param nodes the number of network nodes.
+     */
+    public ModelSimRunner(File directory, int nodes) throws IOException
+    {
+	this(directory, nodes, SimulatorSession.modelSim(directory));
+    }
+
+    /**
+     * @param session the simulator, opened by the first simulate().
+     */
+    public ModelSimRunner(File directory, int nodes, SimulatorSession session)
+	throws IOException
+    {
+	this.directory = directory;
+	this.nodes = nodes;
+	this.session = session;
+	scoreboard = new Scoreboard(nodes * nodes
+				    * PacketStatistics.ID_MODULUS);
+	runLength = new RunLength(nodes);
+	runLength.setFirstNode(1); // as in the stimulus records
+	StimulusWriter writer = StimulusWriter.getShared();
+	writer.setRunLength(runLength);
+	writer.setTestgen(directory, nodes, 1);
+    }
+
+    public Scoreboard getScoreboard() { return scoreboard; }
+
+    /**
+     * Returns the accounting of the packets queued, to set the timing of
+     * the testbench; each batch runs for a snapshot of it.
+     */
+    public RunLength getRunLength() { return runLength; }
+
+    /**
+     * Sets the cache of the simulation results, null for none.
+     */
+    public synchronized void setCache(ResultCache cache)
+    {
+	this.cache = cache;
+    }
+
+    /**
+     * Sets the simulation script, simulate.do by default.
+     */
+    public void setScript(String script) { this.script = script; }
+
+    /**
+     * Sets the file the testbench writes the received packets to,
+     * outputfile.txt by default.
+     */
+    public void setOutputFile(String output) { this.output = output; }
+
+    /**
+     * Simulates the stimulus records queued since the previous call.
+     * @return the packets received, none if nothing was queued; read-only
+     * if cached.
+     */
+    public synchronized ResultCache.Records simulate() throws IOException
+    {
+	// the barrier before the testbench reads
+	StimulusWriter.Batch batch = StimulusWriter.getShared().endBatch();
+	if (batch.size() == 0) return new ResultCache.Records();
+	final RunLength length = batch.getRunLength();
+	ResultCache.Records received;
+	if (cache == null) received = run(length);
+	else received = cache.lookup(key(length),
+				     new ResultCache.Simulation() {
+		public ResultCache.Records simulate() throws IOException {
+		    return run(length);
+		}
+	    });
+	int[] sent = new int[nodes]; // per source
+	for (int i=0; i<batch.size(); ++i) {
+	    int s = batch.getSource(i);
+	    scoreboard.inject(s, batch.getDestination(i), batch.getId(i),
+			      length.sendNanos(sent[s]++) * 1000000L);
+	}
+	PacketRecord r = new PacketRecord();
+	for (int i=0; i<received.size(); ++i) {
+	    received.get(i, r);
+	    scoreboard.receive(r, r.node);
+	}
+	scoreboard.finish(); // only the batch is outstanding
+	return received;
+    }
+
+    /**
+     * Quits the simulator.
+     */
+    public synchronized void close() throws IOException
+    {
+	session.close();
+    }
+
+    /**
+     * Runs the simulation script for the run length of the batch.
+     * @return the packets the testbench reported.
+     */
+    private ResultCache.Records run(RunLength length) throws IOException
+    {
+	if (!session.isRunning()) elaborated = false;
+	File s = new File(directory, script);
+	IncrementalCompile compile = new IncrementalCompile(s);
+	List<String> plan = compile.plan();
+	List<String> setup = new ArrayList<String>();
+	if (!plan.isEmpty()) {
+	    compile.writeScript(plan, new File(directory,
+					       IncrementalCompile.SCRIPT));
+	    setup.add("do "+IncrementalCompile.SCRIPT);
+	}
+	if (!plan.isEmpty() || !elaborated) {
+	    DoScript.elaboration(s, new File(directory, SETUP));
+	    setup.add("do "+SETUP);
+	}
+	if (!setup.isEmpty()) {
+	    elaborated = false;
+	    if (!session.isRunning()) session.open(setup);
+	    else {
+		setup.add(0, "quit -sim"); // unload the design
+		int errors = session.execute(setup);
+		if (errors > 0)
+		    throw new IOException(script+" setup reported "+errors
+					  +" errors");
+	    }
+	    if (!plan.isEmpty()) compile.commit(plan);
+	    elaborated = true;
+	}
+	int errors = session.run(length.nanos(), true);
+	if (errors > 0)
+	    throw new IOException("the run reported "+errors+" errors");
+	ResultCache.Records received = new ResultCache.Records();
+	readOutput(received, length.nanos() * 1000000L);
+	return received;
+    }
+
+    /**
+     * Returns the cache key of the batch: its testgen files as committed,
+     * the script with its sources and the run length.
+     */
+    private String key(RunLength length) throws IOException
+    {
+	List<byte[]> stimulus = new ArrayList<byte[]>(nodes);
+	for (int n=0; n<nodes; ++n)
+	    stimulus.add(Files.readAllBytes(StimulusWriter.testgenFile
+					    (directory, n).toPath()));
+	return ResultCache.key(stimulus, new File(directory, script),
+			       length.nanos());
+    }
+
+    /**
+     * Parses the complete lines appended to the output file. The file is
+     * read rather than mapped, so the testbench can still rewrite it.
+     * @param endTime the time of the lines without one, in femtoseconds.
+     */
+    private void readOutput(ResultCache.Records received, long endTime)
+	throws IOException
+    {
+	File f = new File(directory, output);
+	if (!f.exists()) return;
+	FileChannel channel = FileChannel.open(f.toPath(),
+					       StandardOpenOption.READ);
+	try {
+	    long size = channel.size();
+	    if (size < position) position = 0; // rewritten
+	    if (size == position) return;
+	    ByteBuffer b = ByteBuffer.allocate((int)(size - position));
+	    while (b.hasRemaining()
+		   && channel.read(b, position + b.position()) > 0);
+	    int end = b.position();
+	    int start = 0;
+	    PacketRecord r = new PacketRecord();
+	    while (start < end) {
+		int eol = PacketLineParser.lineEnd(b, start, end);
+		if (eol == end) break; // incomplete, for the next run
+		if (PacketLineParser.parse(b, start, eol, r)) {
+		    if (r.time < 0) r.time = endTime;
+		    received.add(r);
+		}
+		start = eol + 1;
+	    }
+	    position += start;
+	} finally {
+	    channel.close();
+	}
+    }
+}
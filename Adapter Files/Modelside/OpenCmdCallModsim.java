@@ -1,26 +1,71 @@
 package com.uppaal.chiporiginal;
 
-public class OpenCommandToCallModelSim {
-	
-	public void testRun(){
-	 try
-     { 
-      // We are running "dir" and "ping" command on cmd
-     Runtime.getRuntime().exec("cmd /c start cmd.exe /K \"dir && ping localhost\"");
-    //. Process p = Runtime.getRuntime().exec(new String[]{"Konsole --workdir /home/apneet/git/Testing_with_Tron/tmp/simul_temp -e'/bin/tcsh', ModSimCallFile.tcl"});
-   //  System.out.println(p);	
-     }
-     catch (Exception e)
-     {
-         System.out.println("HEY Buddy ! U r Doing Something Wrong ");
-         e.printStackTrace();
-     }
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs simulate.do once in batch mode, through a SimulatorPool of one
+ * worker, the simulator output streamed to the console.
+ *<p>
+ * The worker directory is created next to the simulation directory, so the
+ * sources the scripts reach through relative paths (../../RTL) are found
+ * from it; the files of the simulation directory are copied into it.
+ *<p>
+ * Usage: OpenCmdCallModsim [simulation-directory] [timeout-seconds]
+ */
+public class OpenCmdCallModsim {
+
+	private final File simulation;
+	private final long timeoutMillis;
+
+	public OpenCmdCallModsim(File simulation, long timeoutMillis) {
+		this.simulation = simulation.getAbsoluteFile();
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Runs the simulation and waits for its end.
+	 * @return the outcome of the run.
+	 */
+	public SimulatorPool.Result testRun()
+		throws IOException, InterruptedException {
+		SimulatorPool pool = SimulatorPool.modelSim
+			(simulation.getParentFile(), 1, timeoutMillis);
+		SimulatorPool.Job job = new SimulatorPool.Job(simulation.getName());
+		File[] files = simulation.listFiles();
+		if (files == null)
+			throw new IOException("no simulation directory "+simulation);
+		for (File f : files)
+			if (f.isFile()) job.addInput(f.getName(), f);
+		job.setListener(new SimulatorPool.Listener() {
+			public void stdout(SimulatorPool.Job job, String line) {
+				System.out.println(line);
+			}
+
+			public void transcript(SimulatorPool.Job job, String line) {
+				// a copy of the standard output
+			}
+
+			public void finished(SimulatorPool.Job job,
+					     SimulatorPool.Result result) {}
+		});
+		try {
+			return pool.submit(job).get();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
 	}
-	public static void main (String args[]){
-		
-		OpenCommandToCallModelSim test = new OpenCommandToCallModelSim();
-		test.testRun();
+
+	public static void main (String args[]) throws Exception {
+		File dir = new File(args.length > 0 ? args[0] : ".");
+		long timeout = (args.length > 1)
+			? Long.parseLong(args[1]) * 1000 : 600000;
+		SimulatorPool.Result result =
+			new OpenCmdCallModsim(dir, timeout).testRun();
+		System.out.println(result);
+		System.exit(result.status == 0 ? 0 : 1);
 	}
-	
-	
 }
@@ -0,0 +1,203 @@
+package com.uppaal.chiporiginal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Offline analysis of large simulator outputs (outputfile.txt, transcript).
+ *<p>
+ * The file is split into ranges which are parsed in parallel by fork/join
+ * tasks, each one mapping its own range into memory and handing the lines to
+ * PacketLineParser. A task owns the lines starting in its range, so the
+ * ranges need not fall on line boundaries. The per-task PacketStatistics
+ * are merged in file order.
+ *<p>
+ * The records can also be loaded into a PacketStore, in file order, for
+ * the analyses needing the packets themselves: with -s, the store is kept
+ * in the given file and the reception window of each pair is listed from
+ * its index.
+ *<p>
+ * Usage: OutputAnalysis [-n nodes] [-s store] file...
+ */
+public class OutputAnalysis
+{
+    private static final int SPLIT = 8 * 1024 * 1024; // bytes per task
+    private static final int TAIL = 64 * 1024; // longest line accepted
+
+    /**
+     * Analyses the file with the common fork/join pool.
+     * @param nodes the number of network nodes.
+     */
+    public static PacketStatistics analyze(String path, int nodes)
+	throws IOException
+    {
+	return analyze(path, nodes, ForkJoinPool.commonPool());
+    }
+
+    public static PacketStatistics analyze(String path, int nodes,
+					   ForkJoinPool pool)
+	throws IOException
+    {
+	FileChannel channel = FileChannel.open(Paths.get(path),
+					       StandardOpenOption.READ);
+	try {
+	    return pool.invoke(new Range(channel, nodes, 0, channel.size()));
+	} catch (UncheckedIOException e) {
+	    throw e.getCause();
+	} finally {
+	    channel.close();
+	}
+    }
+
+    /**
+     * Appends the packets of the file to the store, as received ones.
+     * @return the number of packets appended.
+     */
+    public static long load(String path, PacketStore store) throws IOException
+    {
+	FileChannel channel = FileChannel.open(Paths.get(path),
+					       StandardOpenOption.READ);
+	try {
+	    long size = channel.size();
+	    long count = 0;
+	    long from = 0;
+	    PacketRecord r = new PacketRecord();
+	    while (from < size) { // a window at a time, on line boundaries
+		long length = Math.min(size - from, SPLIT + TAIL);
+		MappedByteBuffer map =
+		    channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+		int limit = (int)length;
+		int last = (from + length == size) ? limit : SPLIT;
+		int p = 0;
+		while (p < last) {
+		    int end = PacketLineParser.lineEnd(map, p, limit);
+		    if (end == limit && from + length < size)
+			break; // longer than TAIL, skipped by the next window
+		    if (PacketLineParser.parse(map, p, end, r)) {
+			store.append(r, PacketStore.RECEIVED);
+			++count;
+		    }
+		    p = end + 1;
+		}
+		from += Math.max(p, 1);
+	    }
+	    return count;
+	} finally {
+	    channel.close();
+	}
+    }
+
+    private static class Range extends RecursiveTask<PacketStatistics>
+    {
+	private static final long serialVersionUID = 1L;
+	private final FileChannel channel;
+	private final int nodes;
+	private final long from;
+	private final long to;
+
+	Range(FileChannel channel, int nodes, long from, long to)
+	{
+	    this.channel = channel;
+	    this.nodes = nodes;
+	    this.from = from;
+	    this.to = to;
+	}
+
+	protected PacketStatistics compute()
+	{
+	    if (to - from > SPLIT) {
+		long middle = from + (to - from) / 2;
+		Range first = new Range(channel, nodes, from, middle);
+		Range second = new Range(channel, nodes, middle, to);
+		first.fork();
+		PacketStatistics rest = second.compute();
+		PacketStatistics result = first.join();
+		result.merge(rest);
+		return result;
+	    }
+	    try { return parse(); }
+	    catch (IOException e) { throw new UncheckedIOException(e); }
+	}
+
+	private PacketStatistics parse() throws IOException
+	{
+	    PacketStatistics stats = new PacketStatistics(nodes);
+	    // map the byte before, to see whether a line starts at from, and
+	    // enough after to end the last line starting before to:
+	    long base = (from > 0) ? from - 1 : 0;
+	    long size = channel.size();
+	    long length = Math.min(size, to + TAIL) - base;
+	    if (length <= 0) return stats;
+	    MappedByteBuffer map =
+		channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+	    int limit = (int)length;
+	    int last = (int)(to - base); // lines starting before are ours
+	    int p = 0;
+	    if (from > 0)
+		p = PacketLineParser.lineEnd(map, 0, limit) + 1;
+	    PacketRecord r = new PacketRecord();
+	    while (p < last) {
+		int end = PacketLineParser.lineEnd(map, p, limit);
+		if (PacketLineParser.parse(map, p, end, r)) stats.add(r);
+		p = end + 1;
+	    }
+	    return stats;
+	}
+    }
+
+    public static void main(String args[]) throws IOException
+    {
+	int nodes = 16; // 4-bit node numbers in the header flit
+	String storeFile = null;
+	int i = 0;
+	while (i + 1 < args.length && args[i].startsWith("-")) {
+	    if ("-n".equals(args[i])) nodes = Integer.parseInt(args[i+1]);
+	    else if ("-s".equals(args[i])) storeFile = args[i+1];
+	    i += 2;
+	}
+	for (; i<args.length; ++i) {
+	    long start = System.nanoTime();
+	    PacketStatistics stats = analyze(args[i], nodes);
+	    long nanos = System.nanoTime() - start;
+	    long bytes = new java.io.File(args[i]).length();
+	    System.out.println(args[i]+": "+bytes/1048576+" MiB in "
+			       +nanos/1000000+" ms");
+	    stats.print(System.out);
+	    if (storeFile != null) {
+		PacketStore store = new PacketStore(nodes, 1 << 20, storeFile);
+		try {
+		    load(args[i], store);
+		    printWindows(store);
+		} finally {
+		    store.close();
+		}
+	    }
+	}
+    }
+
+    /**
+     * Prints the first and last reception of each pair, from the store.
+     */
+    static void printWindows(PacketStore store)
+    {
+	int nodes = store.getNodes();
+	System.out.println("stored: "+store.size()+" packets");
+	for (int s=0; s<nodes; ++s)
+	    for (int d=0; d<nodes; ++d) {
+		long first = store.first(s, d);
+		if (first < 0) continue;
+		long last = first;
+		for (long j = store.next(first); j >= 0; j = store.next(j))
+		    last = j;
+		System.out.println(s+" -> "+d+": received from "
+				   +store.getTime(first)+" fs to "
+				   +store.getTime(last)+" fs");
+	    }
+    }
+}
@@ -0,0 +1,20 @@
+package com.uppaal.chiporiginal;
+
+/**
+ * Receives the records appended to a simulator output file.
+ *
+ *@see OutputTail
+ */
+public interface OutputListener
+{
+    /**
+     * A source,destination record was appended.
+     */
+    public void received(int source, int destination);
+
+    /**
+     * The file was truncated or replaced, the records are read again from
+     * its beginning.
+     */
+    public void restarted();
+}
@@ -0,0 +1,291 @@
+package com.uppaal.chiporiginal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Incremental reader of a simulator output file of source,destination
+ * records (e.g. readOutput_ModelSim.csv), or of the lines of any text file
+ * (e.g. the transcript) handed to a LineListener.
+ *<p>
+ * The reader remembers the byte offset of the first unread record, so each
+ * poll() reads and parses only the complete lines appended since the last
+ * one and hands them to the listener as two ints. A line still being
+ * written (no new line yet) is left for the next poll. If the file shrinks
+ * or is replaced by another one, the reader starts again at its beginning.
+ * A replacement is told by the file key (the inode), or where there is none
+ * (Windows) by the creation time, unless the platform reports the last
+ * modification as creation time: only the shrinking is seen then.
+ * Lines which are not two integers (e.g. the header) are skipped.
+ *<p>
+ * start() polls from a daemon thread woken by a WatchService on the
+ * directory, backed by a poll timeout which doubles while nothing changes,
+ * as some platforms deliver file events late.
+ */
+public class OutputTail
+{
+    /**
+     * Receives the complete lines appended to the file.
+     */
+    public interface LineListener
+    {
+	/**
+	 * A line was appended, between the two positions of the buffer (the
+	 * new line excluded); the buffer is reused after the call.
+	 * @return true if the line is a record.
+	 */
+	public boolean line(ByteBuffer b, int start, int end);
+
+	/**
+	 * The file was truncated or replaced, the lines are read again from
+	 * its beginning.
+	 */
+	public void restarted();
+    }
+
+    private static final long MIN_WAIT = 1; // ms
+    private static final long MAX_WAIT = 100;
+
+    private final Path path;
+    private final LineListener listener;
+    private final ByteBuffer buffer;
+    private FileChannel channel = null;
+    private Object fileKey = null;
+    private FileTime created = null; // where there is no file key
+    private long position = 0;
+    private long records = 0;
+    private int parsed; // records found by the last parse()
+    private volatile boolean running = false;
+    private WatchService watcher = null;
+    private Thread thread = null;
+
+    /**
+     * Creates a reader of the file from its beginning, the file does not
+     * need to exist yet.
+     * @param path the file name.
+     * @param listener the receiver of the records.
+     */
+    public OutputTail(String path, OutputListener listener)
+    {
+	this(path, listener, 64 * 1024);
+    }
+
+    /**
+     * @param bufferSize the read size, also the longest line accepted.
+     */
+    public OutputTail(String path, OutputListener listener, int bufferSize)
+    {
+	this(path, records(listener), bufferSize);
+    }
+
+    /**
+     * Creates a reader of the lines of the file.
+     * @param bufferSize the read size, also the longest line accepted.
+     */
+    public OutputTail(String path, LineListener listener, int bufferSize)
+    {
+	this.path = Paths.get(path).toAbsolutePath();
+	this.listener = listener;
+	buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Delivers the records appended since the last call.
+     * @return the number of records delivered.
+     */
+    public synchronized int poll() throws IOException
+    {
+	if (!reopen()) return 0;
+	long size = channel.size();
+	if (size < position) { // truncated
+	    position = 0;
+	    listener.restarted();
+	}
+	int count = 0;
+	while (position < size) {
+	    buffer.clear();
+	    int n = channel.read(buffer, position);
+	    if (n <= 0) break;
+	    int used = parse(n);
+	    if (used == 0) {
+		if (n < buffer.capacity()) break; // incomplete line
+		used = n; // line longer than the buffer, drop it
+	    }
+	    position += used;
+	    count += parsed;
+	}
+	records += count;
+	return count;
+    }
+
+    /**
+     * Returns the offset of the first unread byte.
+     */
+    public synchronized long getPosition() { return position; }
+
+    /**
+     * Returns the number of records delivered.
+     */
+    public synchronized long getRecords() { return records; }
+
+    /**
+     * Starts polling from a background thread.
+     */
+    public synchronized void start() throws IOException
+    {
+	if (running) return;
+	watcher = path.getFileSystem().newWatchService();
+	path.getParent().register(watcher,
+				  StandardWatchEventKinds.ENTRY_CREATE,
+				  StandardWatchEventKinds.ENTRY_MODIFY);
+	running = true;
+	thread = new Thread("OutputTail") {
+		public void run() { watchLoop(); }
+	    };
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /**
+     * Stops the background thread and closes the file.
+     */
+    public void close() throws IOException
+    {
+	Thread t;
+	synchronized (this) {
+	    running = false;
+	    if (watcher != null) watcher.close();
+	    t = thread;
+	}
+	if (t != null && t != Thread.currentThread()) {
+	    try { t.join(); }
+	    catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	synchronized (this) {
+	    if (channel != null) channel.close();
+	    channel = null;
+	}
+    }
+
+    private void watchLoop()
+    {
+	long wait = MIN_WAIT;
+	while (running) try {
+	    if (poll() > 0) wait = MIN_WAIT;
+	    else {
+		WatchKey key = watcher.poll(wait, TimeUnit.MILLISECONDS);
+		if (key != null) {
+		    key.pollEvents();
+		    key.reset();
+		    wait = MIN_WAIT;
+		} else wait = Math.min(wait * 2, MAX_WAIT);
+	    }
+	} catch (ClosedWatchServiceException e) {
+	    return;
+	} catch (InterruptedException e) {
+	    return;
+	} catch (IOException e) {
+	    System.err.println("OutputTail: "+e);
+	    wait = MAX_WAIT;
+	}
+    }
+
+    /**
+     * Opens the file, again if it was replaced.
+     * @return false if there is no file.
+     */
+    private boolean reopen() throws IOException
+    {
+	BasicFileAttributes attributes;
+	try {
+	    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+	} catch (IOException e) { // no file (yet)
+	    return (channel != null);
+	}
+	Object key = attributes.fileKey();
+	FileTime time = attributes.creationTime();
+	boolean replaced;
+	if (key != null) replaced = !key.equals(fileKey);
+	else replaced = !time.equals(created)
+		 && !time.equals(attributes.lastModifiedTime());
+	if (channel != null && replaced) {
+	    channel.close(); // rotated
+	    channel = null;
+	    if (position > 0) listener.restarted();
+	}
+	if (channel == null) {
+	    channel = FileChannel.open(path, StandardOpenOption.READ);
+	    fileKey = key;
+	    created = time;
+	    position = 0;
+	}
+	return true;
+    }
+
+    /**
+     * Hands the complete lines at the beginning of the buffer to the
+     * listener.
+     * @return the number of bytes consumed.
+     */
+    private int parse(int n)
+    {
+	parsed = 0;
+	int start = 0;
+	for (int i=0; i<n; ++i) {
+	    if (buffer.get(i) != '\n') continue;
+	    int end = (i > start && buffer.get(i - 1) == '\r') ? i - 1 : i;
+	    if (listener.line(buffer, start, end)) ++parsed;
+	    start = i + 1;
+	}
+	return start;
+    }
+
+    /**
+     * Returns the parser of the source,destination records of the lines.
+     */
+    private static LineListener records(final OutputListener listener)
+    {
+	return new LineListener() {
+		public boolean line(ByteBuffer b, int start, int end) {
+		    int field = 0, value = 0, source = 0;
+		    boolean digits = false, negative = false;
+		    for (int i=start; i<=end; ++i) {
+			byte c = (i < end) ? b.get(i) : (byte)'\n';
+			if (c >= '0' && c <= '9') {
+			    value = value * 10 + (c - '0');
+			    digits = true;
+			} else if (c == '-' && !digits && !negative)
+			    negative = true;
+			else if (c == ',' || c == '\n') {
+			    if (!digits || field > 1) return false;
+			    if (negative) value = -value;
+			    if (field == 0) source = value;
+			    ++field;
+			    value = 0;
+			    digits = false;
+			    negative = false;
+			} else if (c != '\r' && c != ' ') return false;
+		    }
+		    if (field != 2) return false;
+		    listener.received(source, value);
+		    return true;
+		}
+
+		public void restarted() { listener.restarted(); }
+	    };
+    }
+}
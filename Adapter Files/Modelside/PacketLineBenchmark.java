@@ -0,0 +1,116 @@
+package com.uppaal.chiporiginal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares PacketLineParser with the regular expression baseline it
+ * replaces, on generated lines or on an output file.
+ *<p>
+ * The baseline decodes each line into a String, as a line reader does, and
+ * matches it with a Pattern; the parser reads the bytes in place from a
+ * direct buffer. Both pass over the same data for a number of rounds, the
+ * first ones warming up the compiler, and the time per line is printed for
+ * every round along with whether both found the same packets.
+ *<p>
+ * Usage: PacketLineBenchmark [-l lines] [-r rounds] [file]
+ */
+public class PacketLineBenchmark
+{
+    private static final Pattern LINE = Pattern.compile
+	("\\s*#?\\s*Packet received at (\\d+) (\\w+) From: (\\d+) to: (\\d+)"
+	 +" length: (\\d+) actual length: (\\d+) id: (\\d+)\\s*");
+
+    /**
+     * Generates the lines of a run with packets on every pair of 4 nodes.
+     */
+    static byte[] generate(int lines)
+    {
+	StringBuilder sb = new StringBuilder();
+	for (int i=0; i<lines; ++i)
+	    sb.append("Packet received at ").append(i * 10L)
+		.append(" ns From: ").append(i & 3)
+		.append(" to: ").append((i >> 2) & 3)
+		.append(" length: ").append(3 + i % 30)
+		.append(" actual length: ").append(3 + i % 30)
+		.append(" id: ").append(i & 255).append('\n');
+	return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Parses the data with PacketLineParser.
+     * @return the sum of the ids and sources of the packets.
+     */
+    static long parser(ByteBuffer b, int end)
+    {
+	PacketRecord r = new PacketRecord();
+	long sum = 0;
+	int p = 0;
+	while (p < end) {
+	    int eol = PacketLineParser.lineEnd(b, p, end);
+	    if (PacketLineParser.parse(b, p, eol, r)) sum += r.id + r.source;
+	    p = eol + 1;
+	}
+	return sum;
+    }
+
+    /**
+     * Parses the data line by line with the regular expression.
+     * @return the sum of the ids and sources of the packets.
+     */
+    static long regex(byte[] data)
+    {
+	long sum = 0;
+	int p = 0;
+	while (p < data.length) {
+	    int eol = p;
+	    while (eol < data.length && data[eol] != '\n') ++eol;
+	    String line = new String(data, p, eol - p,
+				     StandardCharsets.ISO_8859_1);
+	    Matcher m = LINE.matcher(line);
+	    if (m.matches())
+		sum += Integer.parseInt(m.group(7))
+		    + Integer.parseInt(m.group(3));
+	    p = eol + 1;
+	}
+	return sum;
+    }
+
+    public static void main(String args[]) throws IOException
+    {
+	int lines = 1000000;
+	int rounds = 10;
+	String file = null;
+	for (int i=0; i<args.length; ++i) {
+	    if ("-l".equals(args[i]) && i+1<args.length)
+		lines = Integer.parseInt(args[++i]);
+	    else if ("-r".equals(args[i]) && i+1<args.length)
+		rounds = Integer.parseInt(args[++i]);
+	    else file = args[i];
+	}
+	byte[] data = (file != null) ? Files.readAllBytes(Paths.get(file))
+	    : generate(lines);
+	if (file != null) {
+	    lines = 0;
+	    for (byte c : data) if (c == '\n') ++lines;
+	}
+	ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+	direct.put(data);
+	for (int round=1; round<=rounds; ++round) {
+	    long t0 = System.nanoTime();
+	    long bytes = parser(direct, data.length);
+	    long t1 = System.nanoTime();
+	    long pattern = regex(data);
+	    long t2 = System.nanoTime();
+	    System.out.printf("round %d: parser %.1f ns/line, regex %.1f"
+			      +" ns/line, same packets: %b%n", round,
+			      (t1 - t0) / (double)lines,
+			      (t2 - t1) / (double)lines, bytes == pattern);
+	}
+    }
+}
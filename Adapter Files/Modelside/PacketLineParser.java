@@ -0,0 +1,254 @@
+package com.uppaal.chiporiginal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parser of the "Packet received at <time> From: s to: d length: L actual
+ * length: C id: N" lines written by the testbench to outputfile.txt, and of
+ * the "Packet received at <time> From s to d with length: L counter: C"
+ * notes it reports to the transcript (which carry no id, -1 is stored).
+ * The "Packet received from s to d with body: B with tail: T" lines of the
+ * TB_Package compiled by compile.do are parsed as well: they carry no time
+ * (-1 is stored) and the body is the packet id the adapter encoded into the
+ * stimulus; a packet is the header, body and tail flits. They end with "at
+ * node: N", the node which received the packet, not reported (-1) by the
+ * other lines.
+ *<p>
+ * The bytes are matched in place with absolute reads, so heap, direct and
+ * mapped buffers are parsed without copying, and the values are stored in a
+ * reusable PacketRecord: no String or other object is created per line.
+ * Leading blanks and the transcript "# " and "** Note: " prefixes are
+ * skipped. The time is converted to femtoseconds from any VHDL time unit
+ * (fs to hr), with an optional fraction; lines after the 2.5 hours a long
+ * holds are rejected.
+ */
+public final class PacketLineParser
+{
+    private static final byte[] RECEIVED = bytes("Packet received ");
+    private static final byte[] AT = bytes("at ");
+    private static final byte[] FROM_BODY = bytes("from ");
+    private static final byte[] BODY = bytes("with body:");
+    private static final byte[] TAIL = bytes("with tail:");
+    private static final byte[] NODE = bytes("at node:");
+    /** The flits of a packet of TB_Package (its Packet_length). */
+    private static final int FLITS = 3;
+    private static final byte[] NOTE = bytes("** Note: ");
+    private static final byte[] FROM = bytes("From");
+    private static final byte[] TO = bytes("to:");
+    private static final byte[] LENGTH = bytes("length:");
+    private static final byte[] ACTUAL = bytes("actual length:");
+    private static final byte[] ID = bytes("id:");
+    private static final byte[] REPORT_TO = bytes("to");
+    private static final byte[] REPORT_LENGTH = bytes("with length:");
+    private static final byte[] COUNTER = bytes("counter:");
+
+    private PacketLineParser() {}
+
+    /**
+     * Parses the line between the two positions, the new line excluded.
+     * @param start the index of the first byte.
+     * @param end the index after the last byte.
+     * @return false if the line is not a packet reception, the record is
+     * then left in an unspecified state.
+     */
+    public static boolean parse(ByteBuffer b, int start, int end,
+				PacketRecord r)
+    {
+	int p = start;
+	long n;
+	r.node = -1;
+	while (p < end && (b.get(p) == ' ' || b.get(p) == '\t'
+			   || b.get(p) == '#'))
+	    ++p;
+	int q = literal(b, p, end, NOTE);
+	if (q >= 0) p = q;
+	if ((p = literal(b, p, end, RECEIVED)) < 0) return false;
+	if ((q = literal(b, p, end, FROM_BODY)) >= 0) return body(b, q, end, r);
+	if ((p = literal(b, p, end, AT)) < 0) return false;
+	if ((p = time(b, p, end, r)) < 0) return false;
+	if ((p = literal(b, skip(b, p, end), end, FROM)) < 0) return false;
+	if (p == end || b.get(p) != ':') return report(b, p, end, r);
+	if ((n = number(b, skip(b, p + 1, end), end)) < 0) return false;
+	r.source = (int)(n >>> 32);
+	p = (int)n;
+	if ((p = literal(b, skip(b, p, end), end, TO)) < 0) return false;
+	if ((n = number(b, skip(b, p, end), end)) < 0) return false;
+	r.destination = (int)(n >>> 32);
+	p = (int)n;
+	if ((p = literal(b, skip(b, p, end), end, LENGTH)) < 0) return false;
+	if ((n = number(b, skip(b, p, end), end)) < 0) return false;
+	r.length = (int)(n >>> 32);
+	p = (int)n;
+	if ((p = literal(b, skip(b, p, end), end, ACTUAL)) < 0) return false;
+	if ((n = number(b, skip(b, p, end), end)) < 0) return false;
+	r.actualLength = (int)(n >>> 32);
+	p = (int)n;
+	if ((p = literal(b, skip(b, p, end), end, ID)) < 0) return false;
+	if ((n = number(b, skip(b, p, end), end)) < 0) return false;
+	r.id = (int)(n >>> 32);
+	return isEnd(b, (int)n, end);
+    }
+
+    /**
+     * Parses the rest of a transcript note, after "From".
+     */
+    private static boolean report(ByteBuffer b, int p, int end,
+				  PacketRecord r)
+    {
+	long n;
+	if ((n = number(b, skip(b, p, end), end)) < 0) return false;
+	r.source = (int)(n >>> 32);
+	p = (int)n;
+	if ((p = literal(b, skip(b, p, end), end, REPORT_TO)) < 0)
+	    return false;
+	if ((n = number(b, skip(b, p, end), end)) < 0) return false;
+	r.destination = (int)(n >>> 32);
+	p = (int)n;
+	if ((p = literal(b, skip(b, p, end), end, REPORT_LENGTH)) < 0)
+	    return false;
+	if ((n = number(b, skip(b, p, end), end)) < 0) return false;
+	r.length = (int)(n >>> 32);
+	p = (int)n;
+	if ((p = literal(b, skip(b, p, end), end, COUNTER)) < 0) return false;
+	if ((n = number(b, skip(b, p, end), end)) < 0) return false;
+	r.actualLength = (int)(n >>> 32);
+	r.id = -1;
+	return isEnd(b, (int)n, end);
+    }
+
+    /**
+     * Parses the rest of a TB_Package line, after "from ".
+     */
+    private static boolean body(ByteBuffer b, int p, int end,
+				PacketRecord r)
+    {
+	long n;
+	int q;
+	if ((n = number(b, skip(b, p, end), end)) < 0) return false;
+	r.source = (int)(n >>> 32);
+	p = (int)n;
+	if ((p = literal(b, skip(b, p, end), end, REPORT_TO)) < 0)
+	    return false;
+	if ((n = number(b, skip(b, p, end), end)) < 0) return false;
+	r.destination = (int)(n >>> 32);
+	p = (int)n;
+	if ((p = literal(b, skip(b, p, end), end, BODY)) < 0) return false;
+	if ((n = number(b, skip(b, p, end), end)) < 0) return false;
+	r.id = (int)(n >>> 32);
+	p = (int)n;
+	if ((p = literal(b, skip(b, p, end), end, TAIL)) < 0) return false;
+	if ((n = number(b, skip(b, p, end), end)) < 0) return false;
+	r.time = -1;
+	r.length = r.actualLength = FLITS;
+	p = skip(b, (int)n, end);
+	if ((q = literal(b, p, end, NODE)) >= 0) {
+	    if ((n = number(b, skip(b, q, end), end)) < 0) return false;
+	    r.node = (int)(n >>> 32);
+	    p = (int)n;
+	}
+	return isEnd(b, p, end);
+    }
+
+    private static boolean isEnd(ByteBuffer b, int p, int end)
+    {
+	p = skip(b, p, end);
+	return (p == end || (p == end - 1 && b.get(p) == '\r'));
+    }
+
+    /**
+     * Returns the index of the next new line at or after start, end if none.
+     */
+    public static int lineEnd(ByteBuffer b, int start, int end)
+    {
+	while (start < end && b.get(start) != '\n') ++start;
+	return start;
+    }
+
+    private static int skip(ByteBuffer b, int p, int end)
+    {
+	while (p < end && b.get(p) == ' ') ++p;
+	return p;
+    }
+
+    private static int literal(ByteBuffer b, int p, int end, byte[] text)
+    {
+	if (end - p < text.length) return -1;
+	for (int i=0; i<text.length; ++i)
+	    if (b.get(p + i) != text[i]) return -1;
+	return p + text.length;
+    }
+
+    /**
+     * Parses a non-negative int.
+     * @return the value in the high word and the index after it in the low
+     * word, -1 if there is no number or it overflows.
+     */
+    private static long number(ByteBuffer b, int p, int end)
+    {
+	long v = 0;
+	int start = p;
+	while (p < end) {
+	    int d = b.get(p) - '0';
+	    if (d < 0 || d > 9) break;
+	    v = v * 10 + d;
+	    if (v > Integer.MAX_VALUE) return -1;
+	    ++p;
+	}
+	if (p == start) return -1;
+	return (v << 32) | p;
+    }
+
+    private static int time(ByteBuffer b, int p, int end, PacketRecord r)
+    {
+	long whole = 0, fraction = 0, scale = 1;
+	int start = p;
+	for (; p < end; ++p) {
+	    int d = b.get(p) - '0';
+	    if (d < 0 || d > 9) break;
+	    whole = whole * 10 + d;
+	}
+	if (p == start) return -1;
+	if (p < end && b.get(p) == '.') {
+	    for (++p; p < end; ++p) {
+		int d = b.get(p) - '0';
+		if (d < 0 || d > 9) break;
+		if (scale < 1000000000000000L) {
+		    fraction = fraction * 10 + d;
+		    scale *= 10;
+		}
+	    }
+	}
+	p = skip(b, p, end);
+	long unit;
+	if (end - p < 2) return -1;
+	byte c0 = b.get(p), c1 = b.get(p + 1);
+	int n = 2;
+	if (c1 == 's' && c0 == 'f') unit = 1L;
+	else if (c1 == 's' && c0 == 'p') unit = 1000L;
+	else if (c1 == 's' && c0 == 'n') unit = 1000000L;
+	else if (c1 == 's' && c0 == 'u') unit = 1000000000L;
+	else if (c1 == 's' && c0 == 'm') unit = 1000000000000L;
+	else if (c0 == 'h' && c1 == 'r') unit = 3600000000000000000L;
+	else if (c0 == 's' && c1 == 'e' && end - p >= 3
+		 && b.get(p + 2) == 'c') {
+	    unit = 1000000000000000L;
+	    n = 3;
+	} else if (c0 == 'm' && c1 == 'i' && end - p >= 3
+		   && b.get(p + 2) == 'n') {
+	    unit = 60000000000000000L;
+	    n = 3;
+	} else return -1;
+	if (whole > Long.MAX_VALUE / unit - 1) return -1; // beyond 2.5 hr
+	// both are powers of ten (hr and min multiples of them)
+	r.time = whole * unit + (unit >= scale ? fraction * (unit / scale)
+				 : fraction / (scale / unit));
+	return p + n;
+    }
+
+    private static byte[] bytes(String s)
+    {
+	byte[] b = new byte[s.length()];
+	for (int i=0; i<b.length; ++i) b[i] = (byte)s.charAt(i);
+	return b;
+    }
+}
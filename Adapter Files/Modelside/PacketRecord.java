@@ -0,0 +1,34 @@
+package com.uppaal.chiporiginal;
+
+/**
+ * Reusable holder of a packet reported by the testbench get_packet procedure
+ * ("Packet received at <time> From: s to: d length: L actual length: C
+ * id: N").
+ *
+ *@see PacketLineParser
+ */
+public class PacketRecord
+{
+    /**
+     * The simulation time of the reception, in femtoseconds, -1 if not
+     * reported.
+     */
+    public long time;
+    public int source;
+    public int destination;
+    /** The length announced by the header flit. */
+    public int length;
+    /** The number of flits received. */
+    public int actualLength;
+    /** The packet identifier, -1 if not reported. */
+    public int id;
+    /** The node which received the packet, -1 if not reported. */
+    public int node;
+
+    public String toString()
+    {
+	return "Packet received at "+time+" fs From: "+source+" to: "
+	    +destination+" length: "+length+" actual length: "+actualLength
+	    +" id: "+id;
+    }
+}
@@ -0,0 +1,165 @@
+package com.uppaal.chiporiginal;
+
+import java.io.PrintStream;
+
+/**
+ * Aggregate of received packets per (source,destination) pair: the number
+ * of packets and those whose actual length differs from the announced one;
+ * and per source, the packet identifiers missing.
+ *<p>
+ * The identifiers are the 8 bits of the header flit, numbered by the
+ * generator of the source across all its destinations. As packets to
+ * different destinations take paths of different lengths, they may be
+ * received out of order, hence the identifiers of a source are not
+ * expected to follow each other: the span of identifiers they cover is
+ * tracked instead (an identifier less than half the modulus ahead of the
+ * span extends it), and the identifiers of the span not received are
+ * missing. Aggregates of consecutive parts of a file are combined by
+ * merge(), which joins the spans, so a file can be analysed in parallel.
+ */
+public class PacketStatistics
+{
+    /** The number of distinct packet identifiers. */
+    public static final int ID_MODULUS = 256;
+
+    private final int nodes;
+    private final long[] packets; // indexed by source * nodes + destination
+    private final long[] mismatches;
+    private final long[] identified; // per source, packets with an id
+    private final int[] firstId; // per source, of the span, -1 if none yet
+    private final long[] span; // per source, identifiers covered
+    private long records = 0;
+    private long outOfRange = 0;
+
+    /**
+     * Creates an empty aggregate.
+     * @param nodes the number of network nodes, larger node numbers are
+     * only counted by getOutOfRange().
+     */
+    public PacketStatistics(int nodes)
+    {
+	this.nodes = nodes;
+	int pairs = nodes * nodes;
+	packets = new long[pairs];
+	mismatches = new long[pairs];
+	identified = new long[nodes];
+	firstId = new int[nodes];
+	span = new long[nodes];
+	java.util.Arrays.fill(firstId, -1);
+    }
+
+    /**
+     * Accounts a packet, in file order.
+     */
+    public void add(PacketRecord r)
+    {
+	++records;
+	if (r.source < 0 || r.source >= nodes
+	    || r.destination < 0 || r.destination >= nodes) {
+	    ++outOfRange;
+	    return;
+	}
+	int pair = r.source * nodes + r.destination;
+	++packets[pair];
+	if (r.length != r.actualLength) ++mismatches[pair];
+	if (r.id < 0) return;
+	++identified[r.source];
+	extend(r.source, r.id % ID_MODULUS, 1);
+    }
+
+    /**
+     * Adds the aggregate of the part of the file following this one.
+     */
+    public void merge(PacketStatistics next)
+    {
+	if (next.nodes != nodes)
+	    throw new IllegalArgumentException("different number of nodes");
+	records += next.records;
+	outOfRange += next.outOfRange;
+	for (int pair=0; pair<packets.length; ++pair) {
+	    packets[pair] += next.packets[pair];
+	    mismatches[pair] += next.mismatches[pair];
+	}
+	for (int s=0; s<nodes; ++s) {
+	    identified[s] += next.identified[s];
+	    if (next.firstId[s] >= 0) extend(s, next.firstId[s], next.span[s]);
+	}
+    }
+
+    /**
+     * Joins the span of identifiers starting at first to the one of the
+     * source, the new span starting near the end of the current one.
+     */
+    private void extend(int source, int first, long length)
+    {
+	if (firstId[source] < 0) {
+	    firstId[source] = first;
+	    span[source] = length;
+	    return;
+	}
+	int last = (int)((firstId[source] + span[source] - 1) % ID_MODULUS);
+	int ahead = (first - last + ID_MODULUS) % ID_MODULUS;
+	if (ahead > ID_MODULUS / 2) ahead -= ID_MODULUS; // behind
+	long low = Math.min(0, span[source] - 1 + ahead);
+	long high = Math.max(span[source] - 1, span[source] - 1 + ahead
+			     + length - 1);
+	firstId[source] = (int)(((firstId[source] + low) % ID_MODULUS
+				 + ID_MODULUS) % ID_MODULUS);
+	span[source] = high - low + 1;
+    }
+
+    public int getNodes() { return nodes; }
+
+    /**
+     * Returns the number of packets parsed.
+     */
+    public long getRecords() { return records; }
+
+    /**
+     * Returns the number of packets with a node number out of range.
+     */
+    public long getOutOfRange() { return outOfRange; }
+
+    public long getPackets(int source, int destination)
+    {
+	return packets[source * nodes + destination];
+    }
+
+    /**
+     * Returns the number of packets whose actual length differs from the
+     * length in their header.
+     */
+    public long getMismatches(int source, int destination)
+    {
+	return mismatches[source * nodes + destination];
+    }
+
+    /**
+     * Returns the number of identifiers of the source not received, within
+     * the span of those received.
+     */
+    public long getMissing(int source)
+    {
+	return Math.max(0, span[source] - identified[source]);
+    }
+
+    /**
+     * Prints a line per pair which received packets, and the missing
+     * identifiers of each source.
+     */
+    public void print(PrintStream out)
+    {
+	out.println("packets: "+records+", node out of range: "+outOfRange);
+	for (int s=0; s<nodes; ++s) {
+	    for (int d=0; d<nodes; ++d) {
+		int pair = s * nodes + d;
+		if (packets[pair] == 0) continue;
+		out.println(s+" -> "+d+": "+packets[pair]+" packets, "
+			    +mismatches[pair]+" length mismatches");
+	    }
+	    if (firstId[s] >= 0)
+		out.println(s+": ids from "+firstId[s]+", "+getMissing(s)
+			    +" ids missing");
+	}
+    }
+}
@@ -0,0 +1,219 @@
+package com.uppaal.chiporiginal;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Append-only store of packet records kept out of the Java heap, for
+ * campaigns of tens of millions of sent and received packets.
+ *<p>
+ * Records have a fixed width and are laid out in segments of direct
+ * buffers, or of a memory-mapped file, added as the store grows: the heap
+ * holds one buffer object per segment and nothing per record, so the
+ * garbage collector has nothing to trace. A record is addressed by its
+ * index in append order. Each record also links to the next record of its
+ * (source,destination) pair, so the records of a pair are listed without
+ * scanning the others:
+ *<pre>
+ * for (long i = store.first(s, d); i >= 0; i = store.next(i))
+ *     store.get(i, record);
+ *</pre>
+ * The store is not thread safe.
+ */
+public class PacketStore
+{
+    public static final int SENT = 0;
+    public static final int RECEIVED = 1;
+
+    // record layout
+    private static final int TIME = 0;
+    private static final int NEXT = 8;
+    private static final int SOURCE = 16;
+    private static final int DESTINATION = 20;
+    private static final int LENGTH = 24;
+    private static final int ACTUAL = 28;
+    private static final int ID = 32;
+    private static final int KIND = 36;
+    /** The number of bytes per record. */
+    public static final int RECORD = 40;
+
+    private final int nodes;
+    private final int segmentRecords;
+    private final ArrayList<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+    private final RandomAccessFile file;
+    private final long[] heads; // per pair, -1 if none
+    private final long[] tails;
+    private final long[] counts;
+    private long size = 0;
+
+    /**
+     * Creates a store in direct buffers.
+     * @param nodes the number of network nodes, records of other nodes are
+     * kept but not indexed.
+     * @param segmentRecords the number of records per segment.
+     */
+    public PacketStore(int nodes, int segmentRecords)
+    {
+	this(nodes, segmentRecords, (RandomAccessFile)null);
+    }
+
+    /**
+     * Creates a store in a memory-mapped file, which is replaced.
+     * @param path the file name.
+     */
+    public PacketStore(int nodes, int segmentRecords, String path)
+	throws IOException
+    {
+	this(nodes, segmentRecords, new RandomAccessFile(path, "rw"));
+	file.setLength(0);
+    }
+
+    private PacketStore(int nodes, int segmentRecords, RandomAccessFile file)
+    {
+	if ((long)segmentRecords * RECORD > Integer.MAX_VALUE)
+	    throw new IllegalArgumentException("segment too large");
+	this.nodes = nodes;
+	this.segmentRecords = segmentRecords;
+	this.file = file;
+	heads = new long[nodes * nodes];
+	tails = new long[nodes * nodes];
+	counts = new long[nodes * nodes];
+	Arrays.fill(heads, -1);
+	Arrays.fill(tails, -1);
+    }
+
+    /**
+     * Appends a record.
+     * @param kind SENT or RECEIVED.
+     * @return the index of the record.
+     */
+    public long append(PacketRecord r, int kind) throws IOException
+    {
+	long index = size;
+	int segment = (int)(index / segmentRecords);
+	if (segment == segments.size()) segments.add(allocate(segment));
+	ByteBuffer b = segments.get(segment);
+	int at = (int)(index % segmentRecords) * RECORD;
+	b.putLong(at + TIME, r.time);
+	b.putLong(at + NEXT, -1);
+	b.putInt(at + SOURCE, r.source);
+	b.putInt(at + DESTINATION, r.destination);
+	b.putInt(at + LENGTH, r.length);
+	b.putInt(at + ACTUAL, r.actualLength);
+	b.putInt(at + ID, r.id);
+	b.putInt(at + KIND, kind);
+	if (r.source >= 0 && r.source < nodes
+	    && r.destination >= 0 && r.destination < nodes) {
+	    int pair = r.source * nodes + r.destination;
+	    if (tails[pair] < 0) heads[pair] = index;
+	    else link(tails[pair], index);
+	    tails[pair] = index;
+	    ++counts[pair];
+	}
+	++size;
+	return index;
+    }
+
+    /**
+     * Reads a record.
+     * @return the kind of the record.
+     */
+    public int get(long index, PacketRecord r)
+    {
+	ByteBuffer b = segment(index);
+	int at = offset(index);
+	r.time = b.getLong(at + TIME);
+	r.source = b.getInt(at + SOURCE);
+	r.destination = b.getInt(at + DESTINATION);
+	r.length = b.getInt(at + LENGTH);
+	r.actualLength = b.getInt(at + ACTUAL);
+	r.id = b.getInt(at + ID);
+	return b.getInt(at + KIND);
+    }
+
+    public int getKind(long index)
+    {
+	return segment(index).getInt(offset(index) + KIND);
+    }
+
+    public long getTime(long index)
+    {
+	return segment(index).getLong(offset(index) + TIME);
+    }
+
+    /**
+     * Returns the index of the first record of the pair, -1 if none.
+     */
+    public long first(int source, int destination)
+    {
+	return heads[source * nodes + destination];
+    }
+
+    /**
+     * Returns the index of the next record of the same pair, -1 if none.
+     */
+    public long next(long index)
+    {
+	return segment(index).getLong(offset(index) + NEXT);
+    }
+
+    /**
+     * Returns the number of records of the pair.
+     */
+    public long count(int source, int destination)
+    {
+	return counts[source * nodes + destination];
+    }
+
+    /**
+     * Returns the number of records.
+     */
+    public long size() { return size; }
+
+    public int getNodes() { return nodes; }
+
+    /**
+     * Releases the file, if the store is mapped. Direct buffers are
+     * released with the store.
+     *<p>
+     * The file is not trimmed to the records: its segments stay mapped
+     * until the garbage collector frees them, and a file with live mappings
+     * cannot be shortened on Windows. It keeps whole segments, the first
+     * size() * RECORD bytes hold the records and the rest is zero.
+     */
+    public void close() throws IOException
+    {
+	if (file == null) return;
+	segments.clear();
+	file.close();
+    }
+
+    private void link(long from, long to)
+    {
+	segment(from).putLong(offset(from) + NEXT, to);
+    }
+
+    private ByteBuffer segment(long index)
+    {
+	if (index < 0 || index >= size)
+	    throw new IndexOutOfBoundsException("record "+index);
+	return segments.get((int)(index / segmentRecords));
+    }
+
+    private int offset(long index)
+    {
+	return (int)(index % segmentRecords) * RECORD;
+    }
+
+    private ByteBuffer allocate(int segment) throws IOException
+    {
+	int bytes = segmentRecords * RECORD;
+	if (file == null) return ByteBuffer.allocateDirect(bytes);
+	return file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+				     (long)segment * bytes, bytes);
+    }
+}
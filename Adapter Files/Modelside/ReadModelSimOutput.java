@@ -1,52 +1,41 @@
 package com.uppaal.chiporiginal;
 
-	import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.ArrayList;
+	import java.io.IOException;
 
+	/**
+	 * Reads the source,destination records of readOutput_ModelSim.csv.
+	 * The file is tailed, each call delivers to the listener only the
+	 * records appended since the previous one.
+	 */
 	public class ReadModelSimOutput {
-	
-		public String[] output;
-		public ArrayList<Integer> readModelSimOutput() {
-			ArrayList<Integer> list = new ArrayList<Integer>();
-	        String csvFile = "readOutput_ModelSim.csv";
-	        BufferedReader br = null;
-	        String line = "";
-	        String cvsSplitBy = ",";
 
-	        try {
-
-	            br = new BufferedReader(new FileReader(csvFile));
-	            while ((line = br.readLine()) != null) {
-
-	                // use comma as separator
-	               output = line.split(cvsSplitBy);	              	               
-	               System.out.println("source= " + output[0] + " , destination=" + output[1]);
-
-	               list.add(Integer.valueOf(output[0]));
-	               list.add(Integer.valueOf(output[1]));
-	               
-	                
+		private final OutputTail tail;
 
-	            }
+		/**
+		 * @param listener the receiver of the records.
+		 */
+		public ReadModelSimOutput(OutputListener listener) {
+			tail = new OutputTail("readOutput_ModelSim.csv", listener);
+		}
 
-	        } catch (FileNotFoundException e) {
-	            e.printStackTrace();
+		/**
+		 * Delivers the records appended since the previous call.
+		 * @return the number of records delivered.
+		 */
+		public int readModelSimOutput() {
+	        try {
+	            return tail.poll();
 	        } catch (IOException e) {
 	            e.printStackTrace();
-	        } finally {
-	            if (br != null) {
-	                try {
-	                    br.close();
-	                } catch (IOException e) {
-	                    e.printStackTrace();
-	                }
-	            }
+	            return 0;
 	        }
-			return list;
-
 	    }
 
+		/**
+		 * Closes the file.
+		 */
+		public void close() throws IOException {
+			tail.close();
+		}
+
 	}
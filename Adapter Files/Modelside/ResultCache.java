@@ -0,0 +1,287 @@
+package com.uppaal.chiporiginal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of simulation results, addressed by the content of what determines
+ * them: the stimulus, the simulation script with the VHDL sources it
+ * compiles, and the run length. Repeated test steps against unchanged RTL
+ * become lookups instead of simulations.
+ *<p>
+ * Results are kept in two tiers, both bounded in bytes and evicting the
+ * least recently used entries: an in-memory hot tier, and a directory of
+ * one file per key, written atomically, whose modification times record
+ * the use and survive restarts.
+ */
+public class ResultCache
+{
+    /**
+     * Parsed output records of a simulation, packed in a byte array. The
+     * records held by the cache are shared and read-only.
+     */
+    public static class Records
+    {
+	private static final int RECORD = 32;
+	private ByteBuffer data;
+	private boolean readOnly = false;
+
+	public Records() { data = ByteBuffer.allocate(64 * RECORD); }
+
+	Records(byte[] bytes)
+	{
+	    if (bytes.length % RECORD != 0)
+		throw new IllegalArgumentException("truncated records");
+	    data = ByteBuffer.wrap(bytes);
+	    data.position(bytes.length);
+	    readOnly = true;
+	}
+
+	/**
+	 * @throws UnsupportedOperationException if the records are cached.
+	 */
+	public void add(PacketRecord r)
+	{
+	    if (readOnly)
+		throw new UnsupportedOperationException("cached records");
+	    if (data.remaining() < RECORD) {
+		ByteBuffer bigger = ByteBuffer.allocate(data.capacity() * 2);
+		data.flip();
+		bigger.put(data);
+		data = bigger;
+	    }
+	    data.putLong(r.time);
+	    data.putInt(r.source);
+	    data.putInt(r.destination);
+	    data.putInt(r.length);
+	    data.putInt(r.actualLength);
+	    data.putInt(r.id);
+	    data.putInt(r.node);
+	}
+
+	public int size() { return data.position() / RECORD; }
+
+	public boolean isReadOnly() { return readOnly; }
+
+	public void get(int index, PacketRecord r)
+	{
+	    if (index < 0 || index >= size())
+		throw new IndexOutOfBoundsException("record "+index+" of "
+						    +size());
+	    int at = index * RECORD;
+	    r.time = data.getLong(at);
+	    r.source = data.getInt(at + 8);
+	    r.destination = data.getInt(at + 12);
+	    r.length = data.getInt(at + 16);
+	    r.actualLength = data.getInt(at + 20);
+	    r.id = data.getInt(at + 24);
+	    r.node = data.getInt(at + 28);
+	}
+
+	int bytes() { return data.position(); }
+
+	byte[] toBytes()
+	{
+	    return Arrays.copyOf(data.array(), data.position());
+	}
+    }
+
+    /**
+     * Produces the result on a miss.
+     */
+    public interface Simulation
+    {
+	public Records simulate() throws IOException;
+    }
+
+    private static final String SUFFIX = ".rec";
+
+    private final File directory;
+    private final long hotLimit;
+    private final long diskLimit;
+    private final LinkedHashMap<String, Records> hot =
+	new LinkedHashMap<String, Records>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk =
+	new LinkedHashMap<String, Long>(16, 0.75f, true); // key -> bytes
+    private long hotBytes = 0;
+    private long diskBytes = 0;
+    private long hotHits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+
+    /**
+     * Opens the cache directory, its entries are indexed in order of use.
+     * @param hotLimit the bytes of results kept in memory.
+     * @param diskLimit the bytes of results kept on disk.
+     */
+    public ResultCache(File directory, long hotLimit, long diskLimit)
+	throws IOException
+    {
+	this.directory = directory;
+	this.hotLimit = hotLimit;
+	this.diskLimit = diskLimit;
+	if (!directory.isDirectory() && !directory.mkdirs())
+	    throw new IOException("cannot create "+directory);
+	File[] files = directory.listFiles();
+	Arrays.sort(files, new java.util.Comparator<File>() {
+		public int compare(File a, File b) {
+		    return Long.compare(a.lastModified(), b.lastModified());
+		}
+	    });
+	for (File f : files) {
+	    String name = f.getName();
+	    if (!name.endsWith(SUFFIX)) continue;
+	    disk.put(name.substring(0, name.length() - SUFFIX.length()),
+		     f.length());
+	    diskBytes += f.length();
+	}
+	evictDisk();
+    }
+
+    /**
+     * Returns the key of a simulation.
+     * @param stimulus the encoded stimulus, e.g. the testgen.txt files.
+     * @param script the simulation script, e.g. simulate.do; it and the
+     * sources it compiles, in the scripts it includes as well, are hashed.
+     * @param runNanos the simulated time.
+     */
+    public static String key(List<byte[]> stimulus, File script,
+			     long runNanos)
+	throws IOException
+    {
+	MessageDigest md;
+	try { md = MessageDigest.getInstance("SHA-256"); }
+	catch (NoSuchAlgorithmException e) { throw new IOException(e); }
+	for (byte[] s : stimulus) {
+	    md.update(ByteBuffer.allocate(4).putInt(s.length).array());
+	    md.update(s);
+	}
+	hashFile(md, script.getName(), script);
+	for (String source : DoScript.sources(script))
+	    hashFile(md, source, new File(script.getParentFile(), source));
+	md.update(ByteBuffer.allocate(8).putLong(runNanos).array());
+	StringBuilder hex = new StringBuilder();
+	for (byte b : md.digest())
+	    hex.append(Character.forDigit((b >> 4) & 15, 16))
+		.append(Character.forDigit(b & 15, 16));
+	return hex.toString();
+    }
+
+    /**
+     * Returns the cached result, or simulates and caches it. The result is
+     * read-only either way.
+     */
+    public Records lookup(String key, Simulation simulation)
+	throws IOException
+    {
+	Records r = get(key);
+	if (r == null) r = put(key, simulation.simulate());
+	return r;
+    }
+
+    /**
+     * Returns the cached result, null if none. The result is shared and
+     * read-only.
+     */
+    public synchronized Records get(String key) throws IOException
+    {
+	Records r = hot.get(key);
+	if (r != null) {
+	    ++hotHits;
+	    return r;
+	}
+	if (disk.get(key) != null) {
+	    File f = file(key);
+	    try {
+		r = new Records(Files.readAllBytes(f.toPath()));
+		f.setLastModified(System.currentTimeMillis());
+		++diskHits;
+		putHot(key, r);
+		return r;
+	    } catch (IOException e) { // removed behind our back
+		diskBytes -= disk.remove(key);
+	    }
+	}
+	++misses;
+	return null;
+    }
+
+    /**
+     * Caches a read-only copy of the result in both tiers.
+     * @return the copy.
+     */
+    public synchronized Records put(String key, Records result)
+	throws IOException
+    {
+	Records r = new Records(result.toBytes());
+	putHot(key, r);
+	File tmp = new File(directory, key+".tmp");
+	Files.write(tmp.toPath(), r.toBytes());
+	Files.move(tmp.toPath(), file(key).toPath(),
+		   StandardCopyOption.REPLACE_EXISTING,
+		   StandardCopyOption.ATOMIC_MOVE);
+	Long old = disk.put(key, (long)r.bytes());
+	diskBytes += r.bytes() - (old == null ? 0 : old);
+	evictDisk();
+	return r;
+    }
+
+    public synchronized long getHotHits() { return hotHits; }
+
+    public synchronized long getDiskHits() { return diskHits; }
+
+    public synchronized long getMisses() { return misses; }
+
+    public synchronized long getDiskBytes() { return diskBytes; }
+
+    public synchronized long getHotBytes() { return hotBytes; }
+
+    private void putHot(String key, Records r)
+    {
+	if (r.bytes() > hotLimit) {
+	    Records old = hot.remove(key);
+	    if (old != null) hotBytes -= old.bytes();
+	    return;
+	}
+	Records old = hot.put(key, r);
+	hotBytes += r.bytes() - (old == null ? 0 : old.bytes());
+	Iterator<Map.Entry<String, Records>> i = hot.entrySet().iterator();
+	while (hotBytes > hotLimit && i.hasNext()) {
+	    hotBytes -= i.next().getValue().bytes();
+	    i.remove();
+	}
+    }
+
+    private void evictDisk()
+    {
+	Iterator<Map.Entry<String, Long>> i = disk.entrySet().iterator();
+	while (diskBytes > diskLimit && i.hasNext()) {
+	    Map.Entry<String, Long> e = i.next();
+	    file(e.getKey()).delete();
+	    diskBytes -= e.getValue();
+	    i.remove();
+	}
+    }
+
+    private File file(String key) { return new File(directory, key+SUFFIX); }
+
+    private static void hashFile(MessageDigest md, String name, File f)
+	throws IOException
+    {
+	md.update(name.getBytes("UTF-8"));
+	md.update((byte)0);
+	byte[] content = Files.readAllBytes(f.toPath());
+	md.update(ByteBuffer.allocate(4).putInt(content.length).array());
+	md.update(content);
+    }
+}
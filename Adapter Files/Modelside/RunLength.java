@@ -0,0 +1,271 @@
+package com.uppaal.chiporiginal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bound of the simulated time needed by a batch of queued packets, to run
+ * the network for as long as the batch needs instead of a fixed "run 10000
+ * ns".
+ *<p>
+ * The testbench sends the packets of a source one per frame (frame_length
+ * clock cycles, or the packet length if longer, plus a few cycles of
+ * handshake), and a destination ejects one flit per cycle. The batch is
+ * over once the busiest source has sent and the busiest destination has
+ * ejected, plus the latency of the longest path (hops times a per-hop
+ * bound), after the reset. A margin is added on top.
+ *<p>
+ * The run can also be emitted as a run-until-idle Tcl loop, which runs in
+ * steps and stops as soon as the output file reports all expected packets,
+ * the bound being then only the upper limit.
+ *<p>
+ * Set on the StimulusWriter, it accounts the packets as they are queued,
+ * and refuses those of nodes outside of the network; the writer moves the
+ * accounting of each batch to a snapshot when the batch ends, so the
+ * packets queued during its run count for the next batch.
+ */
+public class RunLength
+{
+    private final int nodes;
+    private final long[] sourceCycles;
+    private final long[] destinationFlits;
+    private long packets = 0;
+    private int firstNode = 0;
+    private double clockNanos = 1; // clk_period of the testbench
+    private long resetNanos = 1;
+    private int frameCycles = 50; // frame_length of gen_packet_from_file
+    private int overheadCycles = 4; // handshake per packet
+    private int maxLength = 50; // for packets of unknown length
+    private int hops = 4; // 2x2 mesh: local, 2 links, local
+    private double hopNanos = 5;
+    private int marginPercent = 20;
+
+    /**
+     * @param nodes the number of network nodes.
+     */
+    public RunLength(int nodes)
+    {
+	this.nodes = nodes;
+	sourceCycles = new long[nodes];
+	destinationFlits = new long[nodes];
+    }
+
+    /**
+     * Sets the number of the first node in the packets added, e.g. 1 for
+     * the stimulus records, 0 by default.
+     */
+    public void setFirstNode(int first) { firstNode = first; }
+
+    public void setClockPeriod(double nanos) { clockNanos = nanos; }
+
+    public void setResetTime(long nanos) { resetNanos = nanos; }
+
+    /**
+     * Sets the clock cycles a source takes per packet: the frame length
+     * and the handshake.
+     */
+    public void setFrame(int frameCycles, int overheadCycles)
+    {
+	this.frameCycles = frameCycles;
+	this.overheadCycles = overheadCycles;
+    }
+
+    /**
+     * Sets the length in flits assumed for packets added without one.
+     */
+    public void setMaxLength(int flits) { maxLength = flits; }
+
+    /**
+     * Sets the longest path and the latency bound of each of its hops.
+     */
+    public void setHops(int hops, double hopNanos)
+    {
+	this.hops = hops;
+	this.hopNanos = hopNanos;
+    }
+
+    public void setMargin(int percent) { marginPercent = percent; }
+
+    /**
+     * Accounts a queued packet.
+     * @param length the number of flits.
+     * @throws IllegalArgumentException if a node is not in the network.
+     */
+    public synchronized void add(int source, int destination, int length)
+    {
+	int s = source - firstNode;
+	int d = destination - firstNode;
+	if (s < 0 || s >= nodes || d < 0 || d >= nodes)
+	    throw new IllegalArgumentException("packet from "+source+" to "
+					       +destination+" outside of the "
+					       +nodes+" nodes");
+	sourceCycles[s] += Math.max(frameCycles, length) + overheadCycles;
+	destinationFlits[d] += length;
+	++packets;
+    }
+
+    /**
+     * Accounts a queued packet of unknown length.
+     */
+    public void add(int source, int destination)
+    {
+	add(source, destination, maxLength);
+    }
+
+    /**
+     * Forgets the queued packets, for the next batch.
+     */
+    public synchronized void clear()
+    {
+	Arrays.fill(sourceCycles, 0);
+	Arrays.fill(destinationFlits, 0);
+	packets = 0;
+    }
+
+    /**
+     * Returns a copy of the accounting and of the settings.
+     */
+    public synchronized RunLength snapshot()
+    {
+	RunLength copy = new RunLength(nodes);
+	copy.firstNode = firstNode;
+	copy.clockNanos = clockNanos;
+	copy.resetNanos = resetNanos;
+	copy.frameCycles = frameCycles;
+	copy.overheadCycles = overheadCycles;
+	copy.maxLength = maxLength;
+	copy.hops = hops;
+	copy.hopNanos = hopNanos;
+	copy.marginPercent = marginPercent;
+	System.arraycopy(sourceCycles, 0, copy.sourceCycles, 0, nodes);
+	System.arraycopy(destinationFlits, 0, copy.destinationFlits, 0, nodes);
+	copy.packets = packets;
+	return copy;
+    }
+
+    /**
+     * Forgets the packets accounted by a snapshot, keeping those queued
+     * since.
+     */
+    public void subtract(RunLength batch)
+    {
+	long[] cycles, flits;
+	long count;
+	synchronized (batch) {
+	    cycles = batch.sourceCycles.clone();
+	    flits = batch.destinationFlits.clone();
+	    count = batch.packets;
+	}
+	synchronized (this) {
+	    for (int n=0; n<nodes; ++n) {
+		sourceCycles[n] -= cycles[n];
+		destinationFlits[n] -= flits[n];
+	    }
+	    packets -= count;
+	}
+    }
+
+    /**
+     * Returns the number of queued packets.
+     */
+    public synchronized long getPackets() { return packets; }
+
+    /**
+     * Returns the simulated time the batch needs, in whole nanoseconds.
+     */
+    public synchronized long nanos()
+    {
+	long cycles = 0;
+	for (int n=0; n<nodes; ++n) {
+	    cycles = Math.max(cycles, sourceCycles[n]);
+	    cycles = Math.max(cycles, destinationFlits[n]);
+	}
+	if (packets == 0) return resetNanos;
+	double busy = cycles * clockNanos + hops * hopNanos;
+	busy += busy * marginPercent / 100;
+	return resetNanos + (long)Math.ceil(busy);
+    }
+
+    /**
+     * Returns when the testbench sends a packet of unknown length in the
+     * batch, one frame after the previous packet of its source.
+     * @param previous the number of packets of the source before it.
+     * @return the simulated time, in whole nanoseconds.
+     */
+    public long sendNanos(int previous)
+    {
+	long cycles = (long)previous
+	    * (Math.max(frameCycles, maxLength) + overheadCycles);
+	return resetNanos + (long)Math.ceil(cycles * clockNanos);
+    }
+
+    /**
+     * Returns the simulator command running the batch.
+     */
+    public String runCommand() { return "run "+nanos()+" ns"; }
+
+    /**
+     * Returns a Tcl loop running the batch in steps until the output file
+     * reports every queued packet, or the bound is reached.
+     * @param outputFile the file the testbench writes the received packets
+     * to, e.g. outputfile.txt.
+     * @param stepNanos the simulated time between two checks.
+     */
+    public synchronized List<String> runUntilIdle(String outputFile,
+					       long stepNanos)
+    {
+	List<String> tcl = new ArrayList<String>();
+	tcl.add("set expected "+packets);
+	tcl.add("set limit "+nanos());
+	tcl.add("set elapsed 0");
+	tcl.add("while {$elapsed < $limit} {");
+	tcl.add("    run "+stepNanos+" ns");
+	tcl.add("    incr elapsed "+stepNanos);
+	tcl.add("    if {[file exists "+outputFile+"]} {");
+	tcl.add("        set f [open "+outputFile+" r]");
+	tcl.add("        set received [regexp -all {Packet received} [read $f]]");
+	tcl.add("        close $f");
+	tcl.add("        if {$received >= $expected} break");
+	tcl.add("    }");
+	tcl.add("}");
+	return tcl;
+    }
+
+    /**
+     * Copies a simulation script, its run commands replaced by the run of
+     * the batch.
+     * @param outputFile the output file checked by a run-until-idle loop,
+     * null for a single run of the bound.
+     */
+    public void rewrite(File script, File out, String outputFile,
+			long stepNanos)
+	throws IOException
+    {
+	List<String> lines = new ArrayList<String>();
+	BufferedReader in = new BufferedReader(new FileReader(script));
+	try {
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		String[] words = line.trim().split("\\s+");
+		if (!"run".equals(words[0])) lines.add(line);
+		else if (outputFile == null) lines.add(runCommand());
+		else lines.addAll(runUntilIdle(outputFile, stepNanos));
+	    }
+	} finally {
+	    in.close();
+	}
+	PrintWriter w = new PrintWriter(new FileWriter(out));
+	try {
+	    for (String l : lines) w.println(l);
+	} finally {
+	    w.close();
+	}
+    }
+}
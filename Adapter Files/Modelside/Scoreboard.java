@@ -0,0 +1,299 @@
+package com.uppaal.chiporiginal;
+
+import java.io.IOException;
+
+/**
+ * Matches the packets injected into the network with the packets the
+ * testbench reports as received.
+ *<p>
+ * Packets are keyed by (source, destination, id) in an open-addressing
+ * hash table of parallel primitive arrays, so injecting and matching a
+ * packet is a probe of a few slots and boxes nothing. Since identifiers are
+ * reused (the header flit has 8 bits of them) the number of keys is bounded
+ * and entries are never removed: each one holds the state of the last
+ * packet injected with its key. A packet is declared lost when its key is
+ * injected again before it was received, when it was injected before the
+ * time given to expire(), or at finish().
+ *<p>
+ * Verdicts are counted and, if a listener is set, reported as they happen.
+ * If a PacketStore is set, every injected and received packet is appended
+ * to it for post-run analysis.
+ */
+public class Scoreboard
+{
+    private static final long EMPTY = -1;
+    private static final byte OUTSTANDING = 1;
+    private static final byte RECEIVED = 2;
+    private static final byte LOST = 3;
+    private static final int BITS = 21; // per key field
+
+    private ScoreboardListener listener = null;
+    private PacketStore store = null;
+    private final PacketRecord sent = new PacketRecord(); // for the store
+    private long[] keys;
+    private long[] injectedAt;
+    private byte[] states;
+    private int size = 0;
+    private int[] lastId = new int[0]; // per source, for inject(s,d,time)
+
+    private long injected = 0;
+    private long matched = 0;
+    private long lost = 0;
+    private long late = 0;
+    private long duplicated = 0;
+    private long misrouted = 0;
+    private long unexpected = 0;
+    private long unidentified = 0;
+    private long latencySum = 0;
+    private long latencyMin = Long.MAX_VALUE;
+    private long latencyMax = Long.MIN_VALUE;
+
+    /**
+     * Creates an empty scoreboard.
+     * @param capacity the expected number of distinct keys, e.g. nodes *
+     * nodes * PacketStatistics.ID_MODULUS.
+     */
+    public Scoreboard(int capacity)
+    {
+	int slots = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) << 1;
+	keys = new long[slots];
+	java.util.Arrays.fill(keys, EMPTY);
+	injectedAt = new long[slots];
+	states = new byte[slots];
+    }
+
+    public synchronized void setListener(ScoreboardListener listener)
+    {
+	this.listener = listener;
+    }
+
+    /**
+     * Sets the store of the injected and received packets, null for none.
+     */
+    public synchronized void setStore(PacketStore store)
+    {
+	this.store = store;
+    }
+
+    /**
+     * Records a packet entering the network, numbered as the testbench
+     * generator of the source does: its counter is shared by all the
+     * destinations and incremented before use, so the first packet of a
+     * source is 1, and wraps at PacketStatistics.ID_MODULUS.
+     * @param time the injection time, in femtoseconds.
+     * @return the identifier.
+     */
+    public synchronized int inject(int source, int destination, long time)
+	throws IOException
+    {
+	if (source < 0)
+	    throw new IllegalArgumentException("source out of range: "+source);
+	if (source >= lastId.length)
+	    lastId = java.util.Arrays.copyOf(lastId, Math.max(source + 1,
+							      2 * lastId.length));
+	int id = (lastId[source] + 1) % PacketStatistics.ID_MODULUS;
+	lastId[source] = id;
+	inject(source, destination, id, time);
+	return id;
+    }
+
+    /**
+     * Records a packet entering the network.
+     * @param time the injection time, in femtoseconds.
+     */
+    public synchronized void inject(int source, int destination, int id,
+				    long time)
+	throws IOException
+    {
+	if (store != null) {
+	    sent.time = time;
+	    sent.source = source;
+	    sent.destination = destination;
+	    sent.id = id;
+	    sent.length = sent.actualLength = 0;
+	    store.append(sent, PacketStore.SENT);
+	}
+	long key = key(source, destination, id);
+	int slot = find(key);
+	if (keys[slot] == EMPTY) {
+	    keys[slot] = key;
+	    if (++size * 2 > keys.length) slot = grow(key);
+	} else if (states[slot] == OUTSTANDING) {
+	    lose(slot); // its identifier comes around again
+	}
+	injectedAt[slot] = time;
+	states[slot] = OUTSTANDING;
+	++injected;
+    }
+
+    /**
+     * Matches a received packet.
+     * @param node the node which received the packet, -1 if not known.
+     */
+    public synchronized void receive(PacketRecord r, int node)
+	throws IOException
+    {
+	if (store != null) store.append(r, PacketStore.RECEIVED);
+	if (r.id < 0) { // a transcript note, cannot be keyed
+	    ++unidentified;
+	    return;
+	}
+	int slot = find(key(r.source, r.destination, r.id));
+	if (keys[slot] == EMPTY) {
+	    ++unexpected;
+	    if (listener != null)
+		listener.unexpected(r.source, r.destination, r.id, r.time);
+	    return;
+	}
+	if (node >= 0 && node != r.destination) {
+	    ++misrouted;
+	    if (listener != null)
+		listener.misrouted(r.source, r.destination, r.id, node,
+				   r.time);
+	}
+	if (states[slot] == RECEIVED) {
+	    ++duplicated;
+	    if (listener != null)
+		listener.duplicated(r.source, r.destination, r.id, r.time);
+	    return;
+	}
+	if (states[slot] == LOST) ++late;
+	states[slot] = RECEIVED;
+	long latency = r.time - injectedAt[slot];
+	++matched;
+	latencySum += latency;
+	if (latency < latencyMin) latencyMin = latency;
+	if (latency > latencyMax) latencyMax = latency;
+	if (listener != null)
+	    listener.matched(r.source, r.destination, r.id, latency);
+    }
+
+    /**
+     * Declares lost the outstanding packets injected before the time.
+     * @param before the oldest injection time still waited for.
+     * @return the number of packets declared lost.
+     */
+    public synchronized int expire(long before)
+    {
+	int count = 0;
+	for (int slot=0; slot<keys.length; ++slot)
+	    if (states[slot] == OUTSTANDING && injectedAt[slot] < before) {
+		lose(slot);
+		++count;
+	    }
+	return count;
+    }
+
+    /**
+     * Declares lost all outstanding packets, at the end of a run.
+     */
+    public synchronized int finish()
+    {
+	return expire(Long.MAX_VALUE);
+    }
+
+    public synchronized long getInjected() { return injected; }
+
+    public synchronized long getMatched() { return matched; }
+
+    public synchronized long getLost() { return lost; }
+
+    /**
+     * Returns the number of packets received after they were declared lost.
+     */
+    public synchronized long getLate() { return late; }
+
+    public synchronized long getDuplicated() { return duplicated; }
+
+    public synchronized long getMisrouted() { return misrouted; }
+
+    public synchronized long getUnexpected() { return unexpected; }
+
+    /**
+     * Returns the number of received packets without identifier.
+     */
+    public synchronized long getUnidentified() { return unidentified; }
+
+    /**
+     * Returns the number of injected packets neither received nor lost.
+     */
+    public synchronized long getOutstanding()
+    {
+	return injected - matched + late - lost;
+    }
+
+    /**
+     * Returns the mean latency of the matched packets, in femtoseconds.
+     */
+    public synchronized long getLatencyMean()
+    {
+	return (matched == 0) ? 0 : latencySum / matched;
+    }
+
+    public synchronized long getLatencyMin()
+    {
+	return (matched == 0) ? 0 : latencyMin;
+    }
+
+    public synchronized long getLatencyMax()
+    {
+	return (matched == 0) ? 0 : latencyMax;
+    }
+
+    private void lose(int slot)
+    {
+	states[slot] = LOST;
+	++lost;
+	if (listener != null) {
+	    long key = keys[slot];
+	    int mask = (1 << BITS) - 1;
+	    listener.lost((int)(key >>> (2 * BITS)),
+			  (int)(key >>> BITS) & mask, (int)key & mask,
+			  injectedAt[slot]);
+	}
+    }
+
+    private static long key(int source, int destination, int id)
+    {
+	if (((source | destination | id) >>> BITS) != 0)
+	    throw new IllegalArgumentException("key out of range: "+source
+					       +","+destination+","+id);
+	return ((long)source << (2 * BITS)) | ((long)destination << BITS)
+	    | id;
+    }
+
+    /**
+     * Returns the slot of the key, or the empty slot ending its probe.
+     */
+    private int find(long key)
+    {
+	int mask = keys.length - 1;
+	int slot = (int)((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+	while (keys[slot] != EMPTY && keys[slot] != key)
+	    slot = (slot + 1) & mask;
+	return slot;
+    }
+
+    /**
+     * Doubles the table.
+     * @return the new slot of the key.
+     */
+    private int grow(long key)
+    {
+	long[] oldKeys = keys;
+	long[] oldInjected = injectedAt;
+	byte[] oldStates = states;
+	keys = new long[oldKeys.length * 2];
+	java.util.Arrays.fill(keys, EMPTY);
+	injectedAt = new long[keys.length];
+	states = new byte[keys.length];
+	for (int i=0; i<oldKeys.length; ++i)
+	    if (oldKeys[i] != EMPTY) {
+		int slot = find(oldKeys[i]);
+		keys[slot] = oldKeys[i];
+		injectedAt[slot] = oldInjected[i];
+		states[slot] = oldStates[i];
+	    }
+	return find(key);
+    }
+}
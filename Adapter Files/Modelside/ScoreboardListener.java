@@ -0,0 +1,36 @@
+package com.uppaal.chiporiginal;
+
+/**
+ * Receives the verdicts of a Scoreboard as packets are injected and
+ * received. Times are in femtoseconds of simulation.
+ */
+public interface ScoreboardListener
+{
+    /**
+     * An injected packet was received, possibly after it was declared
+     * lost.
+     */
+    public void matched(int source, int destination, int id, long latency);
+
+    /**
+     * An injected packet was not received in time, or its identifier was
+     * injected again before it was.
+     */
+    public void lost(int source, int destination, int id, long injected);
+
+    /**
+     * A packet was received again.
+     */
+    public void duplicated(int source, int destination, int id, long time);
+
+    /**
+     * A packet was received by another node than its destination.
+     */
+    public void misrouted(int source, int destination, int id, int node,
+			  long time);
+
+    /**
+     * A packet which was never injected was received.
+     */
+    public void unexpected(int source, int destination, int id, long time);
+}
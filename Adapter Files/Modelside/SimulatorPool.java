@@ -0,0 +1,315 @@
+package com.uppaal.chiporiginal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of simulator processes running stimulus batches (or mutants)
+ * in parallel.
+ *<p>
+ * Each worker owns a scratch directory, reused from job to job: the inputs
+ * of a job are written into it, the simulator is started in it with
+ * ProcessBuilder, and its standard output and its transcript file are
+ * streamed line by line to the listener of the job while it runs. A job
+ * running longer than its timeout is killed. submit() returns a future of
+ * the result; the listener is told of the end while the scratch directory
+ * still holds the outputs of the job. A killed simulator is killed with the
+ * processes it started (vsim runs vsimk).
+ *<p>
+ * The command is any executable, e.g. "vsim -c -do simulate.do" or a
+ * FakeSimulator standing in for it.
+ */
+public class SimulatorPool
+{
+    /**
+     * Receives the output of the jobs, called from the pool threads.
+     */
+    public interface Listener
+    {
+	public void stdout(Job job, String line);
+
+	public void transcript(Job job, String line);
+
+	/**
+	 * The job ended, the outputs can be read from its directory until
+	 * the call returns.
+	 */
+	public void finished(Job job, Result result) throws IOException;
+    }
+
+    /**
+     * A simulation to run: the input files to write into the scratch
+     * directory and the arguments added to the command.
+     */
+    public static class Job
+    {
+	private final String name;
+	private final Map<String, byte[]> inputs =
+	    new LinkedHashMap<String, byte[]>();
+	private final Map<String, File> copies = new LinkedHashMap<String, File>();
+	private final List<String> arguments = new ArrayList<String>();
+	private Listener listener = null;
+	private long timeoutMillis = -1;
+
+	public Job(String name) { this.name = name; }
+
+	public String getName() { return name; }
+
+	/**
+	 * Adds a file written into the scratch directory.
+	 */
+	public Job addInput(String file, byte[] content)
+	{
+	    inputs.put(file, content);
+	    return this;
+	}
+
+	/**
+	 * Adds a file copied into the scratch directory.
+	 */
+	public Job addInput(String file, File source)
+	{
+	    copies.put(file, source);
+	    return this;
+	}
+
+	public Job addArguments(String... args)
+	{
+	    arguments.addAll(Arrays.asList(args));
+	    return this;
+	}
+
+	public Job setListener(Listener listener)
+	{
+	    this.listener = listener;
+	    return this;
+	}
+
+	/**
+	 * Sets the timeout of the job, instead of the one of the pool.
+	 */
+	public Job setTimeout(long millis)
+	{
+	    timeoutMillis = millis;
+	    return this;
+	}
+
+	public String toString() { return name; }
+    }
+
+    /**
+     * The outcome of a job.
+     */
+    public static class Result
+    {
+	public final Job job;
+	/** The scratch directory, reused once the job is finished. */
+	public final File directory;
+	/** The exit status, -1 if killed. */
+	public final int status;
+	public final boolean timedOut;
+	public final long elapsedMillis;
+
+	Result(Job job, File directory, int status, boolean timedOut,
+	       long elapsedMillis)
+	{
+	    this.job = job;
+	    this.directory = directory;
+	    this.status = status;
+	    this.timedOut = timedOut;
+	    this.elapsedMillis = elapsedMillis;
+	}
+
+	public String toString()
+	{
+	    return job+": "+(timedOut ? "timed out" : "exit "+status)+" after "
+		+elapsedMillis+" ms";
+	}
+    }
+
+    private static final long POLL = 20; // ms between transcript reads
+
+    private final List<String> command;
+    private final String transcript;
+    private final long timeoutMillis;
+    private final BlockingQueue<File> directories;
+    private final ExecutorService executor;
+
+    /**
+     * Creates the pool and its scratch directories.
+     * @param command the simulator executable and its arguments.
+     * @param transcript the name of the transcript file the simulator
+     * writes in its directory, null for none.
+     * @param scratch the directory of the scratch directories.
+     * @param workers the number of simultaneous simulations.
+     * @param timeoutMillis the time allowed per job.
+     */
+    public SimulatorPool(List<String> command, String transcript,
+			 File scratch, int workers, long timeoutMillis)
+	throws IOException
+    {
+	this.command = new ArrayList<String>(command);
+	this.transcript = transcript;
+	this.timeoutMillis = timeoutMillis;
+	directories = new ArrayBlockingQueue<File>(workers);
+	for (int i=0; i<workers; ++i) {
+	    File dir = new File(scratch, "worker"+i);
+	    if (!dir.isDirectory() && !dir.mkdirs())
+		throw new IOException("cannot create "+dir);
+	    directories.add(dir);
+	}
+	executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+		private int count = 0;
+		public synchronized Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, "SimulatorPool-"+(count++));
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+    }
+
+    /**
+     * Creates a pool of ModelSim in batch mode, running simulate.do.
+     */
+    public static SimulatorPool modelSim(File scratch, int workers,
+					 long timeoutMillis)
+	throws IOException
+    {
+	return new SimulatorPool(Arrays.asList("vsim", "-c", "-do",
+					       "do simulate.do; quit -f"),
+				 "transcript", scratch, workers,
+				 timeoutMillis);
+    }
+
+    /**
+     * Queues the job.
+     */
+    public Future<Result> submit(final Job job)
+    {
+	return executor.submit(new Callable<Result>() {
+		public Result call() throws Exception {
+		    File dir = directories.take();
+		    try { return run(job, dir); }
+		    finally { directories.put(dir); }
+		}
+	    });
+    }
+
+    /**
+     * Stops accepting jobs, the queued ones still run.
+     */
+    public void shutdown() { executor.shutdown(); }
+
+    public boolean awaitTermination(long millis) throws InterruptedException
+    {
+	return executor.awaitTermination(millis, TimeUnit.MILLISECONDS);
+    }
+
+    private Result run(final Job job, File dir)
+	throws IOException, InterruptedException
+    {
+	for (Map.Entry<String, byte[]> e : job.inputs.entrySet()) {
+	    FileOutputStream out =
+		new FileOutputStream(new File(dir, e.getKey()));
+	    try { out.write(e.getValue()); }
+	    finally { out.close(); }
+	}
+	for (Map.Entry<String, File> e : job.copies.entrySet())
+	    Files.copy(e.getValue().toPath(),
+		       new File(dir, e.getKey()).toPath(),
+		       StandardCopyOption.REPLACE_EXISTING);
+	OutputTail log = null;
+	if (transcript != null) {
+	    File f = new File(dir, transcript);
+	    f.delete(); // of the previous job
+	    log = new OutputTail(f.getPath(), lines(job), 64 * 1024);
+	}
+	List<String> cmd = new ArrayList<String>(command);
+	cmd.addAll(job.arguments);
+	ProcessBuilder pb = new ProcessBuilder(cmd);
+	pb.directory(dir);
+	pb.redirectErrorStream(true);
+	long start = System.nanoTime();
+	final Process p = pb.start();
+	p.getOutputStream().close(); // batch mode, no commands
+	Thread pump = new Thread("SimulatorPool-stdout") {
+		public void run() {
+		    try {
+			BufferedReader r = new BufferedReader
+			    (new InputStreamReader(p.getInputStream()));
+			String line;
+			while ((line = r.readLine()) != null)
+			    if (job.listener != null)
+				job.listener.stdout(job, line);
+		    } catch (IOException e) {} // killed
+		}
+	    };
+	pump.setDaemon(true);
+	pump.start();
+	long timeout = (job.timeoutMillis >= 0) ? job.timeoutMillis
+	    : timeoutMillis;
+	long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+	boolean timedOut = false;
+	try {
+	    while (!p.waitFor(POLL, TimeUnit.MILLISECONDS)) {
+		if (log != null) log.poll();
+		if (System.nanoTime() - deadline > 0) {
+		    timedOut = true;
+		    SimulatorSession.kill(p);
+		    p.waitFor();
+		    break;
+		}
+	    }
+	} finally {
+	    if (p.isAlive()) SimulatorSession.kill(p); // interrupted
+	}
+	pump.join(1000);
+	if (log != null) {
+	    log.poll();
+	    log.close();
+	}
+	long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	Result result = new Result(job, dir, timedOut ? -1 : p.exitValue(),
+				   timedOut, elapsed);
+	if (job.listener != null) job.listener.finished(job, result);
+	return result;
+    }
+
+    /**
+     * Returns the receiver of the transcript lines of the job.
+     */
+    private static OutputTail.LineListener lines(final Job job)
+    {
+	return new OutputTail.LineListener() {
+		public boolean line(ByteBuffer b, int start, int end) {
+		    if (job.listener == null) return false;
+		    StringBuilder text = new StringBuilder(end - start);
+		    for (int i=start; i<end; ++i)
+			text.append((char)(b.get(i) & 0xff));
+		    job.listener.transcript(job, text.toString());
+		    return true;
+		}
+
+		public void restarted() {} // the lines were delivered
+	    };
+    }
+}
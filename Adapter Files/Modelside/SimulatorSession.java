@@ -0,0 +1,336 @@
+package com.uppaal.chiporiginal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived simulator session: the simulator is started once in command
+ * line mode, the design compiled and elaborated once, and each stimulus
+ * batch is then pushed through the open command pipe (force, restart, run),
+ * instead of launching the simulator with simulate.do for every run.
+ *<p>
+ * A batch of commands is followed by an echo of a numbered marker, the
+ * batch is complete when the simulator prints the marker back, so no
+ * polling or fixed delay is involved. Before hooks are called ahead of
+ * each run to write the new stimulus files (the testbench reopens them on
+ * restart), after hooks once the run is complete to read the results
+ * incrementally (e.g. with an OutputTail).
+ *<p>
+ * The simulator output is scanned for "** Error" lines, counted per batch,
+ * and copied to the transcript stream if one is set.
+ *<p>
+ * A batch not complete within the timeout kills the simulator, with the
+ * processes it started (vsim runs vsimk): its late output would otherwise
+ * be counted against the next batch. The session is then no longer
+ * running, and can be opened again.
+ *
+ *@see FakeSimulator
+ */
+public class SimulatorSession
+{
+    /**
+     * Called around the runs of a session.
+     */
+    public interface Hook
+    {
+	public void call(SimulatorSession session) throws IOException;
+    }
+
+    private static final String MARKER = "@@session-done ";
+
+    private final List<String> command;
+    private final File directory;
+    private final ArrayList<Hook> before = new ArrayList<Hook>();
+    private final ArrayList<Hook> after = new ArrayList<Hook>();
+    private final Object batch = new Object(); // serialises the batches
+    private Process process = null;
+    private Writer input = null;
+    private Thread reader = null;
+    private PrintStream transcript = null;
+    private long timeoutMillis = 60000;
+    private long sent = 0; // last marker sent
+    private long done = 0; // last marker seen
+    private int errors = 0; // in the current batch
+    private boolean eof = false;
+    private long runs = 0;
+
+    /**
+     * Creates a session of the simulator command, not started yet.
+     * @param command the simulator executable and its arguments.
+     * @param directory the working directory of the simulator.
+     */
+    public SimulatorSession(List<String> command, File directory)
+    {
+	this.command = new ArrayList<String>(command);
+	this.directory = directory;
+    }
+
+    /**
+     * Creates a session of ModelSim/QuestaSim in command line mode.
+     */
+    public static SimulatorSession modelSim(File directory)
+    {
+	return new SimulatorSession(Arrays.asList("vsim", "-c"), directory);
+    }
+
+    /**
+     * Sets the stream the simulator output is copied to, null for none.
+     */
+    public synchronized void setTranscript(PrintStream transcript)
+    {
+	this.transcript = transcript;
+    }
+
+    /**
+     * Sets how long a batch may take before the session gives up.
+     */
+    public synchronized void setTimeout(long millis)
+    {
+	timeoutMillis = millis;
+    }
+
+    /**
+     * Adds a hook called before each run, e.g. to flush the stimulus.
+     */
+    public synchronized void addBeforeRun(Hook hook) { before.add(hook); }
+
+    /**
+     * Adds a hook called after each run, e.g. to read the results.
+     */
+    public synchronized void addAfterRun(Hook hook) { after.add(hook); }
+
+    /**
+     * Starts the simulator and executes the setup commands, e.g. the
+     * compilation script and the elaboration of the testbench.
+     * @throws IOException if the simulator cannot be started, fails or
+     * reports errors during the setup.
+     */
+    public void open(List<String> setup) throws IOException
+    {
+	boolean dead;
+	synchronized (this) {
+	    dead = (process != null && eof);
+	}
+	if (dead) close(); // timed out or exited
+	synchronized (this) {
+	    if (process != null)
+		throw new IOException("simulator session already open");
+	    ProcessBuilder pb = new ProcessBuilder(command);
+	    pb.directory(directory);
+	    pb.redirectErrorStream(true);
+	    final Process p = pb.start();
+	    process = p;
+	    input = new OutputStreamWriter(p.getOutputStream());
+	    final BufferedReader output = new BufferedReader
+		(new InputStreamReader(p.getInputStream()));
+	    reader = new Thread("SimulatorSession") {
+		    public void run() { readLoop(p, output); }
+		};
+	    reader.setDaemon(true);
+	    reader.start();
+	}
+	int failures = execute(setup);
+	if (failures > 0)
+	    throw new IOException("simulator setup reported "+failures
+				  +" errors");
+    }
+
+    /**
+     * Sends the commands and waits until the simulator has executed them.
+     * @return the number of errors reported by the simulator.
+     */
+    public int execute(List<String> commands) throws IOException
+    {
+	synchronized (batch) { // the pipe is written without holding this,
+	    long marker;      // the reader needs it while the pipe drains
+	    Writer in;
+	    synchronized (this) {
+		if (process == null || eof)
+		    throw new IOException("simulator session not running");
+		errors = 0;
+		marker = ++sent;
+		in = input;
+	    }
+	    for (String c : commands) {
+		in.write(c);
+		in.write('\n');
+	    }
+	    in.write("echo "+MARKER+marker+"\n");
+	    in.flush();
+	    return await(marker);
+	}
+    }
+
+    private synchronized int await(long marker) throws IOException
+    {
+	long deadline = System.nanoTime()
+	    + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	try {
+	    while (done < marker && !eof) {
+		long left = deadline - System.nanoTime();
+		if (left <= 0) {
+		    eof = true; // dead, its late output is ignored
+		    kill(process);
+		    notifyAll();
+		    throw new IOException("simulator did not complete within "
+					  +timeoutMillis+" ms, killed");
+		}
+		TimeUnit.NANOSECONDS.timedWait(this, left);
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("interrupted while simulating");
+	}
+	if (done < marker) throw new IOException("simulator exited");
+	return errors;
+    }
+
+    public int execute(String... commands) throws IOException
+    {
+	return execute(Arrays.asList(commands));
+    }
+
+    /**
+     * Forces a signal of the design, effective from the next run.
+     */
+    public int force(String signal, String value) throws IOException
+    {
+	return execute("force -freeze "+signal+" "+value);
+    }
+
+    /**
+     * Runs a stimulus batch: the before hooks, then optionally a restart
+     * (the design is reset and its files reopened, without recompiling),
+     * the run itself and the after hooks.
+     * @param nanos the simulated time to run for.
+     * @return the number of errors reported by the simulator.
+     */
+    public int run(long nanos, boolean restart) throws IOException
+    {
+	Hook[] pre, post;
+	synchronized (this) {
+	    pre = before.toArray(new Hook[before.size()]);
+	    post = after.toArray(new Hook[after.size()]);
+	}
+	for (Hook h : pre) h.call(this);
+	int failures = restart
+	    ? execute("restart -f", "run "+nanos+" ns")
+	    : execute("run "+nanos+" ns");
+	synchronized (this) { ++runs; }
+	for (Hook h : post) h.call(this);
+	return failures;
+    }
+
+    /**
+     * Returns the number of runs of the session.
+     */
+    public synchronized long getRuns() { return runs; }
+
+    public synchronized boolean isRunning()
+    {
+	return (process != null && !eof);
+    }
+
+    /**
+     * Quits the simulator, killing it if it does not exit in time; the
+     * processes it started and left are killed as well. The session can
+     * then be opened again.
+     */
+    public void close() throws IOException
+    {
+	Process p;
+	List<ProcessHandle> tree;
+	synchronized (batch) {
+	    synchronized (this) {
+		p = process;
+		if (p == null) return;
+	    }
+	    tree = descendants(p);
+	    try {
+		input.write("quit -f\n");
+		input.flush();
+	    } catch (IOException e) {} // exited already
+	}
+	try {
+	    if (!p.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) kill(p);
+	} catch (InterruptedException e) {
+	    kill(p);
+	    Thread.currentThread().interrupt();
+	}
+	for (ProcessHandle h : tree) h.destroyForcibly(); // if still there
+	synchronized (this) {
+	    try {
+		input.close();
+	    } catch (IOException e) {} // killed already
+	    process = null;
+	    input = null;
+	    reader = null;
+	    sent = 0;
+	    done = 0;
+	    errors = 0;
+	    eof = false;
+	}
+    }
+
+    /**
+     * Kills a process and the processes it started.
+     */
+    static void kill(Process p)
+    {
+	List<ProcessHandle> tree = descendants(p);
+	p.destroyForcibly(); // first, so it starts no more
+	for (ProcessHandle h : tree) h.destroyForcibly();
+    }
+
+    private static List<ProcessHandle> descendants(Process p)
+    {
+	List<ProcessHandle> tree = new ArrayList<ProcessHandle>();
+	Iterator<ProcessHandle> i = p.descendants().iterator();
+	while (i.hasNext()) tree.add(i.next());
+	return tree;
+    }
+
+    /**
+     * Reads the output of the simulator process p, until it exits or is
+     * no longer the process of the session.
+     */
+    private void readLoop(Process p, BufferedReader output)
+    {
+	try {
+	    String line;
+	    while ((line = output.readLine()) != null) {
+		String text = line.startsWith("# ") ? line.substring(2) : line;
+		synchronized (this) {
+		    if (process != p || eof) continue; // dead, drained only
+		    if (text.startsWith(MARKER)) {
+			done = Long.parseLong(text.substring(MARKER.length())
+					      .trim());
+			notifyAll();
+			continue;
+		    }
+		    if (text.startsWith("** Error")) ++errors;
+		    if (transcript != null) transcript.println(line);
+		}
+	    }
+	} catch (IOException e) {
+	    System.err.println("SimulatorSession: "+e);
+	} catch (NumberFormatException e) {
+	    System.err.println("SimulatorSession: bad marker "+e);
+	} finally {
+	    synchronized (this) {
+		if (process == p) eof = true;
+		notifyAll();
+	    }
+	}
+    }
+}
@@ -0,0 +1,359 @@
+package com.uppaal.chiporiginal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Long-lived writer of the ModelSim stimulus file (source,destination CSV
+ * records, the same format as CsvWriter produced).
+ *<p>
+ * The file is kept open, records are encoded straight into a reusable byte
+ * buffer and committed to the file as a group once the buffered data
+ * reaches the size threshold or the oldest buffered record gets older than
+ * the time threshold (checked by a background daemon thread). Call flush()
+ * before the simulator reads the file, e.g. before a simulation run is
+ * triggered.
+ *<p>
+ * With setTestgen(), each record is also encoded by a TestgenEncoder into
+ * the testgen_N.txt file of its source N, read by gen_packet_from_file of
+ * the testbench, the body of the packet being its identifier (numbered per
+ * source from 1 in each batch, as the Scoreboard does, so that a repeated
+ * batch is encoded the same). The testbench reads these files
+ * from the start at each run, so they hold the records of the current
+ * batch only: the lines are kept in memory and the files rewritten by each
+ * flush(), until endBatch() starts the next batch and returns the records
+ * of the batch ended, with a snapshot of their RunLength accounting.
+ *
+ *@see WriteModelSimInput
+ */
+public class StimulusWriter
+{
+    /**
+     * The records of a batch in the order written, the nodes numbered from
+     * 0 as in the testgen files.
+     */
+    public static class Batch
+    {
+	private int[] records = new int[3 * 64]; // source, destination, id
+	private int size = 0;
+	private RunLength runLength = null;
+
+	void add(int source, int destination, int id)
+	{
+	    if (3 * size == records.length)
+		records = java.util.Arrays.copyOf(records, 2 * records.length);
+	    records[3 * size] = source;
+	    records[3 * size + 1] = destination;
+	    records[3 * size + 2] = id;
+	    ++size;
+	}
+
+	public int size() { return size; }
+
+	/**
+	 * Returns the accounting of the records of the batch, null if the
+	 * writer had no RunLength.
+	 */
+	public RunLength getRunLength() { return runLength; }
+
+	public int getSource(int index) { return records[3 * check(index)]; }
+
+	public int getDestination(int index)
+	{
+	    return records[3 * check(index) + 1];
+	}
+
+	/**
+	 * Returns the packet identifier, the body of its testgen line.
+	 */
+	public int getId(int index) { return records[3 * check(index) + 2]; }
+
+	private int check(int index)
+	{
+	    if (index < 0 || index >= size)
+		throw new IndexOutOfBoundsException("record "+index+" of "
+						    +size);
+	    return index;
+	}
+    }
+
+    /**
+     * The stimulus file read by the simulation.
+     */
+    public static final String FILE = "modelSim.csv";
+
+    private static final byte[] HEADER = "Source,Destination\r\n".getBytes();
+    // the longest record: two signed 10-digit ints, a comma and CR LF
+    private static final int RECORD_MAX = 25;
+
+    private static StimulusWriter shared = null;
+
+    private final FileOutputStream stream;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int commitBytes;
+    private final long commitNanos;
+    private long oldest = -1; // nanoTime of the oldest buffered record
+    private boolean open = true;
+    private long records = 0;
+    private long commits = 0;
+    private RunLength runLength = null;
+    private File testgenDirectory = null;
+    private int firstNode = 0;
+    private TestgenEncoder encoder = null;
+    private ByteBuffer[] testgen = null; // lines of the batch, per source
+    private int[] lastId = null; // per source
+    private Batch batch = new Batch(); // the records since endBatch()
+    private boolean testgenDirty = false;
+
+    /**
+     * Opens the file for appending, the header is written if the file is
+     * empty.
+     * @param path the file name.
+     * @param commitBytes the amount of buffered data to commit at.
+     * @param commitMillis the maximum time a record stays buffered.
+     */
+    public StimulusWriter(String path, int commitBytes, long commitMillis)
+	throws IOException
+    {
+	stream = new FileOutputStream(new File(path), true);
+	channel = stream.getChannel();
+	this.commitBytes = Math.max(commitBytes, RECORD_MAX);
+	commitNanos = commitMillis * 1000000L;
+	buffer = ByteBuffer.allocateDirect(this.commitBytes + RECORD_MAX);
+	if (channel.size() == 0) buffer.put(HEADER);
+	Thread committer = new Thread("StimulusWriter") {
+		public void run() { commitLoop(); }
+	    };
+	committer.setDaemon(true);
+	committer.start();
+    }
+
+    /**
+     * Returns the writer of FILE shared by the process (64KiB or 50ms
+     * thresholds), flushed at exit.
+     */
+    public static synchronized StimulusWriter getShared() throws IOException
+    {
+	if (shared == null) {
+	    shared = new StimulusWriter(FILE, 64 * 1024, 50);
+	    Runtime.getRuntime().addShutdownHook(new Thread() {
+		    public void run() {
+			try { shared.close(); }
+			catch (IOException e) { e.printStackTrace(); }
+		    }
+		});
+	}
+	return shared;
+    }
+
+    /**
+     * Appends a record, committed later.
+     * @throws IllegalArgumentException if the run length refuses the
+     * nodes, nothing is written then.
+     */
+    public synchronized void write(int source, int destination)
+	throws IOException
+    {
+	if (!open) throw new IOException("stimulus writer is closed");
+	if (testgen != null) {
+	    int s = source - firstNode, d = destination - firstNode;
+	    if (s < 0 || s >= testgen.length || d < 0 || d >= testgen.length)
+		throw new IllegalArgumentException("packet from "+source+" to "
+						   +destination+" outside of"
+						   +" the "+testgen.length
+						   +" nodes");
+	}
+	if (runLength != null) runLength.add(source, destination);
+	if (testgen != null) encode(source - firstNode, destination - firstNode);
+	putInt(source);
+	buffer.put((byte)',');
+	putInt(destination);
+	buffer.put((byte)'\r');
+	buffer.put((byte)'\n');
+	++records;
+	if (buffer.position() >= commitBytes) commit();
+	else if (oldest < 0) {
+	    oldest = System.nanoTime();
+	    notifyAll(); // start the time threshold
+	}
+    }
+
+    /**
+     * Commits all buffered records to the file, a barrier before the file
+     * is read by the simulator.
+     */
+    public synchronized void flush() throws IOException
+    {
+	commit();
+	writeTestgen();
+    }
+
+    /**
+     * Flushes the records and starts the next batch: the testgen files
+     * keep the records of the batch ended until a flush() after new
+     * records, so flush only between the runs of the testbench.
+     * @return the records of the batch ended, none without setTestgen().
+     */
+    public synchronized Batch endBatch() throws IOException
+    {
+	flush();
+	if (testgen != null)
+	    for (ByteBuffer b : testgen) b.clear();
+	Batch ended = batch;
+	batch = new Batch();
+	if (lastId != null) java.util.Arrays.fill(lastId, 0);
+	if (runLength != null) { // the records written later are not counted
+	    ended.runLength = runLength.snapshot();
+	    runLength.subtract(ended.runLength);
+	}
+	return ended;
+    }
+
+    /**
+     * Commits the buffered records and closes the file.
+     */
+    public synchronized void close() throws IOException
+    {
+	if (!open) return;
+	try { commit(); }
+	finally {
+	    open = false;
+	    notifyAll();
+	    stream.close();
+	}
+    }
+
+    /**
+     * Sets the run length accounting the records written, null for none.
+     */
+    public synchronized void setRunLength(RunLength runLength)
+    {
+	this.runLength = runLength;
+    }
+
+    /**
+     * Sets the directory of the testgen_N.txt files of the testbench, null
+     * for none; the files of all nodes are written by the next flush().
+     * @param nodes the number of network nodes.
+     * @param firstNode the number of the first node in the records, e.g. 1.
+     */
+    public synchronized void setTestgen(File directory, int nodes,
+					int firstNode)
+    {
+	testgenDirectory = directory;
+	if (directory == null) {
+	    testgen = null;
+	    return;
+	}
+	this.firstNode = firstNode;
+	// the 62 characters of the 2x2 testbench, wider node fields beyond
+	int bits = Math.max(2, 32 - Integer.numberOfLeadingZeros(nodes - 1));
+	encoder = new TestgenEncoder(bits, bits, 29, 29);
+	testgen = new ByteBuffer[nodes];
+	for (int i=0; i<nodes; ++i)
+	    testgen[i] = ByteBuffer.allocate(64 * encoder.lineLength());
+	lastId = new int[nodes];
+	testgenDirty = true;
+    }
+
+    /**
+     * Returns the testgen file of a node, numbered from 0.
+     */
+    public static File testgenFile(File directory, int node)
+    {
+	return new File(directory, "testgen_"+node+".txt");
+    }
+
+    /**
+     * Returns the number of records written.
+     */
+    public synchronized long getRecords() { return records; }
+
+    /**
+     * Returns the number of group commits to the file.
+     */
+    public synchronized long getCommits() { return commits; }
+
+    private void commit() throws IOException
+    {
+	oldest = -1;
+	if (buffer.position() == 0) return;
+	buffer.flip();
+	while (buffer.hasRemaining()) channel.write(buffer);
+	buffer.clear();
+	++commits;
+    }
+
+    private void encode(int source, int destination)
+    {
+	ByteBuffer b = testgen[source];
+	if (b.remaining() < encoder.lineLength()) {
+	    ByteBuffer bigger = ByteBuffer.allocate(b.capacity() * 2);
+	    b.flip();
+	    bigger.put(b);
+	    b = testgen[source] = bigger;
+	}
+	int id = (lastId[source] + 1) % PacketStatistics.ID_MODULUS;
+	lastId[source] = id;
+	encoder.encode(source, destination, id, 0, b);
+	batch.add(source, destination, id);
+	testgenDirty = true;
+    }
+
+    /**
+     * Rewrites the testgen files with the lines of the batch, if changed.
+     */
+    private void writeTestgen() throws IOException
+    {
+	if (testgen == null || !testgenDirty) return;
+	for (int i=0; i<testgen.length; ++i) {
+	    FileOutputStream out =
+		new FileOutputStream(testgenFile(testgenDirectory, i));
+	    try {
+		ByteBuffer b = testgen[i].duplicate();
+		b.flip();
+		FileChannel c = out.getChannel();
+		while (b.hasRemaining()) c.write(b);
+	    } finally {
+		out.close();
+	    }
+	}
+	testgenDirty = false;
+    }
+
+    private synchronized void commitLoop()
+    {
+	while (open) try {
+	    if (oldest < 0) wait();
+	    else {
+		long left = oldest + commitNanos - System.nanoTime();
+		if (left > 0) wait(left / 1000000, (int)(left % 1000000));
+		else commit();
+	    }
+	} catch (InterruptedException e) {
+	    return;
+	} catch (IOException e) {
+	    System.err.println("StimulusWriter: "+e);
+	    oldest = -1;
+	}
+    }
+
+    private void putInt(int v)
+    {
+	if (v < 0) {
+	    buffer.put((byte)'-');
+	    if (v == Integer.MIN_VALUE) { // cannot be negated
+		buffer.put((byte)'2');
+		v = -147483648;
+	    }
+	    v = -v;
+	}
+	int div = 1;
+	while (div <= v / 10) div *= 10;
+	for (; div > 0; div /= 10) buffer.put((byte)('0' + v / div % 10));
+    }
+}
@@ -3,6 +3,7 @@ package com.uppaal.chiporiginal;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.Condition;
@@ -30,25 +31,18 @@ public class TestIOHandler extends VirtualThread
      */
     public static boolean DBG = (System.getenv("DEBUG_LC")!=null);
 
-    Lock lock = null;
+    VirtualLock lock = null;
     Condition cond = null;
-    LinkedList<Integer> inputBuffer = new LinkedList<Integer>();
+    // inputs from perform() to the input thread:
+    InputRing inputs = new InputRing(1024, 4);
+    // inputs not fitting the ring: {chan, params...}
+    ConcurrentLinkedQueue<int[]> overflow = new ConcurrentLinkedQueue<int[]>();
+    volatile boolean waiting = false; // input thread waits for inputs
     LinkedList<Integer> outputBuffer = new LinkedList<Integer>();
 
-    ArrayList<Integer> channelVariable = new ArrayList<Integer>();
     ArrayList<Integer> outputChannelVariable = new ArrayList<Integer>();
 
-    int myInput1 = 0;  // channel identifier for MyInput1
-    int myInput2 = 0;// channel identifier for MyInput2
-    int myInput3 = 0;  // channel identifier for MyInput1
-    int myInput4 = 0;// channel identifier for MyInput2
-    
-    
-    int myOutput1 = 0; // channel identifier for MyOutput
-    int myOutput2 = 0; // channel identifier for MyOutput
-    int myOutput3 = 0; // channel identifier for MyOutput
-    int myOutput4 = 0; // channel identifier for MyOutput
-    int destinationNode=0;
+    ChannelRegistry channels; // input and output channel per node
     int outputSource=0;
     int UNKNOWN=0000;
     int[] outModelvalue = new int[1]; // array of one for level value passing.
@@ -58,12 +52,22 @@ public class TestIOHandler extends VirtualThread
     ChipInterface chip = null;
 
     /**
-     * @param lamp object to receive inputs as method calls.
+     * @param chip object to receive inputs as method calls.
      */
     public TestIOHandler(ChipInterface chip)
+    {
+	this(chip, ChannelRegistry.forNodes(4));
+    }
+
+    /**
+     * @param chip object to receive inputs as method calls.
+     * @param channels the channels of the network nodes.
+     */
+    public TestIOHandler(ChipInterface chip, ChannelRegistry channels)
     {
 	super("TestInput");
 	this.chip = chip;
+	this.channels = channels;
 	start();
 	if (DBG) System.err.println("IOHandler: wait for thread to start");
 	synchronized (this) {
@@ -83,28 +87,8 @@ public class TestIOHandler extends VirtualThread
     public void configure(Reporter reporter)
 	throws TronException, IOException
     {
-	myInput1 = reporter.addInput("i_ch_i1");
-	myInput2 = reporter.addInput("i_ch_i2");
-	myInput3 = reporter.addInput("i_ch_i3");
-	myInput4 = reporter.addInput("i_ch_i4");	
-	
-	
-	myOutput1 = reporter.addOutput("o_ch_o1");
-	myOutput2 = reporter.addOutput("o_ch_o2");
-	myOutput3 = reporter.addOutput("o_ch_o3");
-	myOutput4 = reporter.addOutput("o_ch_o4");
-	
-	// Router 1 can forward packet to router 2,3,4. 
-	reporter.addVarToInput(myInput1, "i1_Val");	
-	reporter.addVarToInput(myInput2, "i2_Val");
-	reporter.addVarToInput(myInput3, "i3_Val");
-	reporter.addVarToInput(myInput4, "i4_Val");
-	
-	reporter.addVarToOutput(myOutput1, "rcv_Val1");
-	reporter.addVarToOutput(myOutput2, "rcv_Val2");
-	reporter.addVarToOutput(myOutput3, "rcv_Val3");
-	reporter.addVarToOutput(myOutput4, "rcv_Val4");
-	
+	// Router N can forward packet to any other router.
+	channels.configure(reporter);
 
 	reporter.setTimeUnit(1000);
 	reporter.setTimeout(1000000);
@@ -125,59 +109,71 @@ public class TestIOHandler extends VirtualThread
     public void perform(int chan, int[] params)
     {// No virtual wait is allowed in this method
 	if (DBG) System.err.println("IOHandler: arrived");
-	lock.lock();
-	for(int p:params){
-		// channelVariable.clear();
-		channelVariable.add(p);
-		destinationNode = p;
-		  // System.out.println("First: " + p);
-		}
-	// System.out.println("channel value:" + chan);
-	inputBuffer.add(new Integer(chan));
-	cond.signalAll();
-	lock.unlock();
+	// once spilled, keep spilling until the input thread catches up:
+	if (!overflow.isEmpty() || !inputs.offer(chan, params)) {
+	    int[] input = new int[params.length + 1];
+	    input[0] = chan;
+	    System.arraycopy(params, 0, input, 1, params.length);
+	    overflow.add(input);
+	}
+	if (waiting) { // wake up the input thread
+	    lock.lock();
+	    lock.signalAllAndUnlock(cond);
+	}
 	if (DBG) System.err.println("IOHandler: left");
     } /* perform() */
+
+    /**
+     * Takes the oldest input, called by the input thread only.
+     * @return false if there are no inputs.
+     */
+    private boolean nextInput(InputRing.Event e)
+    {
+	if (inputs.poll(e)) return true;
+	int[] input = overflow.poll();
+	if (input == null) return false;
+	e.chan = input[0];
+	e.count = Math.min(input.length - 1, e.params.length);
+	System.arraycopy(input, 1, e.params, 0, e.count);
+	return true;
+    }
+
+    /**
+     * Returns the input queue, e.g. for its depth metrics.
+     */
+    public InputRing getInputQueue() { return inputs; }
     
     /**
      * Adapter method processing the incoming queue of inputs.
      */
     public void run()
     {
-	int sourceNode;
+	int node;
+	int destinationNode;
+	InputRing.Event input = new InputRing.Event(inputs.width());
 	synchronized (this) {
-	    lock = new VirtualLock("InputQueue");
+	    lock = new VirtualLock("InputQueue", true); // no delays inside
 	    cond = lock.newCondition();
 	    notifyAll();
 	}
 	try {
 	     if (DBG) System.err.println("IOHandler: waiting for inputs");
 	     while (true) {
-	  lock.lock(); // lock operations on input buffer
-	  while (inputBuffer.isEmpty()) 
-	      cond.await();
-	  sourceNode = inputBuffer.poll().intValue();
-	  lock.unlock();// allow buffer to be filled again
-	  if (sourceNode == myInput1) {
-	      System.out.println("i_ch_i1"); 
-	   System.out.println("channel value:" + "1");
-	   sourceNode = 1;
-	      chip.handleMyInput1(sourceNode, destinationNode);
-	  } else if (sourceNode == myInput2) {
-	      System.out.println("i_ch_i2");
-	   System.out.println("channel value:" + "2");
-	   sourceNode = 2;
-	      chip.handleMyInput2(sourceNode, destinationNode);
-	  } else if (sourceNode == myInput3) {
-	      System.out.println("i_ch_i3");
-	   System.out.println("channel value:" + "3");
-	   sourceNode = 3;
-	      chip.handleMyInput3(sourceNode, destinationNode);
-	  } else if (sourceNode == myInput4) {
-	      System.out.println("i_ch_i4");
-	   System.out.println("channel value:" + "4");
-	   sourceNode = 4;
-	      chip.handleMyInput4(sourceNode, destinationNode);
+	  if (!nextInput(input)) {
+	      lock.lock();
+	      waiting = true; // then check again, perform() checks it after offer
+	      while (!nextInput(input))
+		  cond.await();
+	      waiting = false;
+	      lock.unlock();
+	  }
+	  node = channels.nodeOfInput(input.chan);
+	  destinationNode = (input.count > 0) ? input.params[input.count - 1]
+	      : UNKNOWN; // the last parameter
+	  if (node >= 0) {
+	      System.out.println(channels.inputName(node));
+	      System.out.println("channel value:" + (node + 1));
+	      chip.handleInput(node, node + 1, destinationNode);
 	  } else {
 	      System.err.println("IOHandler: UNKNOWN INPUT");
 	  }
@@ -260,34 +256,24 @@ public class TestIOHandler extends VirtualThread
 //    }
     
 	/**
-	 * Adapter method: reports changes encoded into output channel.
+	 * Adapter method: reports the packet received at the node.
 	 */
-	public void reportMyOutput() {
+	public void reportOutput(int node, int value) {
 		if (reporter != null) {
-
-			if (reporter.toString().equals(myOutput1)) {
-				System.out.println(myOutput1);
-				reporter.report(myOutput1);
-			} else if (reporter.toString().equals(myOutput2)) {
-				System.out.println(myOutput2);
-				reporter.report(myOutput2);
-			} else if (reporter.toString().equals(myOutput3)) {
-				System.out.println(myOutput3);
-				reporter.report(myOutput3);
-			} else if (reporter.toString().equals(myOutput4)) {
-				System.out.println(myOutput4);
-				reporter.report(myOutput4);
-			} else {
-				System.err.println("IOHandler: UNKNOWN OUTPUT");
-			}
-
+			int output = channels.outputOf(node);
+			if (DBG) System.err.println("IOHandler: "
+						   + channels.outputName(node) + " " + value);
+			reporter.report(output, new int[] { value });
 		}
 	}
-    
+
     public void disconnect()
     {
 	if (reporter != null) {
 	    System.out.println("(disconnect)");
+	    if (DBG) System.err.println("IOHandler: input queue max depth "
+					+inputs.maxDepth()+", spilled "
+					+inputs.rejected());
 	    reporter.disconnect();
 	}
     }
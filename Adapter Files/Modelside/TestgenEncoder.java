@@ -0,0 +1,120 @@
+package com.uppaal.chiporiginal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes packets into the testgen.txt lines read by gen_packet_from_file of
+ * the VHDL testbench: one binary string per packet, most significant bit
+ * first, made of the source, destination, body and tail fields and
+ * terminated by a new line. The default widths (2, 2, 29 and 29 bits) give
+ * the 62 characters of the 2x2 network testbench.
+ *<p>
+ * The fields are packed into a pair of longs with shifts and written
+ * straight into the caller's byte array or buffer, no String is built.
+ * The widths are configurable for larger meshes, up to 128 bits per line.
+ * An encoder is not thread safe, use one per writing thread.
+ */
+public class TestgenEncoder
+{
+    private final int sourceBits;
+    private final int destinationBits;
+    private final int bodyBits;
+    private final int tailBits;
+    private final int width;
+    private final byte[] line; // staging of direct buffers
+
+    /**
+     * Creates the encoder of the 2x2 network testbench format.
+     */
+    public TestgenEncoder()
+    {
+	this(2, 2, 29, 29);
+    }
+
+    /**
+     * Creates an encoder with the field widths in bits (1..63 each).
+     */
+    public TestgenEncoder(int sourceBits, int destinationBits, int bodyBits,
+			  int tailBits)
+    {
+	this.sourceBits = check(sourceBits);
+	this.destinationBits = check(destinationBits);
+	this.bodyBits = check(bodyBits);
+	this.tailBits = check(tailBits);
+	width = sourceBits + destinationBits + bodyBits + tailBits;
+	if (width > 128)
+	    throw new IllegalArgumentException("line wider than 128 bits");
+	line = new byte[width + 1];
+    }
+
+    private static int check(int bits)
+    {
+	if (bits < 1 || bits > 63)
+	    throw new IllegalArgumentException("field width "+bits);
+	return bits;
+    }
+
+    /**
+     * Returns the number of bytes of an encoded line, including the new
+     * line.
+     */
+    public int lineLength() { return width + 1; }
+
+    /**
+     * Encodes the packet into the array.
+     * @return the offset after the encoded line.
+     * @throws IllegalArgumentException if a value does not fit its field.
+     */
+    public int encode(int source, int destination, long body, long tail,
+		      byte[] out, int offset)
+    {
+	long hi = 0, lo = 0;
+	// shift each field in at the least significant end:
+	long v = field(source, sourceBits);
+	lo = v;
+	v = field(destination, destinationBits);
+	hi = (hi << destinationBits) | (lo >>> (64 - destinationBits));
+	lo = (lo << destinationBits) | v;
+	v = field(body, bodyBits);
+	hi = (hi << bodyBits) | (lo >>> (64 - bodyBits));
+	lo = (lo << bodyBits) | v;
+	v = field(tail, tailBits);
+	hi = (hi << tailBits) | (lo >>> (64 - tailBits));
+	lo = (lo << tailBits) | v;
+	int p = offset;
+	for (int bit = width - 1; bit >= 64; --bit)
+	    out[p++] = (byte)('0' + (int)((hi >>> (bit - 64)) & 1));
+	for (int bit = Math.min(width, 64) - 1; bit >= 0; --bit)
+	    out[p++] = (byte)('0' + (int)((lo >>> bit) & 1));
+	out[p++] = (byte)'\n';
+	return p;
+    }
+
+    /**
+     * Encodes the packet at the position of the buffer, the position is
+     * advanced past the line.
+     */
+    public void encode(int source, int destination, long body, long tail,
+		       ByteBuffer out)
+    {
+	if (out.remaining() < lineLength())
+	    throw new java.nio.BufferOverflowException();
+	if (out.hasArray()) {
+	    int start = out.arrayOffset() + out.position();
+	    int end = encode(source, destination, body, tail, out.array(),
+			     start);
+	    out.position(out.position() + end - start);
+	} else {
+	    encode(source, destination, body, tail, line, 0);
+	    out.put(line);
+	}
+    }
+
+    private static long field(long value, int bits)
+    {
+	if (value < 0 || (value >>> bits) != 0)
+	    throw new IllegalArgumentException(value+" does not fit "+bits
+					       +" bits");
+	return value;
+    }
+}
@@ -1,46 +1,37 @@
 package com.uppaal.chiporiginal;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 
-import com.csvreader.CsvWriter;
-
 
+/**
+ * Appends the stimulus records for ModelSim, through the StimulusWriter
+ * shared by the process instead of opening the file for every record;
+ * with a ModelSimRunner, the records are also encoded into the testgen
+ * files of the testbench.
+ *
+ *@see StimulusWriter
+ */
 public class WriteModelSimInput {
 	
 		public static void writeFile(int source, int destination) {
-	    // int uInput = 0;
-		String outputFile = "modelSim.csv";
-		String simInput = null;
-
-		// before we open the file check to see if it already exists
-				boolean alreadyExists = new File(outputFile).exists();
-					
 				try {
-					// use FileWriter constructor that specifies open for appending
-					CsvWriter csvOutput = new CsvWriter(new FileWriter(outputFile, true), ',');
-					
-					// if the file didn't already exist then we need to write out the header line
-					if (!alreadyExists)
-					{
-						csvOutput.write("Source");
-						csvOutput.write("Destination");
-//						csvOutput.write("Body");
-//						csvOutput.write("Tail");
-						csvOutput.endRecord();
-					}
-					// else assume that the file already has the correct header line
-					
-					// write out a few records
-					csvOutput.write(String.valueOf(source));
-					csvOutput.write(String.valueOf(destination));
-					csvOutput.endRecord();
-					
-					
-					csvOutput.close();
+					StimulusWriter.getShared().write(source, destination);
 				} catch (IOException e) {
 					e.printStackTrace();
+				} catch (IllegalArgumentException e) { // no such node
+					System.err.println("WriteModelSimInput: "+e.getMessage());
 				}
 				
 	}
+
+		/**
+		 * Commits the buffered records and the testgen files, call before
+		 * the simulation run.
+		 */
+		public static void flush() {
+				try {
+					StimulusWriter.getShared().flush();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+	}
 }
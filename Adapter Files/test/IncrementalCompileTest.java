@@ -0,0 +1,111 @@
+package com.uppaal.chiporiginal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the plans of IncrementalCompile on a package, an entity using it
+ * and a testbench, compiled by a stub runner.
+ *<p>
+ * Usage: IncrementalCompileTest; exits with status 1 if a check fails.
+ */
+public class IncrementalCompileTest
+{
+    private static int failures = 0;
+
+    /**
+     * Records the sources of the compilation scripts it is given.
+     */
+    private static class Stub implements IncrementalCompile.Runner
+    {
+	final List<String> compiled = new ArrayList<String>();
+	int status = 0;
+
+	public int run(File script) throws IOException
+	{
+	    compiled.clear();
+	    for (String[] words : commands(script))
+		if ("vcom".equals(words[0]))
+		    compiled.add(words[words.length - 1].replace("\"", ""));
+	    return status;
+	}
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+	File dir = ModelSimRunnerTest.directory();
+	new File(dir, "work").mkdir(); // as vlib does
+	write(dir, "pkg.vhd", "package P is", "end P;");
+	write(dir, "ent.vhd", "use work.P.all;", "entity E is", "end E;");
+	write(dir, "tb.vhd", "entity TB is", "end TB;",
+	      "architecture a of TB is begin",
+	      "  u: entity work.E;", "end a;");
+	write(dir, "compile.do", "vlib work", "vcom pkg.vhd", "vcom ent.vhd",
+	      "vcom tb.vhd");
+	write(dir, "simulate.do", "do compile.do", "vsim work.TB",
+	      "run 100 ns");
+	IncrementalCompile compile =
+	    new IncrementalCompile(new File(dir, "simulate.do"));
+	Stub stub = new Stub();
+
+	check(compile.build(stub) == 3, "first build compiles all");
+	check(stub.compiled.equals(Arrays.asList("pkg.vhd", "ent.vhd",
+						 "tb.vhd")),
+	      "in compilation order: "+stub.compiled);
+	check(compile.plan().isEmpty(), "nothing changed");
+	check(compile.build(stub) == 0, "nothing compiled");
+
+	write(dir, "pkg.vhd", "package P is", "  constant C : integer := 1;",
+	      "end P;");
+	check(compile.plan().equals(Arrays.asList("pkg.vhd", "ent.vhd",
+						  "tb.vhd")),
+	      "a package edit recompiles its users: "+compile.plan());
+	stub.status = 1;
+	try {
+	    compile.build(stub);
+	    check(false, "failed compilation reported");
+	} catch (IOException e) {}
+	check(compile.plan().size() == 3, "kept after a failure");
+	stub.status = 0;
+	compile.build(stub);
+
+	write(dir, "tb.vhd", "entity TB is", "end TB;",
+	      "architecture a of TB is begin",
+	      "  u: entity work.E; -- edited", "end a;");
+	check(compile.plan().equals(Arrays.asList("tb.vhd")),
+	      "a testbench edit recompiles it only: "+compile.plan());
+
+	if (failures > 0) {
+	    System.out.println(failures+" checks failed");
+	    System.exit(1);
+	}
+	System.out.println("ok");
+    }
+
+    private static List<String[]> commands(File script) throws IOException
+    {
+	List<String[]> commands = new ArrayList<String[]>();
+	for (String line : ModelSimRunnerTest.read(script)) {
+	    line = line.trim();
+	    if (line.length() > 0 && !line.startsWith("#"))
+		commands.add(line.split("\\s+"));
+	}
+	return commands;
+    }
+
+    private static void write(File dir, String name, String... lines)
+	throws IOException
+    {
+	ModelSimRunnerTest.write(new File(dir, name), lines);
+    }
+
+    static void check(boolean ok, String what)
+    {
+	if (ok) return;
+	++failures;
+	System.out.println("FAILED: "+what);
+    }
+}
@@ -0,0 +1,272 @@
+package com.uppaal.chiporiginal;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Runs ModelSimRunner batches through FakeSimulator, in a scratch
+ * simulation directory, and checks the packets come back.
+ *<p>
+ * Usage: ModelSimRunnerTest, with FakeSimulator on the class path; exits
+ * with status 1 if a check fails.
+ */
+public class ModelSimRunnerTest
+{
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception
+    {
+	testPackageOutput();
+	testTestgen();
+	testQueuedDuringRun();
+	testCacheHit();
+	testElaborateOnce();
+	if (failures > 0) {
+	    System.out.println(failures+" checks failed");
+	    System.exit(1);
+	}
+	System.out.println("ok");
+    }
+
+    /**
+     * The lines of the TB_Package get_packet procedure are matched with
+     * the packets of the batch, by the id in their body, and checked
+     * against the node which received them; the packets are stored.
+     */
+    private static void testPackageOutput() throws Exception
+    {
+	File dir = directory();
+	write(new File(dir, "simulate.do"), "vsim work.tb_network_2x2",
+	      "run 10000 ns");
+	write(new File(dir, "fake.s"),
+	      "run append outputfile.txt Packet received from 0 to 1"
+	      +" with body: 1 with tail: 0 at node: 1",
+	      "run append outputfile.txt Packet received from 2 to 3"
+	      +" with body: 1 with tail: 0 at node: 2");
+	ModelSimRunner runner = new ModelSimRunner(dir, 4, fake(dir));
+	PacketStore store = new PacketStore(4, 16);
+	runner.getScoreboard().setStore(store);
+	try {
+	    check(runner.simulate().size() == 0, "no batch, no run");
+	    WriteModelSimInput.writeFile(1, 2);
+	    WriteModelSimInput.writeFile(3, 4);
+	    ResultCache.Records received = runner.simulate();
+	    check(received.size() == 2, "2 packets received, not "
+		  +received.size());
+	    PacketRecord r = new PacketRecord();
+	    for (int i=0; i<received.size(); ++i) {
+		received.get(i, r);
+		check(r.time > 0, "time of the end of the run: "+r);
+		check(r.id == 1, "id from the body: "+r);
+	    }
+	    Scoreboard board = runner.getScoreboard();
+	    check(board.getMatched() == 2, "2 matched, not "
+		  +board.getMatched());
+	    check(board.getLost() == 0, "none lost, not "+board.getLost());
+	    check(board.getMisrouted() == 1, "1 misrouted, not "
+		  +board.getMisrouted());
+	    check(board.getLatencyMin() > 0 && board.getLatencyMax() < r.time,
+		  "latencies from the send times");
+	    check(store.size() == 4 && store.getKind(0) == PacketStore.SENT
+		  && store.getKind(3) == PacketStore.RECEIVED,
+		  "sent and received packets stored");
+	    check(store.count(0, 1) == 2, "the pair of the first packet");
+	} finally {
+	    runner.close();
+	}
+    }
+
+    /**
+     * The testgen files hold the packets of the batch simulated only, one
+     * encoded line per packet of the source.
+     */
+    private static void testTestgen() throws Exception
+    {
+	File dir = directory();
+	write(new File(dir, "simulate.do"), "vsim work.tb_network_2x2");
+	write(new File(dir, "fake.s"), "vsim print loaded");
+	ModelSimRunner runner = new ModelSimRunner(dir, 4, fake(dir));
+	try {
+	    WriteModelSimInput.writeFile(1, 2);
+	    WriteModelSimInput.writeFile(1, 4);
+	    runner.simulate();
+	    String[] lines = read(StimulusWriter.testgenFile(dir, 0));
+	    check(lines.length == 2, "2 lines from node 0, not "
+		  +lines.length);
+	    check(lines[0].length() == 62, "62 bits: "+lines[0]);
+	    check(lines[0].equals("00"+"01"+bits(1, 29)+bits(0, 29)),
+		  "from 0 to 1 with id 1: "+lines[0]);
+	    check(lines[1].startsWith("0011"+bits(2, 29)),
+		  "from 0 to 3 with id 2: "+lines[1]);
+	    check(read(StimulusWriter.testgenFile(dir, 3)).length == 0,
+		  "no line from node 3");
+	    WriteModelSimInput.writeFile(4, 1);
+	    runner.simulate();
+	    check(read(StimulusWriter.testgenFile(dir, 0)).length == 0,
+		  "node 0 emptied by the next batch");
+	    lines = read(StimulusWriter.testgenFile(dir, 3));
+	    check(lines.length == 1 && lines[0].startsWith("1100"),
+		  "from 3 to 0 in the next batch");
+	} finally {
+	    runner.close();
+	}
+    }
+
+    /**
+     * A packet queued while a batch runs belongs to the next batch, it is
+     * not declared lost by the end of the run.
+     */
+    private static void testQueuedDuringRun() throws Exception
+    {
+	File dir = directory();
+	write(new File(dir, "simulate.do"), "vsim work.tb_network_2x2");
+	write(new File(dir, "fake.s"), "run sleep 500");
+	ModelSimRunner runner = new ModelSimRunner(dir, 4, fake(dir));
+	try {
+	    WriteModelSimInput.writeFile(1, 2);
+	    Thread queue = new Thread() {
+		    public void run() {
+			try { Thread.sleep(250); }
+			catch (InterruptedException e) { return; }
+			WriteModelSimInput.writeFile(2, 3);
+		    }
+		};
+	    queue.start();
+	    runner.simulate();
+	    queue.join();
+	    Scoreboard board = runner.getScoreboard();
+	    check(board.getInjected() == 1 && board.getLost() == 1,
+		  "the packet of the batch lost, not the one queued");
+	    check(runner.getRunLength().getPackets() == 1,
+		  "the queued packet accounted for the next batch");
+	    runner.simulate();
+	    check(board.getInjected() == 2 && board.getLost() == 2,
+		  "the queued packet in the next batch");
+	    check(read(StimulusWriter.testgenFile(dir, 1)).length == 1,
+		  "the queued packet in the testgen file of node 1");
+	} finally {
+	    runner.close();
+	}
+    }
+
+    /**
+     * A repeated batch is answered by the cache, without running the
+     * simulator; another batch is simulated.
+     */
+    private static void testCacheHit() throws Exception
+    {
+	File dir = directory();
+	write(new File(dir, "simulate.do"), "vsim work.tb_network_2x2");
+	write(new File(dir, "fake.s"),
+	      "run append outputfile.txt Packet received from 0 to 1"
+	      +" with body: 1 with tail: 0 at node: 1");
+	ModelSimRunner runner = new ModelSimRunner(dir, 4, fake(dir));
+	runner.setCache(new ResultCache(directory(), 1L << 20, 1L << 20));
+	File output = new File(dir, "outputfile.txt");
+	try {
+	    WriteModelSimInput.writeFile(1, 2);
+	    check(runner.simulate().size() == 1, "first batch simulated");
+	    WriteModelSimInput.writeFile(1, 2);
+	    ResultCache.Records cached = runner.simulate();
+	    check(cached.size() == 1 && cached.isReadOnly(),
+		  "repeated batch from the cache");
+	    check(read(output).length == 1, "simulator not run again");
+	    check(runner.getScoreboard().getMatched() == 2,
+		  "cached packet matched");
+	    WriteModelSimInput.writeFile(1, 3);
+	    runner.simulate();
+	    check(read(output).length == 2, "other batch simulated");
+	} finally {
+	    runner.close();
+	}
+    }
+
+    /**
+     * The design is elaborated once, each batch being a restart and a run,
+     * and elaborated again after a source was edited.
+     */
+    private static void testElaborateOnce() throws Exception
+    {
+	File dir = directory();
+	new File(dir, "work").mkdir(); // as vlib does
+	write(new File(dir, "a.vhd"), "entity a is end a;");
+	write(new File(dir, "simulate.do"), "vlib work", "vcom a.vhd",
+	      "vsim work.a", "run 10000 ns");
+	write(new File(dir, "fake.s"), "vsim append vsim.txt $args",
+	      "restart append restart.txt $now",
+	      "run append run.txt $args");
+	ModelSimRunner runner = new ModelSimRunner(dir, 4, fake(dir));
+	try {
+	    WriteModelSimInput.writeFile(1, 2);
+	    runner.simulate();
+	    WriteModelSimInput.writeFile(2, 1);
+	    runner.simulate();
+	    check(read(new File(dir, "vsim.txt")).length == 1,
+		  "elaborated once");
+	    check(read(new File(dir, "restart.txt")).length == 2,
+		  "restarted for each batch");
+	    String[] runs = read(new File(dir, "run.txt"));
+	    check(runs.length == 2 && !runs[0].equals("10000 ns"),
+		  "runs of the batch length, not of the script: "
+		  +Arrays.toString(runs));
+	    write(new File(dir, "a.vhd"), "entity a is port (x : in bit);",
+		  "end a;");
+	    WriteModelSimInput.writeFile(1, 2);
+	    runner.simulate();
+	    check(read(new File(dir, "vsim.txt")).length == 2,
+		  "elaborated again after the edit");
+	} finally {
+	    runner.close();
+	}
+    }
+
+    private static String bits(long value, int width)
+    {
+	String s = Long.toBinaryString(value);
+	while (s.length() < width) s = "0"+s;
+	return s;
+    }
+
+    static String[] read(File f) throws IOException
+    {
+	return Files.readAllLines(f.toPath()).toArray(new String[0]);
+    }
+
+    /**
+     * Returns a session of FakeSimulator with the fake.s script.
+     */
+    static SimulatorSession fake(File dir)
+    {
+	return new SimulatorSession(Arrays.asList
+	    ("java", "-cp", System.getProperty("java.class.path"),
+	     FakeSimulator.class.getName(), "-s", "fake.s"), dir);
+    }
+
+    static File directory() throws IOException
+    {
+	File dir = Files.createTempDirectory("simul").toFile();
+	dir.deleteOnExit();
+	return dir;
+    }
+
+    static void write(File f, String... lines) throws IOException
+    {
+	PrintWriter w = new PrintWriter(new FileWriter(f));
+	try {
+	    for (String l : lines) w.println(l);
+	} finally {
+	    w.close();
+	}
+    }
+
+    static void check(boolean ok, String what)
+    {
+	if (ok) return;
+	++failures;
+	System.out.println("FAILED: "+what);
+    }
+}
@@ -0,0 +1,147 @@
+package com.uppaal.chiporiginal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs SimulatorSession and SimulatorPool on FakeSimulator and sh: the
+ * completion of the batches, and the kill of a simulator which does not
+ * complete in time, with the processes it started.
+ *<p>
+ * Usage: SimulatorSessionTest, with FakeSimulator on the class path and sh
+ * on the path; exits with status 1 if a check fails.
+ */
+public class SimulatorSessionTest
+{
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception
+    {
+	testBatches();
+	testSessionTimeout();
+	testPoolTimeout();
+	if (failures > 0) {
+	    System.out.println(failures+" checks failed");
+	    System.exit(1);
+	}
+	System.out.println("ok");
+    }
+
+    /**
+     * A batch returns once executed, with its errors, and the hooks are
+     * called around the runs.
+     */
+    private static void testBatches() throws Exception
+    {
+	File dir = ModelSimRunnerTest.directory();
+	ModelSimRunnerTest.write(new File(dir, "fake.s"),
+				 "fail error failed",
+				 "run append run.txt $now");
+	SimulatorSession session = ModelSimRunnerTest.fake(dir);
+	final int[] hooks = new int[2];
+	session.addBeforeRun(new SimulatorSession.Hook() {
+		public void call(SimulatorSession s) { ++hooks[0]; }
+	    });
+	session.addAfterRun(new SimulatorSession.Hook() {
+		public void call(SimulatorSession s) { ++hooks[1]; }
+	    });
+	session.open(Collections.<String>emptyList());
+	try {
+	    check(session.execute("echo a") == 0, "no error");
+	    check(session.execute("fail", "fail") == 2, "2 errors counted");
+	    session.run(100, true);
+	    check(ModelSimRunnerTest.read(new File(dir, "run.txt"))
+		  .length == 1, "run complete when run() returns");
+	    check(hooks[0] == 1 && hooks[1] == 1, "hooks called");
+	} finally {
+	    session.close();
+	}
+	check(!session.isRunning(), "closed");
+    }
+
+    /**
+     * A batch not complete in time kills the simulator and its children.
+     */
+    private static void testSessionTimeout() throws Exception
+    {
+	File dir = ModelSimRunnerTest.directory();
+	ModelSimRunnerTest.write(new File(dir, "fake.s"), "run sleep 30000");
+	SimulatorSession session = new SimulatorSession(Arrays.asList
+	    ("sh", "-c", "sleep 30 & exec java -cp "
+	     +System.getProperty("java.class.path")+" "
+	     +FakeSimulator.class.getName()+" -s fake.s"), dir);
+	session.setTimeout(1000);
+	session.open(Collections.<String>emptyList());
+	List<ProcessHandle> started = children();
+	long start = System.nanoTime();
+	try {
+	    session.run(100, false);
+	    check(false, "timeout");
+	} catch (java.io.IOException e) {
+	    check(e.getMessage().contains("killed"), e.getMessage());
+	}
+	check(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10),
+	      "killed at the timeout");
+	check(!session.isRunning(), "not running once killed");
+	check(dead(started), "children killed");
+	session.close();
+	session.open(Collections.<String>emptyList());
+	check(session.execute("echo again") == 0, "opened again");
+	session.close();
+    }
+
+    /**
+     * A job running longer than its timeout is killed with its children.
+     */
+    private static void testPoolTimeout() throws Exception
+    {
+	File scratch = ModelSimRunnerTest.directory();
+	SimulatorPool pool = new SimulatorPool
+	    (Arrays.asList("sh", "-c", "sleep 30 & sleep 30"), null,
+	     scratch, 1, 500);
+	List<ProcessHandle> before = children();
+	SimulatorPool.Result result =
+	    pool.submit(new SimulatorPool.Job("sleeper")).get();
+	check(result.timedOut && result.status == -1, "timed out: "+result);
+	List<ProcessHandle> left = children();
+	left.removeAll(before);
+	check(dead(left), "children of the job killed");
+	pool.shutdown();
+    }
+
+    private static List<ProcessHandle> children()
+    {
+	List<ProcessHandle> list = new ArrayList<ProcessHandle>();
+	Iterator<ProcessHandle> i = ProcessHandle.current().descendants()
+	    .iterator();
+	while (i.hasNext()) list.add(i.next());
+	return list;
+    }
+
+    /**
+     * Tells whether the processes are gone, after a grace period.
+     */
+    private static boolean dead(List<ProcessHandle> processes)
+	throws InterruptedException
+    {
+	long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+	for (ProcessHandle h : processes)
+	    while (h.isAlive()) {
+		if (System.nanoTime() > deadline) return false;
+		Thread.sleep(20);
+	    }
+	return true;
+    }
+
+    static void check(boolean ok, String what)
+    {
+	if (ok) return;
+	++failures;
+	System.out.println("FAILED: "+what);
+    }
+}
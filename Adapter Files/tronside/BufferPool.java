@@ -0,0 +1,55 @@
+package com.uppaal.tron;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct byte buffers shared by ChannelTransport connections.
+ * Direct buffers are expensive to allocate and are released only by garbage
+ * collection, hence they are recycled between connections.
+ *
+ *@see ChannelTransport
+ */
+final class BufferPool
+{
+    /**
+     * Capacity of pooled buffers in bytes.
+     */
+    static final int SIZE = 64 * 1024;
+    /**
+     * Maximum number of idle buffers kept in the pool.
+     */
+    static final int MAX_IDLE = 16;
+
+    private static final ArrayDeque<ByteBuffer> idle =
+	new ArrayDeque<ByteBuffer>();
+
+    private BufferPool() {}
+
+    /**
+     * Returns a cleared direct buffer of SIZE capacity.
+     */
+    static ByteBuffer acquire()
+    {
+	synchronized (idle) {
+	    ByteBuffer b = idle.poll();
+	    if (b != null) {
+		b.clear();
+		return b;
+	    }
+	}
+	return ByteBuffer.allocateDirect(SIZE);
+    }
+
+    /**
+     * Returns a buffer into the pool. Buffers of other sizes are dropped.
+     * The caller must not use the buffer afterwards.
+     */
+    static void release(ByteBuffer b)
+    {
+	if (b == null || !b.isDirect() || b.capacity() != SIZE) return;
+	synchronized (idle) {
+	    if (idle.size() < MAX_IDLE) idle.push(b);
+	}
+    }
+}
@@ -0,0 +1,328 @@
+package com.uppaal.tron;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking Transport over a SocketChannel.
+ *<p>
+ * Incoming bytes are read into a pooled direct buffer as large chunks and
+ * whole action frames are decoded from that buffer without per-value system
+ * calls. Outgoing values are accumulated in another pooled direct buffer and
+ * transmitted by a single write on flush(). The channel is kept in
+ * non-blocking mode and the calling thread waits on a Selector only when no
+ * data is available (reads) or the socket send buffer is full (writes).
+ *<p>
+ * close() may be called while the reader or a writer is using the buffers:
+ * the threads inside are counted, those entering afterwards get an
+ * IOException, and the buffers return to the pool when the last one leaves,
+ * so they are never handed to another connection while still in use.
+ *
+ *@see Transport
+ *@see BufferPool
+ */
+class ChannelTransport extends Transport
+{
+    private final SocketChannel channel;
+    private final Selector readSelector;
+    private final Selector writeSelector;
+    /** Received data, in read mode: [position, limit) is not consumed yet. */
+    private ByteBuffer in;
+    /** Pending data, in write mode: [0, position) is not transmitted yet. */
+    private ByteBuffer out;
+    private boolean closed = false;
+    private int users = 0; // threads using the buffers
+
+    ChannelTransport(SocketChannel channel) throws IOException
+    {
+	this.channel = channel;
+	channel.socket().setTcpNoDelay(true);
+	channel.configureBlocking(false);
+	// separate selectors let the reader and writers wait independently:
+	readSelector = Selector.open();
+	writeSelector = Selector.open();
+	channel.register(readSelector, SelectionKey.OP_READ);
+	channel.register(writeSelector, SelectionKey.OP_WRITE);
+	in = BufferPool.acquire();
+	in.flip();
+	out = BufferPool.acquire();
+    }
+
+    /**
+     * Waits for a tester connection on the server channel.
+     */
+    static ChannelTransport accept(ServerSocketChannel server)
+	throws IOException
+    {
+	return new ChannelTransport(server.accept());
+    }
+
+    /**
+     * Connects to a tester listening at the specified address.
+     */
+    static ChannelTransport connect(String host, int port)
+	throws IOException
+    {
+	InetSocketAddress address = new InetSocketAddress(host, port);
+	if (address.isUnresolved()) throw new UnknownHostException(host);
+	return new ChannelTransport(SocketChannel.open(address));
+    }
+
+    /**
+     * Makes sure that at least n bytes can be put into the output buffer,
+     * transmitting pending data or enlarging the buffer if needed.
+     */
+    private void reserve(int n) throws IOException
+    {
+	if (out.remaining() >= n) return;
+	transmit();
+	if (out.capacity() < n) {
+	    BufferPool.release(out);
+	    out = ByteBuffer.allocateDirect(n);
+	}
+    }
+
+    /**
+     * Registers a thread using the buffers.
+     * @throws IOException if the connection is closed.
+     */
+    private synchronized void enter() throws IOException
+    {
+	if (closed) throw new IOException("connection closed");
+	++users;
+    }
+
+    /**
+     * Unregisters a thread using the buffers, the last one releases them
+     * if the connection was closed meanwhile.
+     */
+    private synchronized void leave()
+    {
+	if (--users == 0 && closed) release();
+    }
+
+    void writeByte(int b) throws IOException
+    {
+	enter();
+	try {
+	    reserve(1);
+	    out.put((byte)b);
+	} finally {
+	    leave();
+	}
+    }
+
+    void writeShort(int s) throws IOException
+    {
+	enter();
+	try {
+	    reserve(2);
+	    out.putShort((short)s);
+	} finally {
+	    leave();
+	}
+    }
+
+    void writeInt(int i) throws IOException
+    {
+	enter();
+	try {
+	    reserve(4);
+	    out.putInt(i);
+	} finally {
+	    leave();
+	}
+    }
+
+    void writeLong(long l) throws IOException
+    {
+	enter();
+	try {
+	    reserve(8);
+	    out.putLong(l);
+	} finally {
+	    leave();
+	}
+    }
+
+    void write(byte[] b, int off, int len) throws IOException
+    {
+	enter();
+	try {
+	    reserve(len);
+	    out.put(b, off, len);
+	} finally {
+	    leave();
+	}
+    }
+
+    void writeAction(int chan, int[] params) throws IOException
+    {
+	int n = (params == null) ? 0 : params.length;
+	enter();
+	try {
+	    reserve(6 + 4 * n);
+	    out.putInt(chan);
+	    out.putShort((short)n);
+	    for (int i=0; i<n; ++i) out.putInt(params[i]);
+	} finally {
+	    leave();
+	}
+    }
+
+    void flush() throws IOException
+    {
+	enter();
+	try {
+	    transmit();
+	} finally {
+	    leave();
+	}
+    }
+
+    /**
+     * Writes the pending data, waiting while the socket send buffer is full.
+     */
+    private void transmit() throws IOException
+    {
+	out.flip();
+	try {
+	    while (out.hasRemaining())
+		if (channel.write(out) == 0) {
+		    writeSelector.select();
+		    writeSelector.selectedKeys().clear();
+		}
+	} catch (ClosedSelectorException e) {
+	    throw new IOException("connection closed");
+	} finally {
+	    out.compact();
+	}
+    }
+
+    /**
+     * Makes sure that at least n unconsumed bytes are in the input buffer,
+     * reading from the channel and enlarging the buffer if needed.
+     */
+    private void require(int n) throws IOException
+    {
+	if (in.remaining() >= n) return;
+	if (in.capacity() < n) {
+	    ByteBuffer larger = ByteBuffer.allocateDirect(n);
+	    larger.put(in);
+	    BufferPool.release(in);
+	    in = larger;
+	} else in.compact();
+	try {
+	    while (in.position() < n) {
+		int r = channel.read(in);
+		if (r < 0) throw new EOFException("tester closed connection");
+		if (r == 0) {
+		    readSelector.select();
+		    readSelector.selectedKeys().clear();
+		}
+	    }
+	} catch (ClosedSelectorException e) {
+	    throw new IOException("connection closed");
+	} finally {
+	    in.flip();
+	}
+    }
+
+    byte readByte() throws IOException
+    {
+	enter();
+	try {
+	    require(1);
+	    return in.get();
+	} finally {
+	    leave();
+	}
+    }
+
+    short readShort() throws IOException
+    {
+	enter();
+	try {
+	    require(2);
+	    return in.getShort();
+	} finally {
+	    leave();
+	}
+    }
+
+    int readInt() throws IOException
+    {
+	enter();
+	try {
+	    require(4);
+	    return in.getInt();
+	} finally {
+	    leave();
+	}
+    }
+
+    void readFully(byte[] b, int off, int len) throws IOException
+    {
+	enter();
+	try {
+	    require(len);
+	    in.get(b, off, len);
+	} finally {
+	    leave();
+	}
+    }
+
+    /**
+     * Decodes the parameter count and all parameters of the frame from one
+     * buffer fill.
+     */
+    int[] readParams() throws IOException
+    {
+	enter();
+	try {
+	    require(2);
+	    int n = in.getShort(in.position());
+	    require(2 + 4 * n);
+	    in.position(in.position() + 2);
+	    int[] data = new int[n];
+	    in.asIntBuffer().get(data);
+	    in.position(in.position() + 4 * n);
+	    return data;
+	} finally {
+	    leave();
+	}
+    }
+
+    /**
+     * Closes the channel, the buffers are released once no thread uses
+     * them; blocked readers and writers are woken up with an IOException.
+     */
+    synchronized void close() throws IOException
+    {
+	if (closed) return;
+	closed = true;
+	try {
+	    channel.close();
+	} finally {
+	    readSelector.close();
+	    writeSelector.close();
+	    if (users == 0) release();
+	}
+    }
+
+    private void release()
+    {
+	BufferPool.release(in);
+	BufferPool.release(out);
+	in = null;
+	out = null;
+    }
+}
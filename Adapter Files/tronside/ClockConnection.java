@@ -0,0 +1,252 @@
+package com.uppaal.tron;
+
+import java.io.IOException;
+
+/**
+ * Connection of one VirtualThread to the virtual clock service.
+ *<p>
+ * A request consists of a command byte (VirtualThread.C_* constants)
+ * followed by 32-bit integer arguments. Depending on the command, the clock
+ * replies with no, one or two integers (see replies()). Each thread issues
+ * at most one request at a time.
+ *<p>
+ * Extension commands, i.e. compound ones (C_SignalUnlock,
+ * C_BroadcastUnlock, C_UnlockWait and C_LockDelay) and conditional locking
+ * (C_MutexTryLock and C_MutexTimedLock), are executed natively by
+ * LocalClock, while the connections to a plain clock service (including
+ * ClockGateway) emulate the compound ones by decompose(). Conditional
+ * locking cannot be decomposed without blocking: on those connections
+ * VirtualLock emulates it with the basic commands instead (see
+ * conditionalLocking()).
+ *<p>
+ * The virtual time passes only while every active thread is blocked in the
+ * clock, hence the clock value seen by an active thread stays current until
+ * the thread issues a command which may block it (see blocks()) or
+ * deactivates. The connection caches the value for that period, so
+ * getTime() mostly needs no round trip. Where the clock supports it, such
+ * commands are sent with the C_Stamped flag and the reply carries the clock
+ * value after the result: [int32 of result] [int32 of seconds]
+ * [int32 of microseconds].
+ *
+ *@see VirtualThread
+ *@see SocketClockConnection
+ *@see MuxClockConnection
+ */
+abstract class ClockConnection
+{
+    /**
+     * Command flag requesting the clock value along with the result, applies
+     * to the commands below 32 (e.g. not to C_Quit).
+     */
+    static final char C_Stamped = 32;
+
+    /** The clock value in milliseconds known to be current, or -1. */
+    private volatile long stamp = -1;
+    /** Whether the thread holds the time still while not blocked. */
+    private volatile boolean holding = true;
+
+    /**
+     * Sends a request which has no reply.
+     */
+    abstract void send(char cmd, int... args) throws IOException;
+
+    /**
+     * Sends a request and blocks until the single integer reply arrives.
+     */
+    abstract int call(char cmd, int... args) throws IOException;
+
+    /**
+     * Requests the current clock value from the clock.
+     * @return the clock value in milliseconds.
+     */
+    abstract long requestTime() throws IOException;
+
+    /**
+     * Returns the current clock value, requesting it only if the cached one
+     * may be outdated.
+     * @param exact true if the clock must be asked anyway.
+     * @return the clock value in milliseconds.
+     */
+    long getTime(boolean exact) throws IOException
+    {
+	long t = exact ? -1 : stamp;
+	if (t < 0) {
+	    t = requestTime();
+	    if (holding) stamp = t;
+	}
+	return t;
+    }
+
+    /**
+     * Forgets the cached clock value if the command may let the time pass,
+     * must be called before sending the command.
+     */
+    void expire(char cmd)
+    {
+	if (cmd == VirtualThread.C_Deactivate) holding = false;
+	else if (cmd == VirtualThread.C_Activate) holding = true;
+	if (!holding || blocks(cmd)) stamp = -1;
+    }
+
+    /**
+     * Caches the clock value received along with a reply.
+     */
+    void stamp(long millis)
+    {
+	if (holding) stamp = millis;
+    }
+
+    /**
+     * Checks whether the command may block the thread in the clock, so that
+     * the time may pass before the reply.
+     */
+    static boolean blocks(char cmd)
+    {
+	switch (cmd) {
+	case VirtualThread.C_MutexLock:
+	case VirtualThread.C_MutexTimedLock:
+	case VirtualThread.C_Wait:
+	case VirtualThread.C_TimedWait:
+	case VirtualThread.C_Delay:
+	case VirtualThread.C_UnlockWait:
+	case VirtualThread.C_LockDelay:
+	    return true;
+	default:
+	    return false;
+	}
+    }
+
+    /**
+     * Checks whether the clock executes C_MutexTryLock and C_MutexTimedLock,
+     * i.e. fails them instead of blocking while the mutex is held.
+     */
+    boolean conditionalLocking() { return false; }
+
+    /**
+     * Releases the connection resources, no requests are sent afterwards.
+     */
+    abstract void close() throws IOException;
+
+    /**
+     * Returns the number of integers the clock replies to the command with.
+     */
+    static int replies(char cmd)
+    {
+	if (isStamped(cmd)) return 3;
+	switch (cmd) {
+	case VirtualThread.C_Quit:
+	case VirtualThread.C_MutexDest:
+	case VirtualThread.C_CondDest:
+	case VirtualThread.C_Signal:
+	case VirtualThread.C_Broadcast:
+	    return 0;
+	case VirtualThread.C_GetTime:
+	    return 2;
+	default:
+	    return 1;
+	}
+    }
+
+    /**
+     * Returns the number of integer arguments of the command.
+     */
+    static int arguments(char cmd)
+    {
+	switch (unstamped(cmd)) {
+	case VirtualThread.C_MutexDest:
+	case VirtualThread.C_MutexLock:
+	case VirtualThread.C_MutexUnlock:
+	case VirtualThread.C_MutexTryLock:
+	case VirtualThread.C_CondDest:
+	case VirtualThread.C_Signal:
+	case VirtualThread.C_Broadcast:
+	    return 1;
+	case VirtualThread.C_Wait:
+	case VirtualThread.C_SignalUnlock:
+	case VirtualThread.C_BroadcastUnlock:
+	    return 2;
+	case VirtualThread.C_MutexTimedLock:
+	    return 3;
+	case VirtualThread.C_TimedWait:
+	case VirtualThread.C_Delay:
+	case VirtualThread.C_UnlockWait:
+	case VirtualThread.C_LockDelay:
+	    return 4;
+	default:
+	    return 0;
+	}
+    }
+
+    /**
+     * Checks whether the command carries the C_Stamped flag.
+     */
+    static boolean isStamped(char cmd)
+    {
+	return (cmd >= C_Stamped && cmd < 2 * C_Stamped);
+    }
+
+    /**
+     * Returns the command without the C_Stamped flag.
+     */
+    static char unstamped(char cmd)
+    {
+	return isStamped(cmd) ? (char)(cmd - C_Stamped) : cmd;
+    }
+
+    /**
+     * Checks whether the command is an extension unknown to a plain clock
+     * service.
+     */
+    static boolean isExtension(char cmd)
+    {
+	return (cmd >= VirtualThread.C_SignalUnlock
+		&& cmd <= VirtualThread.C_MutexTimedLock);
+    }
+
+    /**
+     * Executes an extension command as a sequence of basic commands on a
+     * connection which does not support it.
+     * C_SignalUnlock is executed as broadcast (spurious wake-ups are allowed
+     * by conditions) since not every clock service implements C_Signal.
+     * Conditional locking is refused with C_Error: a plain lock would
+     * block, and the state of the mutex cannot be probed (VirtualLock does
+     * not send it to such connections).
+     * @return the reply of the extension command.
+     */
+    static int decompose(ClockConnection c, char cmd, int[] args)
+	throws IOException
+    {
+	switch (cmd) {
+	case VirtualThread.C_SignalUnlock:
+	case VirtualThread.C_BroadcastUnlock:
+	    c.send(VirtualThread.C_Broadcast, args[0]);
+	    return c.call(VirtualThread.C_MutexUnlock, args[1]);
+	case VirtualThread.C_UnlockWait: {
+	    int res = (args[2] < 0)
+		? c.call(VirtualThread.C_Wait, args[0], args[1])
+		: c.call(VirtualThread.C_Delay, args);
+	    int unlocked = c.call(VirtualThread.C_MutexUnlock, args[1]);
+	    return (unlocked != 0) ? unlocked : res;
+	}
+	case VirtualThread.C_LockDelay: {
+	    int res = c.call(VirtualThread.C_MutexLock, args[1]);
+	    if (res != 0) return res;
+	    return c.call(VirtualThread.C_Delay, args);
+	}
+	case VirtualThread.C_MutexTryLock:
+	case VirtualThread.C_MutexTimedLock:
+	    return VirtualThread.C_Error;
+	default:
+	    throw new IllegalArgumentException("not extension: "+(int)cmd);
+	}
+    }
+
+    /**
+     * Converts the clock reply of [int32 seconds] [int32 microseconds] into
+     * milliseconds.
+     */
+    static long toMillis(int sec, int micros)
+    {
+	return sec * 1000L + micros / 1000;
+    }
+}
@@ -0,0 +1,212 @@
+package com.uppaal.tron;
+
+import java.net.Socket;
+import java.net.ServerSocket;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Serves the multiplexed clock protocol on top of an ordinary clock service.
+ *<p>
+ * The gateway accepts ClockMultiplexer connections and forwards the requests
+ * of every multiplexed thread to the clock service through a dedicated
+ * connection, exactly as that thread would have done itself. Run it next to
+ * the clock service (e.g. on the same host), so that the adapter needs a
+ * single connection to reach the clock:
+ *<pre>
+ * java com.uppaal.tron.ClockGateway 6522 localhost 6521
+ *</pre>
+ * Extension (e.g. compound) commands are split into basic ones here, next to the clock
+ * service, so the adapter still saves the round trips. Likewise the clock
+ * value of a stamped reply is requested here, right after the result.
+ *
+ *@see ClockMultiplexer
+ */
+public class ClockGateway extends Thread
+{
+    private final ServerSocket server;
+    private final String host;
+    private final int port;
+
+    /**
+     * Creates a gateway.
+     * @param listen the port number to accept multiplexed connections on.
+     * @param host the name of the machine where the clock service is running.
+     * @param port the port number where clock service is listening.
+     */
+    public ClockGateway(int listen, String host, int port) throws IOException
+    {
+	super("TR.ClockGateway");
+	server = new ServerSocket(listen);
+	this.host = host;
+	this.port = port;
+    }
+
+    /**
+     * Accepts multiplexed connections.
+     */
+    public void run()
+    {
+	try {
+	    while (true) new Session(server.accept()).start();
+	} catch (IOException e) {
+	    System.err.println("ClockGateway: "+e);
+	}
+    }
+
+    private static class Request
+    {
+	final int id;
+	final char cmd;
+	final int[] args;
+	final String name;
+	Request(int id, char cmd, int[] args, String name)
+	{
+	    this.id = id;
+	    this.cmd = cmd;
+	    this.args = args;
+	    this.name = name;
+	}
+    }
+
+    /**
+     * Demultiplexes one incoming connection.
+     */
+    private class Session extends Thread
+    {
+	private final Socket socket;
+	private final DataInputStream is;
+	private final DataOutputStream os;
+	private final HashMap<Integer, Forwarder> threads =
+	    new HashMap<Integer, Forwarder>();
+
+	Session(Socket socket) throws IOException
+	{
+	    super("TR.ClockGateway.Session");
+	    this.socket = socket;
+	    socket.setTcpNoDelay(true);
+	    is = new DataInputStream(socket.getInputStream());
+	    os = new DataOutputStream(socket.getOutputStream());
+	}
+
+	void reply(int thread, int request, int[] values) throws IOException
+	{
+	    synchronized (os) {
+		os.writeInt(thread);
+		os.writeInt(request);
+		os.writeInt(values.length);
+		for (int v: values) os.writeInt(v);
+		os.flush();
+	    }
+	}
+
+	public void run()
+	{
+	    try {
+		while (true) {
+		    int thread = is.readInt();
+		    int request = is.readInt();
+		    char cmd = (char)is.readByte();
+		    Forwarder f = threads.get(thread);
+		    if (cmd == ClockMultiplexer.C_Attach) {
+			byte[] name = new byte[is.readByte()];
+			is.readFully(name);
+			f = new Forwarder(this, thread);
+			threads.put(thread, f);
+			f.start();
+			f.queue.add(new Request(request, cmd, null,
+						new String(name)));
+			continue;
+		    }
+		    int[] args = new int[ClockConnection.arguments(cmd)];
+		    for (int i=0; i<args.length; ++i) args[i] = is.readInt();
+		    if (f == null) {
+			System.err.println("ClockGateway: unknown thread "
+					   +thread);
+			continue;
+		    }
+		    f.queue.add(new Request(request, cmd, args, null));
+		}
+	    } catch (IOException e) {
+		if (VirtualThread.DBG) System.err.println("ClockGateway: "+e);
+	    }
+	    for (Forwarder f: threads.values()) f.interrupt();
+	    try { socket.close(); } catch (IOException e) {}
+	}
+    }
+
+    /**
+     * Performs the requests of one multiplexed thread in order over its
+     * dedicated clock connection.
+     */
+    private class Forwarder extends Thread
+    {
+	private final Session session;
+	private final int thread;
+	final LinkedBlockingQueue<Request> queue =
+	    new LinkedBlockingQueue<Request>();
+	private SocketClockConnection clock = null;
+
+	Forwarder(Session session, int thread)
+	{
+	    super("TR.ClockGateway.Forwarder");
+	    this.session = session;
+	    this.thread = thread;
+	    setDaemon(true);
+	}
+
+	public void run()
+	{
+	    try {
+		while (true) {
+		    Request r = queue.take();
+		    if (r.cmd == ClockMultiplexer.C_Attach) {
+			try {
+			    clock = SocketClockConnection.open(host, port,
+							       r.name, 10);
+			} catch (IOException e) {
+			    session.reply(thread, r.id, new int[] { -1 });
+			    throw e;
+			}
+			session.reply(thread, r.id, new int[] { 0 });
+			continue;
+		    }
+		    int[] values = new int[ClockConnection.replies(r.cmd)];
+		    char cmd = ClockConnection.unstamped(r.cmd);
+		    if (ClockConnection.isExtension(cmd))
+			values[0] = ClockConnection.decompose(clock, cmd, r.args);
+		    else {
+			clock.send(cmd, r.args);
+			for (int i=0; i<ClockConnection.replies(cmd); ++i)
+			    values[i] = clock.receive();
+		    }
+		    if (cmd != r.cmd) { // the time does not pass meanwhile
+			clock.send(VirtualThread.C_GetTime);
+			values[1] = clock.receive();
+			values[2] = clock.receive();
+		    }
+		    if (values.length > 0) session.reply(thread, r.id, values);
+		    if (r.cmd == VirtualThread.C_Quit) break;
+		}
+	    } catch (InterruptedException e) {
+	    } catch (IOException e) {
+		System.err.println("ClockGateway: "+e);
+	    }
+	    if (clock != null) try { clock.close(); } catch (IOException e) {}
+	}
+    }
+
+    public static void main(String args[]) throws IOException
+    {
+	if (args.length != 3) {
+	    System.err.println("Usage: ClockGateway listen-port clock-host "
+			       +"clock-port");
+	    System.exit(1);
+	}
+	new ClockGateway(Integer.parseInt(args[0]), args[1],
+			 Integer.parseInt(args[2])).start();
+    }
+}
@@ -0,0 +1,163 @@
+package com.uppaal.tron;
+
+import java.net.Socket;
+import java.net.ConnectException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Single shared connection to a multiplexing clock service on behalf of all
+ * VirtualThreads of this process.
+ *<p>
+ * Every request is framed with the identifier of the issuing thread and a
+ * per-thread request identifier:
+ * send: [int32 of thread id] [int32 of request id] [byte of command]
+ * [int32 of each argument], where the arguments are the same as in the
+ * dedicated connection protocol. The thread is registered by the C_Attach
+ * command with [byte of name length] [byte-string of name] as arguments.
+ * receive: [int32 of thread id] [int32 of request id] [int32 of count]
+ * [count of int32 results]. A command with the ClockConnection.C_Stamped
+ * flag is replied with the clock value following the result:
+ * [int32 of result] [int32 of seconds] [int32 of microseconds].
+ *<p>
+ * The reader thread of the multiplexer delivers replies to the waiting
+ * threads, hence only one TCP connection and one extra OS thread is used
+ * regardless of the number of VirtualThreads. ClockGateway serves this
+ * protocol on top of the ordinary clock service.
+ *
+ *@see MuxClockConnection
+ *@see ClockGateway
+ *@see VirtualThread#setRemoteClock(String, int, boolean)
+ */
+class ClockMultiplexer extends Thread
+{
+    /**
+     * Multiplexer command for registering a new thread.
+     */
+    static final char C_Attach = 96;
+
+    private final Socket socket;
+    private final DataInputStream is;
+    private final DataOutputStream os;
+    private MuxClockConnection[] threads = new MuxClockConnection[16];
+    private int count = 0;
+    private IOException error = null;
+
+    ClockMultiplexer(Socket socket) throws IOException
+    {
+	super("TR.ClockMux");
+	this.socket = socket;
+	socket.setTcpNoDelay(true);
+	is = new DataInputStream(socket.getInputStream());
+	os = new DataOutputStream(socket.getOutputStream());
+	setDaemon(true);
+	start();
+    }
+
+    /**
+     * Connects to the multiplexing clock service, retrying while the
+     * connection is refused.
+     * @param tries the number of connection attempts, 2 seconds apart.
+     */
+    static ClockMultiplexer open(String host, int port, int tries)
+	throws IOException
+    {
+	while (true) try {
+	    tries--;
+	    if (VirtualThread.DBG)
+		System.err.println("Connecting to clock multiplexer #"+tries);
+	    return new ClockMultiplexer(new Socket(host, port));
+	} catch (ConnectException e) {
+	    System.err.println(e);
+	    if (tries <= 0) throw e;
+	    try { Thread.sleep(2000); } // let's retry
+	    catch(InterruptedException ex){}
+	}
+    }
+
+    /**
+     * Registers a thread and returns its connection.
+     */
+    MuxClockConnection attach(String name) throws IOException
+    {
+	MuxClockConnection c;
+	synchronized (this) {
+	    if (error != null) throw error;
+	    if (count == threads.length) {
+		MuxClockConnection[] larger =
+		    new MuxClockConnection[2 * threads.length];
+		System.arraycopy(threads, 0, larger, 0, count);
+		threads = larger;
+	    }
+	    c = new MuxClockConnection(this, count);
+	    threads[count++] = c;
+	}
+	c.attach(name);
+	return c;
+    }
+
+    /**
+     * Forgets the thread, its replies are not expected anymore.
+     */
+    synchronized void detach(MuxClockConnection c)
+    {
+	if (c.id < count && threads[c.id] == c) threads[c.id] = null;
+    }
+
+    /**
+     * Transmits one request frame.
+     * @param name the thread name for C_Attach, otherwise null.
+     */
+    void write(int thread, int request, char cmd, int[] args, String name)
+	throws IOException
+    {
+	synchronized (os) {
+	    os.writeInt(thread);
+	    os.writeInt(request);
+	    os.writeByte(cmd);
+	    if (args != null) for (int a: args) os.writeInt(a);
+	    if (name != null) {
+		os.writeByte(name.length());
+		os.writeBytes(name);
+	    }
+	    os.flush();
+	}
+    }
+
+    /**
+     * Reads the replies and wakes up the waiting threads.
+     */
+    public void run()
+    {
+	int[] values = new int[4];
+	try {
+	    while (true) {
+		int thread = is.readInt();
+		int request = is.readInt();
+		int n = is.readInt();
+		if (n > values.length) values = new int[n];
+		for (int i=0; i<n; ++i) values[i] = is.readInt();
+		MuxClockConnection c = null;
+		synchronized (this) {
+		    if (thread >= 0 && thread < count) c = threads[thread];
+		}
+		if (c != null) c.deliver(request, values, n);
+		else if (VirtualThread.DBG)
+		    System.err.println("Clock reply for unknown thread "+thread);
+	    }
+	} catch (IOException e) {
+	    MuxClockConnection[] waiting;
+	    synchronized (this) {
+		error = e;
+		waiting = threads.clone();
+	    }
+	    for (MuxClockConnection c: waiting) if (c != null) c.fail(e);
+	}
+    }
+
+    void close() throws IOException
+    {
+	socket.close();
+    }
+}
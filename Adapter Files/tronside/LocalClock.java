@@ -0,0 +1,443 @@
+package com.uppaal.tron;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Virtual clock engine running inside this JVM, a replacement for the remote
+ * clock service when no external process (e.g. tester) shares the clock.
+ *<p>
+ * The engine implements the same semantics as the clock service protocol:
+ * mutexes (also try and timed locking), conditions, timed waits, delays,
+ * signals and broadcasts. Time
+ * advances only when every registered (active) thread is blocked in the
+ * clock, then it jumps straight to the earliest timed wait deadline kept in
+ * a hierarchical TimingWheel. Threads blocked
+ * outside of the clock (e.g. in Object.wait()) are considered running and
+ * hold the time still, exactly as with the remote clock.
+ *<p>
+ * Threads register when started and unregister by C_Quit or when they
+ * terminate (detected by a background reaper).
+ *<p>
+ * The clock counts the virtual time skipped by jumps and the host time
+ * spent, their ratio shows how much faster than real time a run was.
+ *<pre>
+ * VirtualThread.setLocalClock(new LocalClock());
+ *</pre>
+ *
+ *@see VirtualThread#setLocalClock
+ *@see LocalClockConnection
+ *@see TimingWheel
+ */
+public class LocalClock
+{
+    /**
+     * Controls whether the debug information about time passage should be
+     * produced into err stream.
+     * This variable can be set via environment variable DEBUG_CLOCK.
+     */
+    public static boolean DBG = (System.getenv("DEBUG_CLOCK")!=null);
+
+    static class Mutex
+    {
+	LocalClockConnection owner = null;
+	final ArrayDeque<LocalClockConnection> waiters =
+	    new ArrayDeque<LocalClockConnection>();
+    }
+
+    static class Cond
+    {
+	final ArrayDeque<LocalClockConnection> waiters =
+	    new ArrayDeque<LocalClockConnection>();
+    }
+
+    /** Protects all the engine state. */
+    final ReentrantLock mutex = new ReentrantLock();
+    private int running = 0; // active threads which are not blocked
+    private final ArrayList<Mutex> mutexes = new ArrayList<Mutex>();
+    private final ArrayList<Cond> conds = new ArrayList<Cond>();
+    private final ArrayList<LocalClockConnection> threads =
+	new ArrayList<LocalClockConnection>();
+    /** Timed waits, its time is the current virtual time. */
+    private final TimingWheel timed = new TimingWheel();
+    private Thread reaper = null;
+    private final long started = System.nanoTime();
+    private long skipped = 0;
+    private long jumps = 0;
+
+    /**
+     * Creates a clock starting at time zero.
+     */
+    public LocalClock() {}
+
+    /**
+     * Returns the current virtual time in microseconds.
+     */
+    public long getTimeMicros()
+    {
+	mutex.lock();
+	try { return timed.now(); }
+	finally { mutex.unlock(); }
+    }
+
+    /**
+     * Returns the current virtual time in microseconds, must be called while
+     * holding the engine lock.
+     */
+    long now()
+    {
+	return timed.now();
+    }
+
+    /**
+     * Returns the total amount of virtual time skipped by jumping to the
+     * next deadline, in microseconds.
+     */
+    public long getSkippedMicros()
+    {
+	mutex.lock();
+	try { return skipped; }
+	finally { mutex.unlock(); }
+    }
+
+    /**
+     * Returns the number of times the virtual time has jumped forward.
+     */
+    public long getJumps()
+    {
+	mutex.lock();
+	try { return jumps; }
+	finally { mutex.unlock(); }
+    }
+
+    /**
+     * Returns the host time spent since this clock was created, in
+     * nanoseconds.
+     */
+    public long getSpentNanos()
+    {
+	return System.nanoTime() - started;
+    }
+
+    /**
+     * Returns the number of threads currently waiting with a deadline.
+     */
+    public int getTimedWaits()
+    {
+	mutex.lock();
+	try { return timed.size(); }
+	finally { mutex.unlock(); }
+    }
+
+    /**
+     * Registers the thread as running.
+     */
+    LocalClockConnection attach(Thread thread)
+    {
+	LocalClockConnection c = new LocalClockConnection(this, thread);
+	mutex.lock();
+	try {
+	    threads.add(c);
+	    ++running;
+	    if (reaper == null) {
+		reaper = new Reaper();
+		reaper.start();
+	    }
+	} finally { mutex.unlock(); }
+	return c;
+    }
+
+    /**
+     * Unregisters the thread: C_Quit or thread termination.
+     */
+    void detach(LocalClockConnection c)
+    {
+	mutex.lock();
+	try {
+	    if (!threads.remove(c)) return;
+	    if (c.active && !c.blocked) --running;
+	    c.active = false;
+	    advance();
+	} finally { mutex.unlock(); }
+    }
+
+    int deactivate(LocalClockConnection c)
+    {
+	if (c.active) {
+	    c.active = false;
+	    --running;
+	    advance();
+	}
+	return VirtualThread.C_OK;
+    }
+
+    int activate(LocalClockConnection c)
+    {
+	if (!c.active) {
+	    c.active = true;
+	    ++running;
+	}
+	return VirtualThread.C_OK;
+    }
+
+    int mutexInit()
+    {
+	mutexes.add(new Mutex());
+	return mutexes.size() - 1;
+    }
+
+    void mutexDestroy(int id)
+    {
+	if (id >= 0 && id < mutexes.size()) mutexes.set(id, null);
+    }
+
+    int condInit()
+    {
+	conds.add(new Cond());
+	return conds.size() - 1;
+    }
+
+    void condDestroy(int id)
+    {
+	if (id >= 0 && id < conds.size()) conds.set(id, null);
+    }
+
+    private Mutex mutex(int id)
+    {
+	return (id >= 0 && id < mutexes.size()) ? mutexes.get(id) : null;
+    }
+
+    private Cond cond(int id)
+    {
+	return (id >= 0 && id < conds.size()) ? conds.get(id) : null;
+    }
+
+    int lock(LocalClockConnection c, int id)
+    {
+	return lock(c, id, -1);
+    }
+
+    /**
+     * Acquires the mutex unless the delay (microseconds, negative for none)
+     * passes first.
+     * @return C_OK if acquired, C_TimedOut if the delay passed.
+     */
+    int lock(LocalClockConnection c, int id, long micros)
+    {
+	Mutex m = mutex(id);
+	if (m == null || m.owner == c) return VirtualThread.C_Error;
+	c.result = VirtualThread.C_OK;
+	if (m.owner == null) {
+	    m.owner = c;
+	    return c.result;
+	}
+	m.waiters.add(c);
+	if (micros >= 0) {
+	    c.mutex = m;
+	    c.deadline = timed.now() + micros;
+	    timed.add(c);
+	}
+	block(c);
+	return c.result;
+    }
+
+    int tryLock(LocalClockConnection c, int id)
+    {
+	Mutex m = mutex(id);
+	if (m == null || m.owner == c) return VirtualThread.C_Error;
+	if (m.owner != null) return VirtualThread.C_Busy;
+	m.owner = c;
+	return VirtualThread.C_OK;
+    }
+
+    int unlock(LocalClockConnection c, int id)
+    {
+	Mutex m = mutex(id);
+	if (m == null || m.owner != c) return VirtualThread.C_Error;
+	release(m);
+	return VirtualThread.C_OK;
+    }
+
+    /**
+     * Releases the mutex and wait until signalled or the deadline (absolute
+     * microseconds, negative for none) passes, then reacquires the mutex.
+     * @return C_OK if signalled, C_TimedOut if deadline passed.
+     */
+    int await(LocalClockConnection c, int condId, int mutexId, long deadline)
+    {
+	return await(c, condId, mutexId, deadline, true);
+    }
+
+    /**
+     * Releases the mutex and waits like await(), but returns without
+     * reacquiring the mutex.
+     * @param micros the maximum delay in microseconds, negative for none.
+     */
+    int unlockWait(LocalClockConnection c, int condId, int mutexId,
+		   long micros)
+    {
+	long deadline = (micros < 0) ? -1 : timed.now() + micros;
+	return await(c, condId, mutexId, deadline, false);
+    }
+
+    private int await(LocalClockConnection c, int condId, int mutexId,
+		      long deadline, boolean relock)
+    {
+	Mutex m = mutex(mutexId);
+	Cond cv = cond(condId);
+	if (m == null || cv == null || m.owner != c)
+	    return VirtualThread.C_Error;
+	release(m);
+	c.cond = cv;
+	c.mutex = relock ? m : null;
+	cv.waiters.add(c);
+	if (deadline >= 0) {
+	    c.deadline = deadline;
+	    timed.add(c);
+	}
+	block(c);
+	return c.result;
+    }
+
+    int delay(LocalClockConnection c, int condId, int mutexId, long micros)
+    {
+	return await(c, condId, mutexId, timed.now() + Math.max(micros, 0));
+    }
+
+    void signal(int condId)
+    {
+	Cond cv = cond(condId);
+	if (cv == null) return;
+	LocalClockConnection w = cv.waiters.poll();
+	if (w != null) notified(w);
+    }
+
+    void broadcast(int condId)
+    {
+	Cond cv = cond(condId);
+	if (cv == null) return;
+	LocalClockConnection w;
+	while ((w = cv.waiters.poll()) != null) notified(w);
+    }
+
+    private void notified(LocalClockConnection w)
+    {
+	if (w.deadline >= 0) {
+	    timed.remove(w);
+	    w.deadline = -1;
+	}
+	w.cond = null;
+	reacquire(w, VirtualThread.C_OK);
+    }
+
+    /**
+     * Hands the mutex to the next waiter or leaves it free.
+     */
+    private void release(Mutex m)
+    {
+	LocalClockConnection next = m.waiters.poll();
+	m.owner = next;
+	if (next == null) return;
+	if (next.deadline >= 0) { // timed lock
+	    timed.remove(next);
+	    next.deadline = -1;
+	    next.mutex = null;
+	}
+	wakeUp(next);
+    }
+
+    /**
+     * A waiter leaving the condition must get its mutex back before
+     * returning the result.
+     */
+    private void reacquire(LocalClockConnection w, int result)
+    {
+	Mutex m = w.mutex;
+	w.mutex = null;
+	w.result = result;
+	if (m == null) wakeUp(w); // no relocking
+	else if (m.owner == null) {
+	    m.owner = w;
+	    wakeUp(w);
+	} else m.waiters.add(w);
+    }
+
+    private void block(LocalClockConnection c)
+    {
+	c.blocked = true;
+	if (c.active) {
+	    --running;
+	    advance();
+	}
+	while (c.blocked) c.wake.awaitUninterruptibly();
+    }
+
+    private void wakeUp(LocalClockConnection c)
+    {
+	c.blocked = false;
+	if (c.active) ++running;
+	c.wake.signal();
+    }
+
+    /**
+     * Lets the time pass while nothing is running.
+     */
+    private void advance()
+    {
+	while (running == 0 && !timed.isEmpty()) {
+	    long now = timed.now();
+	    long next = timed.advance();
+	    if (next > now) {
+		if (DBG) System.err.println("LocalClock: "+now+" -> "+next);
+		skipped += next - now;
+		++jumps;
+	    }
+	    LocalClockConnection w;
+	    while ((w = timed.pollDue()) != null) {
+		w.deadline = -1;
+		if (w.cond == null) { // timed lock
+		    w.mutex.waiters.remove(w);
+		    w.mutex = null;
+		    w.result = VirtualThread.C_TimedOut;
+		    wakeUp(w);
+		    continue;
+		}
+		w.cond.waiters.remove(w);
+		w.cond = null;
+		reacquire(w, VirtualThread.C_TimedOut);
+	    }
+	}
+    }
+
+    /**
+     * Detects terminated threads which did not quit the clock, so they do
+     * not hold the time still forever.
+     */
+    private class Reaper extends Thread
+    {
+	Reaper()
+	{
+	    super("TR.LocalClock.Reaper");
+	    setDaemon(true);
+	}
+
+	public void run()
+	{
+	    ArrayList<LocalClockConnection> dead =
+		new ArrayList<LocalClockConnection>();
+	    while (true) {
+		try { Thread.sleep(20); }
+		catch (InterruptedException e) { return; }
+		mutex.lock();
+		try {
+		    for (LocalClockConnection c: threads)
+			if (c.thread.getState() == Thread.State.TERMINATED)
+			    dead.add(c);
+		} finally { mutex.unlock(); }
+		for (LocalClockConnection c: dead) detach(c);
+		dead.clear();
+	    }
+	}
+    }
+}
@@ -0,0 +1,129 @@
+package com.uppaal.tron;
+
+import java.util.concurrent.locks.Condition;
+
+/**
+ * Connection of one VirtualThread to the in-process LocalClock. Requests are
+ * executed directly by the calling thread under the engine lock, the thread
+ * parks on its own condition while it is blocked in the clock. The clock
+ * value is cached after every blocking command at no cost.
+ *
+ *@see ClockConnection
+ *@see LocalClock
+ */
+class LocalClockConnection extends ClockConnection
+{
+    private final LocalClock clock;
+    final Thread thread;
+    final Condition wake;
+    boolean active = true;
+    boolean blocked = false;
+    int result = VirtualThread.C_OK;
+    /** Absolute timed wait deadline in microseconds, negative if none. */
+    long deadline = -1;
+    LocalClock.Cond cond = null;
+    /** The mutex to reacquire after the wait or to wait for. */
+    LocalClock.Mutex mutex = null;
+    /** Timing wheel links of the timed wait. */
+    LocalClockConnection wheelPrev = null, wheelNext = null;
+    int wheelLevel, wheelSlot;
+
+    LocalClockConnection(LocalClock clock, Thread thread)
+    {
+	this.clock = clock;
+	this.thread = thread;
+	wake = clock.mutex.newCondition();
+    }
+
+    private static long micros(int sec, int micros)
+    {
+	return sec * 1000000L + micros;
+    }
+
+    void send(char cmd, int... args)
+    {
+	if (cmd == VirtualThread.C_Quit) {
+	    clock.detach(this);
+	    return;
+	}
+	call(cmd, args);
+    }
+
+    int call(char cmd, int... args)
+    {
+	expire(cmd);
+	clock.mutex.lock();
+	try {
+	    int res = execute(cmd, args);
+	    if (blocks(cmd)) stamp(clock.now() / 1000);
+	    return res;
+	} finally { clock.mutex.unlock(); }
+    }
+
+    private int execute(char cmd, int[] args)
+    {
+	switch (cmd) {
+	case VirtualThread.C_Deactivate: return clock.deactivate(this);
+	case VirtualThread.C_Activate: return clock.activate(this);
+	case VirtualThread.C_MutexInit: return clock.mutexInit();
+	case VirtualThread.C_MutexDest:
+	    clock.mutexDestroy(args[0]);
+	    return VirtualThread.C_OK;
+	case VirtualThread.C_MutexLock: return clock.lock(this, args[0]);
+	case VirtualThread.C_MutexUnlock:
+	    return clock.unlock(this, args[0]);
+	case VirtualThread.C_MutexTryLock:
+	    return clock.tryLock(this, args[0]);
+	case VirtualThread.C_MutexTimedLock:
+	    return clock.lock(this, args[0], micros(args[1], args[2]));
+	case VirtualThread.C_CondInit: return clock.condInit();
+	case VirtualThread.C_CondDest:
+	    clock.condDestroy(args[0]);
+	    return VirtualThread.C_OK;
+	case VirtualThread.C_Wait:
+	    return clock.await(this, args[0], args[1], -1);
+	case VirtualThread.C_TimedWait:
+	    return clock.await(this, args[0], args[1],
+			       micros(args[2], args[3]));
+	case VirtualThread.C_Delay:
+	    return clock.delay(this, args[0], args[1],
+			       micros(args[2], args[3]));
+	case VirtualThread.C_Signal:
+	    clock.signal(args[0]);
+	    return VirtualThread.C_OK;
+	case VirtualThread.C_Broadcast:
+	    clock.broadcast(args[0]);
+	    return VirtualThread.C_OK;
+	case VirtualThread.C_SignalUnlock:
+	    clock.signal(args[0]);
+	    return clock.unlock(this, args[1]);
+	case VirtualThread.C_BroadcastUnlock:
+	    clock.broadcast(args[0]);
+	    return clock.unlock(this, args[1]);
+	case VirtualThread.C_UnlockWait:
+	    return clock.unlockWait(this, args[0], args[1],
+				    (args[2] < 0) ? -1
+				    : micros(args[2], args[3]));
+	case VirtualThread.C_LockDelay: {
+	    int res = clock.lock(this, args[1]);
+	    if (res != VirtualThread.C_OK) return res;
+	    return clock.delay(this, args[0], args[1],
+			       micros(args[2], args[3]));
+	}
+	default:
+	    return VirtualThread.C_Error;
+	}
+    }
+
+    boolean conditionalLocking() { return true; }
+
+    long requestTime()
+    {
+	return clock.getTimeMicros() / 1000;
+    }
+
+    void close()
+    {
+	clock.detach(this);
+    }
+}
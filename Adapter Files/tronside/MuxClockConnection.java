@@ -0,0 +1,106 @@
+package com.uppaal.tron;
+
+import java.io.IOException;
+
+/**
+ * Connection of one VirtualThread to the clock service through the shared
+ * ClockMultiplexer connection. The calling thread blocks on this object
+ * until the multiplexer reader delivers the reply with the matching
+ * request identifier. Commands which may block are sent with the
+ * C_Stamped flag, so their replies refresh the cached clock value.
+ *
+ *@see ClockConnection
+ *@see ClockMultiplexer
+ */
+class MuxClockConnection extends ClockConnection
+{
+    private final ClockMultiplexer mux;
+    /** Thread identifier on the multiplexed connection. */
+    final int id;
+    private int request = 0; // the last request sent
+    private int answered = 0; // the last request replied
+    private final int[] reply = new int[4];
+    private IOException error = null;
+
+    MuxClockConnection(ClockMultiplexer mux, int id)
+    {
+	this.mux = mux;
+	this.id = id;
+    }
+
+    /**
+     * Registers the thread name with the clock service.
+     */
+    void attach(String name) throws IOException
+    {
+	int req = next();
+	mux.write(id, req, ClockMultiplexer.C_Attach, null, name);
+	await(req);
+	if (reply[0] != 0)
+	    throw new IOException("clock refused thread "+name+": "+reply[0]);
+    }
+
+    private synchronized int next() { return ++request; }
+
+    void send(char cmd, int... args) throws IOException
+    {
+	mux.write(id, next(), cmd, args, null);
+    }
+
+    int call(char cmd, int... args) throws IOException
+    {
+	boolean stamped = blocks(cmd);
+	expire(cmd);
+	int req = next();
+	mux.write(id, req, stamped ? (char)(cmd | C_Stamped) : cmd, args, null);
+	await(req);
+	if (stamped) stamp(toMillis(reply[1], reply[2]));
+	return reply[0];
+    }
+
+    long requestTime() throws IOException
+    {
+	int req = next();
+	mux.write(id, req, VirtualThread.C_GetTime, null, null);
+	await(req);
+	return toMillis(reply[0], reply[1]);
+    }
+
+    void close() throws IOException
+    {
+	mux.detach(this);
+    }
+
+    /**
+     * Blocks (uninterruptibly, like a socket read) until the reply arrives.
+     */
+    private synchronized void await(int req) throws IOException
+    {
+	boolean interrupted = false;
+	while (answered != req && error == null) {
+	    try { wait(); }
+	    catch (InterruptedException e) { interrupted = true; }
+	}
+	if (interrupted) Thread.currentThread().interrupt();
+	if (error != null) throw error;
+    }
+
+    /**
+     * Called by the multiplexer reader when a reply arrives.
+     */
+    synchronized void deliver(int req, int[] values, int n)
+    {
+	System.arraycopy(values, 0, reply, 0, Math.min(n, reply.length));
+	answered = req;
+	notifyAll();
+    }
+
+    /**
+     * Called by the multiplexer reader when the connection is lost.
+     */
+    synchronized void fail(IOException e)
+    {
+	error = e;
+	notifyAll();
+    }
+}
@@ -0,0 +1,106 @@
+package com.uppaal.tron;
+
+/**
+ * Collects several output actions to be reported to the tester at once.
+ *<p>
+ * The actions are encoded into the wire format as they are added, so
+ * Reporter.reportBatch() transmits the whole batch with one write and one
+ * flush, and (in virtual time) waits for all the acknowledgements in one go.
+ * The buffer is cleared after being reported and can be reused, it is not
+ * thread safe: use one buffer per reporting thread.
+ *
+ *@see Reporter#reportBatch
+ */
+public class ReportBuffer
+{
+    private byte[] data;
+    private int length = 0;
+    private int count = 0;
+
+    /**
+     * Creates an empty batch with default initial capacity.
+     */
+    public ReportBuffer() { this(256); }
+
+    /**
+     * Creates an empty batch.
+     * @param capacity the initial capacity in bytes, the buffer grows when
+     * needed.
+     */
+    public ReportBuffer(int capacity)
+    {
+	data = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Adds an output action without parameters.
+     * @param chan the channel identifier.
+     */
+    public void add(int chan)
+    {
+	reserve(6);
+	putInt(chan);
+	putShort(0);
+	++count;
+    }
+
+    /**
+     * Adds an output action with parameters.
+     * @param chan the channel identifier.
+     * @param params the variable values attached to the output action.
+     */
+    public void add(int chan, int[] params)
+    {
+	reserve(6 + 4 * params.length);
+	putInt(chan);
+	putShort(params.length);
+	for (int p: params) putInt(p);
+	++count;
+    }
+
+    /**
+     * Returns the number of output actions in this batch.
+     */
+    public int size() { return count; }
+
+    /**
+     * Checks whether the batch has no actions.
+     */
+    public boolean isEmpty() { return (count == 0); }
+
+    /**
+     * Removes all actions from this batch, keeping the allocated storage.
+     */
+    public void clear()
+    {
+	length = 0;
+	count = 0;
+    }
+
+    byte[] bytes() { return data; }
+
+    int length() { return length; }
+
+    private void reserve(int n)
+    {
+	if (length + n > data.length) {
+	    byte[] larger = new byte[Math.max(data.length * 2, length + n)];
+	    System.arraycopy(data, 0, larger, 0, length);
+	    data = larger;
+	}
+    }
+
+    private void putShort(int v)
+    {
+	data[length++] = (byte)(v >>> 8);
+	data[length++] = (byte)v;
+    }
+
+    private void putInt(int v)
+    {
+	data[length++] = (byte)(v >>> 24);
+	data[length++] = (byte)(v >>> 16);
+	data[length++] = (byte)(v >>> 8);
+	data[length++] = (byte)v;
+    }
+}
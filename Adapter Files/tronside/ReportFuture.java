@@ -0,0 +1,97 @@
+package com.uppaal.tron;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Completion handle of an output action (or a batch of actions) reported to
+ * the tester.
+ *<p>
+ * In virtual time the report completes when the tester has acknowledged all
+ * the actions, reports complete in the order they were transmitted. In real
+ * time the report completes as soon as it is transmitted.
+ *
+ *@see Reporter#reportAsync
+ *@see ReportListener
+ */
+public class ReportFuture
+{
+    private final int chan;
+    private final boolean async;
+    private final ReportListener listener;
+    private int pending; // acknowledgements still expected
+    private boolean done = false;
+    private boolean failed = false;
+
+    ReportFuture(int chan, int acks, boolean async, ReportListener listener)
+    {
+	this.chan = chan;
+	this.pending = acks;
+	this.async = async;
+	this.listener = listener;
+    }
+
+    /**
+     * Returns the channel identifier of the (first) reported action.
+     */
+    public int getChannel() { return chan; }
+
+    /**
+     * Checks whether the report has completed (successfully or not).
+     */
+    public synchronized boolean isDone() { return done; }
+
+    /**
+     * Checks whether the report failed, i.e. the tester was disconnected
+     * before acknowledging it.
+     */
+    public synchronized boolean isFailed() { return failed; }
+
+    /**
+     * Blocks until the report completes.
+     */
+    public synchronized void await() throws InterruptedException
+    {
+	while (!done) wait();
+    }
+
+    /**
+     * Blocks until the report completes or the (host clock) time elapses.
+     * @return true if completed, false on timeout.
+     */
+    public synchronized boolean await(long time, TimeUnit unit)
+	throws InterruptedException
+    {
+	long deadline = System.nanoTime() + unit.toNanos(time);
+	while (!done) {
+	    long left = deadline - System.nanoTime();
+	    if (left <= 0) return false;
+	    TimeUnit.NANOSECONDS.timedWait(this, left);
+	}
+	return true;
+    }
+
+    boolean isAsync() { return async; }
+
+    /**
+     * Consumes up to n acknowledgements and completes when none are pending.
+     * @return the number of acknowledgements consumed.
+     */
+    int acknowledge(int n)
+    {
+	int used = Math.min(n, pending);
+	pending -= used;
+	if (pending == 0) complete(false);
+	return used;
+    }
+
+    void complete(boolean failure)
+    {
+	synchronized (this) {
+	    if (done) return;
+	    done = true;
+	    failed = failure;
+	    notifyAll();
+	}
+	if (listener != null) listener.reported(this);
+    }
+}
@@ -0,0 +1,23 @@
+package com.uppaal.tron;
+
+/**
+ * Receives completion notifications of asynchronously reported outputs.
+ *
+ * @see Reporter#reportAsync(int, int[], ReportListener)
+ */
+public interface ReportListener
+{
+    /**
+     * The method is called when the output action has been acknowledged by
+     * the tester (virtual time), transmitted (real time) or has failed due
+     * to disconnection.
+     *
+     * The method is called from the Reporter thread (or from the reporting
+     * thread in real time) and must not block: in particular it must not
+     * call the blocking Reporter.report() methods.
+     *
+     * @param report the completed report.
+     * @see ReportFuture#isFailed
+     */
+    public void reported(ReportFuture report);
+}
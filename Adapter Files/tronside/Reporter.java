@@ -4,6 +4,8 @@ import java.net.Socket;
 import java.net.ServerSocket;
 import java.net.UnknownHostException;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -42,6 +44,13 @@ public class Reporter extends VirtualThread
      * This variable can be set via environment variable DEBUG_REPORTER.
      */
     public static boolean DBG = (System.getenv("DEBUG_REPORTER")!=null);
+    /**
+     * Controls whether the constructors without explicit transport choice
+     * use the non-blocking SocketChannel transport instead of socket streams.
+     * This variable can be set via environment variable REPORTER_NIO.
+     * @see Reporter#Reporter(Adapter, int, boolean)
+     */
+    public static boolean NIO = (System.getenv("REPORTER_NIO")!=null);
     /**
      * Socket adapter command for requesting an integer encoding of
      * input channel.
@@ -133,15 +142,22 @@ public class Reporter extends VirtualThread
 
     private DataInputStream is = null;
     private DataOutputStream os = null;
+    private Transport io = null;
 
     private Adapter adapter = null;
     private boolean abort = false;
     private Object lock = new Object();
-    private int acks = 0;
+    /** Reports waiting for acknowledgements, in transmission order. */
+    private final LinkedList<ReportFuture> outstanding =
+	new LinkedList<ReportFuture>();
+    /** Number of asynchronous reports in outstanding. */
+    private int inFlight = 0;
 
     private ServerSocket server = null;
+    private ServerSocketChannel channelServer = null;
     private String host = null;
     private int port = 0;
+    private boolean nio = false;
 
     /**
      * Constructor for listening on ServerSocket port and accepting incoming
@@ -152,13 +168,34 @@ public class Reporter extends VirtualThread
      * actions.
      * @param port the port number to listen for connections.
      * @see Adapter
+     * @see Reporter#NIO
      */
     public Reporter(Adapter adapter, int port)
+    {
+	this(adapter, port, NIO);
+    }
+    /**
+     * Constructor for listening on port and accepting incoming tester
+     * connections with a chosen transport.
+     *
+     * @param adapter a test adapter capable of receiving and delivering input
+     * actions.
+     * @param port the port number to listen for connections.
+     * @param nio true for non-blocking SocketChannel transport, false for
+     * socket streams.
+     * @see Adapter
+     */
+    public Reporter(Adapter adapter, int port, boolean nio)
     {
 	super("TR.Receiver");
 	this.adapter = adapter;
-	try { server = new ServerSocket(port); }
-	catch (IOException e) {
+	this.nio = nio;
+	try {
+	    if (nio) {
+		channelServer = ServerSocketChannel.open();
+		channelServer.socket().bind(new InetSocketAddress(port));
+	    } else server = new ServerSocket(port);
+	} catch (IOException e) {
 	    System.err.println(e);
 	    System.exit(-1);
 	}
@@ -173,22 +210,39 @@ public class Reporter extends VirtualThread
      * @param host a machine address where tester process is running.
      * @param port the port number where tester listens for connections.
      * @see Adapter
+     * @see Reporter#NIO
      */
     public Reporter(Adapter adapter, String host, int port)
+    {
+	this(adapter, host, port, NIO);
+    }
+    /**
+     * Constructor for connecting to tester process with a chosen transport.
+     *
+     * @param adapter a test adapter capable of receiving and delivering input
+     * actions.
+     * @param host a machine address where tester process is running.
+     * @param port the port number where tester listens for connections.
+     * @param nio true for non-blocking SocketChannel transport, false for
+     * socket streams.
+     * @see Adapter
+     */
+    public Reporter(Adapter adapter, String host, int port, boolean nio)
     {
 	super("TR.Receiver");
 	this.adapter = adapter;
 	this.host = new String(host);
 	this.port = port;
+	this.nio = nio;
 	start();
     }
 
     private String readString() throws IOException
     {
-	int len = is.readByte();
+	int len = io.readByte();
 	if (len > 0) {
 	    byte[] buffer = new byte[len];
-	    is.read(buffer, 0, len);
+	    io.readFully(buffer, 0, len);
 	    return new String(buffer);
 	} else return null;
     }
@@ -196,8 +250,11 @@ public class Reporter extends VirtualThread
     private void writeString(String s) throws IOException
     {
     	// System.out.println(s);
-	os.writeByte(s.length());
-	os.writeBytes(s);
+	int len = s.length();
+	byte[] buffer = new byte[len];
+	for (int i=0; i<len; ++i) buffer[i] = (byte)s.charAt(i);
+	io.writeByte(len);
+	io.write(buffer, 0, len);
     }
     
     public DataOutputStream getOs() {
@@ -205,6 +262,7 @@ public class Reporter extends VirtualThread
 	}
 	public void setOs(DataOutputStream os) {
 		this.os = os;
+		io = new StreamTransport(is, os);
 	}
 	/**
      * Adds an input channel to the testing interface and returns a channel
@@ -221,10 +279,10 @@ public class Reporter extends VirtualThread
     {
 	if (connected)
 	    throw new TronException("Testing already in progress");
-	os.writeByte(SA_InpEnc);
+	io.writeByte(SA_InpEnc);
 	writeString(channel);
-	os.flush();
-	int res = is.readInt();
+	io.flush();
+	int res = io.readInt();
 	if (res < 0)
 	    throw new TronException("addInput: " + getErrorMessage(res));
 	return res;
@@ -245,10 +303,10 @@ public class Reporter extends VirtualThread
     {
 	if (connected)
 	    throw new TronException("Testing already in progress");
-	os.writeByte(SA_OutEnc);
+	io.writeByte(SA_OutEnc);
 	writeString(channel);
-	os.flush();
-	int res = is.readInt();
+	io.flush();
+	int res = io.readInt();
 	if (res < 0)
 	    throw new TronException("addOutput: " + getErrorMessage(res));
 	return res;
@@ -268,11 +326,11 @@ public class Reporter extends VirtualThread
     {
 	if (connected)
 	    throw new TronException("Testing already in progress");
-	os.writeByte(SA_VarToInp);
-	os.writeInt(channel);
+	io.writeByte(SA_VarToInp);
+	io.writeInt(channel);
 	writeString(variable);
-	os.flush();
-	int res = is.readInt();
+	io.flush();
+	int res = io.readInt();
 	if (res < 0)
 	    throw new TronException("addVarToInput: " + getErrorMessage(res));
     }
@@ -290,11 +348,11 @@ public class Reporter extends VirtualThread
     {
 	if (connected)
 	    throw new TronException("Testing already in progress");
-	os.writeByte(SA_VarToOut);
-	os.writeInt(channel);
+	io.writeByte(SA_VarToOut);
+	io.writeInt(channel);
 	writeString(variable);
-	os.flush();
-	int res = is.readInt();
+	io.flush();
+	int res = io.readInt();
 	if (res < 0)
 	    throw new TronException("addVarToOutput: " + getErrorMessage(res));
     }
@@ -308,10 +366,10 @@ public class Reporter extends VirtualThread
     {
 	if (connected)
 	    throw new TronException("Testing already in progress");
-	os.writeByte(SA_TimeUnit);
-	os.writeLong(microsecs);
-	os.flush();
-	int res = is.readInt();
+	io.writeByte(SA_TimeUnit);
+	io.writeLong(microsecs);
+	io.flush();
+	int res = io.readInt();
 	if (res < 0)
 	    throw new TronException("setTimeUnit: " + getErrorMessage(res));
     }
@@ -325,10 +383,10 @@ public class Reporter extends VirtualThread
     {
 	if (connected)
 	    throw new TronException("Testing already in progress");
-	os.writeByte(SA_Timeout);
-	os.writeInt(timeout_in_units);
-	os.flush();
-	int res = is.readInt();
+	io.writeByte(SA_Timeout);
+	io.writeInt(timeout_in_units);
+	io.flush();
+	int res = io.readInt();
 	if (res < 0)
 	    throw new TronException("setTimeout: " + getErrorMessage(res));
     }
@@ -347,9 +405,16 @@ public class Reporter extends VirtualThread
     {
 	try {
 	    connected = false;
-	    if (os != null) os.close();
-	    if (os != null) is.close();
+	    if (io != null) io.close();
 	} catch (IOException e){}
+	synchronized (lock) { // nobody is going to acknowledge these
+	    for (ReportFuture f: outstanding) f.complete(true);
+	    outstanding.clear();
+	    if (inFlight > 0) {
+		inFlight = 0;
+		deactivate(); // balance the activation of transmit()
+	    }
+	}
     }
     /**
      * Disconnects, interrupts the serving threads and releases connection
@@ -364,10 +429,15 @@ public class Reporter extends VirtualThread
     private void accept() throws IOException
     {
 	try {
+	    if (nio) {
+		io = ChannelTransport.accept(channelServer);
+		return;
+	    }
 	    Socket socket = server.accept();
 	    socket.setTcpNoDelay(true);
 	    is = new DataInputStream(socket.getInputStream());
 	    os = new DataOutputStream(socket.getOutputStream());
+	    io = new StreamTransport(is, os);
 	} catch (IOException e) {
 	    System.err.println(e);
 	}
@@ -376,10 +446,15 @@ public class Reporter extends VirtualThread
     private void connect()
 	throws UnknownHostException, ConnectException, IOException
     {
+	if (nio) {
+	    io = ChannelTransport.connect(host, port);
+	    return;
+	}
 	Socket socket = new Socket(host, port);
 	socket.setTcpNoDelay(true);
 	is = new DataInputStream(socket.getInputStream());
 	os = new DataOutputStream(socket.getOutputStream());
+	io = new StreamTransport(is, os);
     }
 
     /**
@@ -391,11 +466,11 @@ public class Reporter extends VirtualThread
     {
 	deactivate();
 	while (!abort) try {
-	    if (server != null) accept();
+	    if (server != null || channelServer != null) accept();
 	    else connect();
 	    adapter.configure(this);
-	    os.writeByte(SA_TestExec);
-	    os.flush();
+	    io.writeByte(SA_TestExec);
+	    io.flush();
 	    String res = readString();
 	    if (res != null)
 		throw new TronException("TRON configure problem: "+res);
@@ -403,26 +478,22 @@ public class Reporter extends VirtualThread
 	    int chan;
 	    while (!abort) {
 		if (DBG) System.err.println("TR waiting for incomming inputs");
-		chan = is.readInt();
+		chan = io.readInt();
 		if ((chan & SA_Ack) != 0) {
 		    chan &= ~SA_Ack;
 		    if (DBG) System.err.println("TR got ack");
 		    if (virtualtime())// acknowledge for virtual
 			synchronized (lock) { // ensure write consistency
-			    ++acks;
-			    lock.notifyAll();
+			    acknowledge((chan > 0) ? chan : 1); // (n | SA_Ack)
 			}
 		} else {
 		    if (DBG) System.err.println("TR perform "+chan);
-		    short n = is.readShort();
-		    int[] data = new int[n];
-		    for (int i=0; i<n; ++i)
-			data[i] = is.readInt();
+		    int[] data = io.readParams();
 		    adapter.perform(chan, data);
 		    if (virtualtime()) {
 			synchronized (lock) { // ensure write consistency
-			    os.writeInt(SA_Ack | 1);
-			    os.flush();
+			    io.writeInt(SA_Ack | 1);
+			    io.flush();
 			}
 		    }
 		}
@@ -455,35 +526,91 @@ public class Reporter extends VirtualThread
     public String getErrorMessage(int error_code) throws IOException
     {
 	if (DBG) System.err.println("Reporter.getErrorMessage");
-	os.writeByte(SA_GetError);
-	os.writeInt(error_code);
-	os.flush();
+	io.writeByte(SA_GetError);
+	io.writeInt(error_code);
+	io.flush();
 	return readString();
     }
 
+    /**
+     * Transmits the action(s) and registers the report for acknowledgement.
+     * Must be called while holding the lock.
+     * @param batch the batch to transmit or null for a single action.
+     */
+    private ReportFuture transmit(int chan, int[] params, ReportBuffer batch,
+				  boolean async, ReportListener listener)
+	throws IOException
+    {
+	int count = (batch != null) ? batch.size() : 1;
+	ReportFuture f = new ReportFuture(chan, count, async, listener);
+	if (virtualtime() && async && inFlight++ == 0)
+	    activate(); // the time must not pass until acknowledged
+	try {
+	    if (batch != null) io.write(batch.bytes(), 0, batch.length());
+	    else io.writeAction(chan, params);
+	    io.flush();
+	} catch (IOException e) { // never acknowledged
+	    if (virtualtime() && async && --inFlight == 0) deactivate();
+	    throw e;
+	}
+	if (virtualtime()) outstanding.add(f);
+	else f.complete(false);
+	return f;
+    }
+
+    /**
+     * Completes the outstanding reports in order using n acknowledgements.
+     * Must be called while holding the lock.
+     */
+    private void acknowledge(int n)
+    {
+	while (n > 0 && !outstanding.isEmpty()) {
+	    ReportFuture f = outstanding.getFirst();
+	    n -= f.acknowledge(n);
+	    if (f.isDone()) {
+		outstanding.removeFirst();
+		if (f.isAsync() && --inFlight == 0)
+		    deactivate(); // let the virtual time pass again
+	    }
+	}
+	if (n > 0 && DBG) System.err.println("TR unexpected acks: "+n);
+    }
+
     /**
      * Reports the output action without parameters to the tester.
      * @param chan the channel identifier
      * @see Reporter#report(int, int[])
      */
     public void report(int chan)
+    {
+	report(chan, null);
+    } /* report() */
+
+    /**
+     * Reports the output action to the tester.
+     * In virtual time the call blocks until the tester acknowledges the
+     * action.
+     * @param chan the channel identifier
+     * @param params the variable values attached to the output action.
+     * @see Reporter#report(int)
+     * @see Reporter#reportAsync(int, int[])
+     */
+    public void report(int chan, int[] params)
     {
 	if (connected) {
 	    try {
 		if (DBG) System.err.println("TR.report transmitting");
+		ReportFuture f;
 		synchronized (lock) { // ensure socket write consistency
-		    os.writeInt(chan);
-		    os.writeShort(0);
-		    os.flush();
-		    if (virtualtime()) try { // block the virtual time
-			if (DBG) System.err.println("TR.report wait for ack");
-			while (acks == 0) lock.wait();// wait for ack
-			--acks;
-		    } catch (InterruptedException e) {
-			System.err.println(e);
-		    }
+		    f = transmit(chan, params, null, false, null);
+		}
+		if (virtualtime()) { // block the virtual time
+		    if (DBG) System.err.println("TR.report wait for ack");
+		    f.await();
 		}
 		if (DBG) System.err.println("TR.report success");
+	    } catch (InterruptedException e) {
+		System.err.println(e);
 	    } catch (IOException e) {
 		System.err.println(e);
 		disconnect();
@@ -492,34 +619,83 @@ public class Reporter extends VirtualThread
     } /* report() */
 
     /**
-     * Reports the output action to the tester.
+     * Reports the output action to the tester without waiting for the
+     * acknowledgement, so that several outputs can be in flight at once.
+     * Reports are acknowledged and completed in the order of transmission.
+     * In virtual time the Reporter thread blocks the time passage until all
+     * asynchronous reports are acknowledged, hence the output is still
+     * observed by the tester at the time it was produced.
      * @param chan the channel identifier
-     * @param params the variable values attached to the output action.
-     * @see Reporter#report(int)
+     * @param params the variable values attached to the output action, null
+     * for none.
+     * @return completion handle of this report, or null if the tester is not
+     * connected.
+     * @see Reporter#reportAsync(int, int[], ReportListener)
      */
-    public void report(int chan, int[] params)
+    public ReportFuture reportAsync(int chan, int[] params)
     {
-	if (connected) {
+	return reportAsync(chan, params, null);
+    }
+
+    /**
+     * Reports the output action to the tester without waiting for the
+     * acknowledgement and notifies the listener upon completion.
+     * @param chan the channel identifier
+     * @param params the variable values attached to the output action, null
+     * for none.
+     * @param listener gets notified when the report completes.
+     * @return completion handle of this report, or null if the tester is not
+     * connected.
+     * @see Reporter#reportAsync(int, int[])
+     * @see ReportListener
+     */
+    public ReportFuture reportAsync(int chan, int[] params,
+				    ReportListener listener)
+    {
+	if (!connected) return null;
+	try {
+	    if (DBG) System.err.println("TR.reportAsync transmitting");
+	    synchronized (lock) { // ensure socket write consistency
+		return transmit(chan, params, null, true, listener);
+	    }
+	} catch (IOException e) {
+	    System.err.println(e);
+	    disconnect();
+	}
+	return null;
+    } /* reportAsync() */
+
+    /**
+     * Reports all output actions collected in the batch to the tester with
+     * a single write and flush. In virtual time the call returns when all
+     * the actions in the batch are acknowledged. The batch is cleared
+     * afterwards, so it can be reused for the next burst of outputs.
+     * @param batch the output actions to be reported.
+     * @see ReportBuffer
+     * @see Reporter#report(int, int[])
+     */
+    public void reportBatch(ReportBuffer batch)
+    {
+	if (connected && !batch.isEmpty()) {
 	    try {
-		if (DBG) System.err.println("TR.report transmitting");
+		if (DBG) System.err.println("TR.reportBatch transmitting "
+					    +batch.size());
+		ReportFuture f;
 		synchronized (lock) { // ensure socket write consistency
-		    os.writeInt(chan);
-		    os.writeShort(params.length);
-		    for (int p: params) os.writeInt(p);
-		    os.flush();
-		    if (virtualtime()) try { // block the virtual time
-			if (DBG) System.err.println("TR.report wait for ack");
-			while (acks == 0) lock.wait();// wait for ack
-			--acks;
-		    } catch (InterruptedException e) {
-			System.err.println(e);
-		    }
+		    f = transmit(0, null, batch, false, null);
 		}
-		if (DBG) System.err.println("TR.report success");
+		if (virtualtime()) { // block the virtual time
+		    if (DBG) System.err.println("TR.reportBatch wait for acks");
+		    f.await();
+		}
+		if (DBG) System.err.println("TR.reportBatch success");
+	    } catch (InterruptedException e) {
+		System.err.println(e);
 	    } catch (IOException e) {
 		System.err.println(e);
 		disconnect();
 	    }
 	}
-    } /* report() */
+	batch.clear();
+    } /* reportBatch() */
 } /* class Reporter */
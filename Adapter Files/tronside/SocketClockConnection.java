@@ -0,0 +1,89 @@
+package com.uppaal.tron;
+
+import java.net.Socket;
+import java.net.ConnectException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Dedicated TCP connection of one VirtualThread to the clock service.
+ * The thread is identified by the connection, its name is sent once after
+ * connecting: [byte of name length] [byte-string of name].
+ *
+ *@see ClockConnection
+ */
+class SocketClockConnection extends ClockConnection
+{
+    private final Socket socket;
+    private final DataInputStream is;
+    private final DataOutputStream os;
+
+    SocketClockConnection(Socket socket, String name) throws IOException
+    {
+	this.socket = socket;
+	socket.setTcpNoDelay(true);
+	is = new DataInputStream(socket.getInputStream());
+	os = new DataOutputStream(socket.getOutputStream());
+	os.writeByte(name.length());
+	os.writeBytes(name);
+    }
+
+    /**
+     * Connects to the clock service, retrying while the connection is
+     * refused.
+     * @param tries the number of connection attempts, 2 seconds apart.
+     */
+    static SocketClockConnection open(String host, int port, String name,
+				      int tries)
+	throws IOException
+    {
+	while (true) try {
+	    tries--;
+	    if (VirtualThread.DBG)
+		System.err.println("Connecting to clock #"+tries);
+	    return new SocketClockConnection(new Socket(host, port), name);
+	} catch (ConnectException e) {
+	    System.err.println(e);
+	    if (tries <= 0) throw e;
+	    try { Thread.sleep(2000); } // let's retry
+	    catch(InterruptedException ex){}
+	}
+    }
+
+    void send(char cmd, int... args) throws IOException
+    {
+	os.writeByte(cmd);
+	for (int a: args) os.writeInt(a);
+	os.flush();
+    }
+
+    int call(char cmd, int... args) throws IOException
+    {
+	expire(cmd);
+	if (isExtension(cmd)) return decompose(this, cmd, args);
+	send(cmd, args);
+	return is.readInt(); // block until result comes out
+    }
+
+    /**
+     * Receives one integer of the reply.
+     */
+    int receive() throws IOException
+    {
+	return is.readInt();
+    }
+
+    long requestTime() throws IOException
+    {
+	send(VirtualThread.C_GetTime);
+	int sec = is.readInt();
+	int micros = is.readInt();
+	return toMillis(sec, micros);
+    }
+
+    void close() throws IOException
+    {
+	socket.close();
+    }
+}
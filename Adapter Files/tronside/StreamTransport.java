@@ -0,0 +1,46 @@
+package com.uppaal.tron;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Blocking Transport over data streams of a Socket.
+ *
+ *@see Transport
+ */
+class StreamTransport extends Transport
+{
+    private final DataInputStream is;
+    private final DataOutputStream os;
+
+    StreamTransport(DataInputStream is, DataOutputStream os)
+    {
+	this.is = is;
+	this.os = os;
+    }
+
+    void writeByte(int b) throws IOException { os.writeByte(b); }
+    void writeShort(int s) throws IOException { os.writeShort(s); }
+    void writeInt(int i) throws IOException { os.writeInt(i); }
+    void writeLong(long l) throws IOException { os.writeLong(l); }
+    void write(byte[] b, int off, int len) throws IOException
+    {
+	os.write(b, off, len);
+    }
+    void flush() throws IOException { os.flush(); }
+
+    byte readByte() throws IOException { return is.readByte(); }
+    short readShort() throws IOException { return is.readShort(); }
+    int readInt() throws IOException { return is.readInt(); }
+    void readFully(byte[] b, int off, int len) throws IOException
+    {
+	is.readFully(b, off, len);
+    }
+
+    void close() throws IOException
+    {
+	if (os != null) os.close();
+	if (is != null) is.close();
+    }
+}
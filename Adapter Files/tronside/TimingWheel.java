@@ -0,0 +1,166 @@
+package com.uppaal.tron;
+
+/**
+ * Hierarchical timing wheel keeping the timed waits of LocalClock.
+ *<p>
+ * Deadlines are absolute microseconds. Level L has 64 slots, each spanning
+ * 64^L microseconds, and holds the entries whose deadline first differs
+ * from the wheel time in the L-th group of 6 bits, hence 11 levels cover
+ * the whole range of long without overflow lists. Occupied slots are
+ * tracked in one bitmap per level, so the earliest deadline is found with
+ * a few bit operations instead of a heap walk, and insertion and removal
+ * (e.g. on signal) are constant time on intrusive lists of the waiting
+ * connections.
+ *<p>
+ * The wheel time only moves forward, by advance(), when the clock is about
+ * to jump to the earliest deadline: the entries of the slots passed over
+ * are cascaded into the lower levels, the entries of the earliest deadline
+ * become due. Not thread safe, guarded by the LocalClock lock.
+ *
+ *@see LocalClock
+ */
+final class TimingWheel
+{
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = (64 + BITS - 1) / BITS;
+    /** Level mark of entries in the due list. */
+    private static final int DUE = -1;
+
+    private final LocalClockConnection[][] slots =
+	new LocalClockConnection[LEVELS][SLOTS];
+    private final long[] occupied = new long[LEVELS];
+    private LocalClockConnection due = null;
+    private long now = 0;
+    private int size = 0;
+
+    /**
+     * Returns the wheel time in microseconds.
+     */
+    long now() { return now; }
+
+    /**
+     * Returns the number of timed waits in the wheel.
+     */
+    int size() { return size; }
+
+    boolean isEmpty() { return (size == 0); }
+
+    /**
+     * Inserts the entry by its deadline, deadlines not in the future are
+     * due immediately.
+     */
+    void add(LocalClockConnection c)
+    {
+	long d = c.deadline;
+	++size;
+	if (d <= now) {
+	    link(c, DUE, 0);
+	    return;
+	}
+	int level = (63 - Long.numberOfLeadingZeros(d ^ now)) / BITS;
+	link(c, level, (int)(d >>> (BITS * level)) & (SLOTS - 1));
+    }
+
+    /**
+     * Removes the entry (e.g. when its condition is signalled).
+     */
+    void remove(LocalClockConnection c)
+    {
+	--size;
+	unlink(c);
+    }
+
+    /**
+     * Removes and returns an entry whose deadline has been reached, null if
+     * there is none.
+     */
+    LocalClockConnection pollDue()
+    {
+	LocalClockConnection c = due;
+	if (c != null) remove(c);
+	return c;
+    }
+
+    /**
+     * Moves the wheel time to the earliest deadline, the entries with that
+     * deadline become due.
+     * @return the new wheel time, or -1 if there are no entries.
+     */
+    long advance()
+    {
+	while (due == null) {
+	    int level = 0;
+	    while (level < LEVELS && occupied[level] == 0) ++level;
+	    if (level == LEVELS) return -1;
+	    // occupied slots are all ahead of the wheel time at their level:
+	    long slot = Long.numberOfTrailingZeros(occupied[level]);
+	    int shift = BITS * level;
+	    long high = (shift + BITS >= 64) ? 0 : (-1L << (shift + BITS));
+	    setNow((now & high) | (slot << shift));
+	}
+	return now;
+    }
+
+    /**
+     * Sets the wheel time (not beyond the earliest deadline) and cascades
+     * the slots which the new time falls into.
+     */
+    private void setNow(long time)
+    {
+	now = time;
+	for (int level = LEVELS - 1; level > 0; --level) {
+	    int slot = (int)(now >>> (BITS * level)) & (SLOTS - 1);
+	    LocalClockConnection c = slots[level][slot];
+	    if (c == null) continue;
+	    slots[level][slot] = null;
+	    occupied[level] &= ~(1L << slot);
+	    while (c != null) {
+		LocalClockConnection next = c.wheelNext;
+		c.wheelPrev = c.wheelNext = null;
+		--size;
+		add(c);
+		c = next;
+	    }
+	}
+	int slot = (int)now & (SLOTS - 1);
+	LocalClockConnection c = slots[0][slot];
+	while (c != null) {
+	    LocalClockConnection next = c.wheelNext;
+	    unlink(c);
+	    link(c, DUE, 0);
+	    c = next;
+	}
+    }
+
+    private void link(LocalClockConnection c, int level, int slot)
+    {
+	c.wheelLevel = level;
+	c.wheelSlot = slot;
+	c.wheelPrev = null;
+	if (level == DUE) {
+	    c.wheelNext = due;
+	    if (due != null) due.wheelPrev = c;
+	    due = c;
+	} else {
+	    LocalClockConnection head = slots[level][slot];
+	    c.wheelNext = head;
+	    if (head != null) head.wheelPrev = c;
+	    slots[level][slot] = c;
+	    occupied[level] |= (1L << slot);
+	}
+    }
+
+    private void unlink(LocalClockConnection c)
+    {
+	if (c.wheelNext != null) c.wheelNext.wheelPrev = c.wheelPrev;
+	if (c.wheelPrev != null) c.wheelPrev.wheelNext = c.wheelNext;
+	else if (c.wheelLevel == DUE) due = c.wheelNext;
+	else {
+	    slots[c.wheelLevel][c.wheelSlot] = c.wheelNext;
+	    if (c.wheelNext == null)
+		occupied[c.wheelLevel] &= ~(1L << c.wheelSlot);
+	}
+	c.wheelPrev = c.wheelNext = null;
+    }
+}
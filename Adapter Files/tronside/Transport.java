@@ -0,0 +1,69 @@
+package com.uppaal.tron;
+
+import java.io.IOException;
+
+/**
+ * Byte level connection to the tester used by Reporter.
+ *<p>
+ * All values are transmitted in network (big-endian) byte order, the same
+ * way as DataOutputStream does. Writes are buffered until flush() is called.
+ * Reading and writing may happen from different threads, but each direction
+ * must be serialized by the caller (Reporter uses its own lock for writes and
+ * its own thread for reads).
+ *
+ *@see Reporter
+ *@see StreamTransport
+ *@see ChannelTransport
+ */
+abstract class Transport
+{
+    abstract void writeByte(int b) throws IOException;
+    abstract void writeShort(int s) throws IOException;
+    abstract void writeInt(int i) throws IOException;
+    abstract void writeLong(long l) throws IOException;
+    abstract void write(byte[] b, int off, int len) throws IOException;
+    /**
+     * Transmits all buffered data.
+     */
+    abstract void flush() throws IOException;
+
+    abstract byte readByte() throws IOException;
+    abstract short readShort() throws IOException;
+    abstract int readInt() throws IOException;
+    abstract void readFully(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Closes the connection, blocked readers and writers get IOException.
+     */
+    abstract void close() throws IOException;
+
+    /**
+     * Writes an action frame: [int32 of channel] [int16 of parameter count]
+     * [int32 of each parameter]. The frame is not flushed.
+     * @param chan the channel identifier.
+     * @param params the parameter values, null means no parameters.
+     */
+    void writeAction(int chan, int[] params) throws IOException
+    {
+	writeInt(chan);
+	if (params == null) writeShort(0);
+	else {
+	    writeShort(params.length);
+	    for (int p: params) writeInt(p);
+	}
+    }
+
+    /**
+     * Reads the rest of an action frame following the channel identifier:
+     * [int16 of parameter count] [int32 of each parameter].
+     * @return the parameter values.
+     */
+    int[] readParams() throws IOException
+    {
+	short n = readShort();
+	int[] data = new int[n];
+	for (int i=0; i<n; ++i)
+	    data[i] = readInt();
+	return data;
+    }
+}
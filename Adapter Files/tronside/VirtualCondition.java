@@ -10,6 +10,9 @@ import java.util.Date;
  * then the local Condition from ReentrantLock is created.
  * Only threads originating from VirtualThread can create and manipulate
  * instances of VirtualCondition.
+ *<p>
+ * The conditions of a timeless or gated VirtualLock involve the clock only
+ * when waiting, or when signalling while some thread waits.
  *
  *@author Marius Mikucionis <marius@cs.aau.dk>
  *@see VirtualLock#newCondition
@@ -72,6 +75,10 @@ public class VirtualCondition implements Condition
 	VirtualThread t = (VirtualThread)Thread.currentThread();
 	if (lock.getOwner() != t)
 	    throw new IllegalMonitorStateException("waiter is not lock owner");
+	if (lock.isLocal()) {
+	    lock.timelessAwait(this, 0, null, true);
+	    return;
+	}
 	lock.setOwner(null);
 	t.condWait(this);
 	lock.setOwner(t);
@@ -92,6 +99,8 @@ public class VirtualCondition implements Condition
 	VirtualThread t = (VirtualThread)Thread.currentThread();
 	if (lock.getOwner() != t)
 	    throw new IllegalMonitorStateException("waiter is not lock owner");
+	if (lock.isLocal())
+	    return lock.timelessAwait(this, time, unit, true);
 	boolean res;
 	lock.setOwner(null);
 	res = t.condDelay(this, time, unit);
@@ -99,19 +108,30 @@ public class VirtualCondition implements Condition
 	return res;
     }
     /**
-     * Not implemented in virtual time framework.
+     * Blocks the calling thread like await(long,TimeUnit) and estimates the
+     * remaining virtual time of the delay.
+     * @param nanosTimeout the maximum time to wait in nanoseconds.
+     * @return the remaining time in nanoseconds, positive if the condition
+     * was signalled, otherwise not greater than zero.
      * @see Condition#awaitNanos
      */
     public long awaitNanos(long nanosTimeout) throws InterruptedException
     {
-	throw new UnsupportedOperationException("not implemented");
+	long start = VirtualThread.getTimeMillis();
+	boolean signalled = await(nanosTimeout, TimeUnit.NANOSECONDS);
+	long left = nanosTimeout - TimeUnit.MILLISECONDS.toNanos(
+	    VirtualThread.getTimeMillis() - start);
+	return signalled ? Math.max(left, 1) : Math.min(left, 0);
     }
     /**
-     * Not implemented in virtual time framework.
+     * Blocks the calling thread like await(). The wait in the clock is not
+     * interruptible anyway, a clock error counts as a spurious wake-up and
+     * only sets the interrupt status.
      * @see Condition#awaitUninterruptibly
      */
     public void awaitUninterruptibly(){
-	throw new UnsupportedOperationException("not implemented");
+	try { await(); }
+	catch (InterruptedException e) { Thread.currentThread().interrupt(); }
     }
     /**
      * Blocks the calling thread and waits until the condition is signalled or
@@ -126,6 +146,10 @@ public class VirtualCondition implements Condition
 	VirtualThread t = (VirtualThread)Thread.currentThread();
 	if (lock.getOwner() != t)
 	    throw new IllegalMonitorStateException("waiter is not lock owner");
+	if (lock.isLocal())
+	    return lock.timelessAwait(this, Math.max(deadline.getTime()
+					     - VirtualThread.getTimeMillis(), 0),
+				      TimeUnit.MILLISECONDS, true);
 	boolean res;
 	lock.setOwner(null);
 	res = t.condWait(this, deadline.getTime());
@@ -142,7 +166,8 @@ public class VirtualCondition implements Condition
 	VirtualThread t = (VirtualThread)Thread.currentThread();
 	if (lock.getOwner() != t)
 	    throw new IllegalMonitorStateException("thread is not lock owner");
-	t.condSignal(this);
+	if (lock.isLocal()) lock.timelessSignal(this, false, false);
+	else t.condSignal(this);
     }
     /**
      * Signals all threads waiting for this condition and lets them to
@@ -154,6 +179,103 @@ public class VirtualCondition implements Condition
 	VirtualThread t = (VirtualThread)Thread.currentThread();
 	if (lock.getOwner() != t)
 	    throw new IllegalMonitorStateException("thread is not lock owner");
-	t.condBroadcast(this);
+	if (lock.isLocal()) lock.timelessSignal(this, true, false);
+	else t.condBroadcast(this);
+    }
+    /**
+     * Selects one thread waiting for this condition, signals it and releases
+     * the associated lock, all in one clock request.
+     * @see VirtualCondition#signal
+     * @see VirtualLock#unlock
+     */
+    public void signalAndUnlock()
+    {
+	VirtualThread t = (VirtualThread)Thread.currentThread();
+	if (lock.getOwner() != t)
+	    throw new IllegalMonitorStateException("thread is not lock owner");
+	if (lock.isLocal()) {
+	    lock.timelessSignal(this, false, true);
+	    return;
+	}
+	lock.setOwner(null);
+	t.condSignalUnlock(this, false);
+    }
+    /**
+     * Signals all threads waiting for this condition and releases the
+     * associated lock, all in one clock request.
+     * @see VirtualCondition#signalAll
+     * @see VirtualLock#unlock
+     */
+    public void signalAllAndUnlock()
+    {
+	VirtualThread t = (VirtualThread)Thread.currentThread();
+	if (lock.getOwner() != t)
+	    throw new IllegalMonitorStateException("thread is not lock owner");
+	if (lock.isLocal()) {
+	    lock.timelessSignal(this, true, true);
+	    return;
+	}
+	lock.setOwner(null);
+	t.condSignalUnlock(this, true);
+    }
+    /**
+     * Releases the associated lock and waits until the condition is
+     * signalled. Unlike await(), the thread resumes without reacquiring
+     * the lock, which saves the following unlock request.
+     * @see VirtualCondition#await()
+     */
+    public void awaitAndUnlock() throws InterruptedException
+    {
+	VirtualThread t = (VirtualThread)Thread.currentThread();
+	if (lock.getOwner() != t)
+	    throw new IllegalMonitorStateException("waiter is not lock owner");
+	if (lock.isLocal()) {
+	    lock.timelessAwait(this, 0, null, false);
+	    return;
+	}
+	lock.setOwner(null);
+	t.condUnlockWait(this, 0, null);
+    }
+    /**
+     * Releases the associated lock and waits until the condition is
+     * signalled or the time delay has ellapsed. The thread resumes without
+     * reacquiring the lock.
+     * @param time specifies the duration of time delay.
+     * @param unit specifies the time units the time delay is in.
+     * @return true if the condition was signaled, otherwise false for timeout.
+     * @see VirtualCondition#await(long,TimeUnit)
+     */
+    public boolean awaitAndUnlock(long time, TimeUnit unit)
+	throws InterruptedException
+    {
+	VirtualThread t = (VirtualThread)Thread.currentThread();
+	if (lock.getOwner() != t)
+	    throw new IllegalMonitorStateException("waiter is not lock owner");
+	if (lock.isLocal())
+	    return lock.timelessAwait(this, time, unit, false);
+	lock.setOwner(null);
+	return t.condUnlockWait(this, time, unit);
+    }
+    /**
+     * Acquires the associated lock and then waits until the condition is
+     * signalled or the time delay has ellapsed, all in one clock request.
+     * Thread resumes with the associated lock acquired.
+     * @param time specifies the duration of time delay.
+     * @param unit specifies the time units the time delay is in.
+     * @return true if the condition was signaled, otherwise false for timeout.
+     * @see VirtualLock#lock
+     * @see VirtualCondition#await(long,TimeUnit)
+     */
+    public boolean lockAndAwait(long time, TimeUnit unit)
+	throws InterruptedException
+    {
+	VirtualThread t = (VirtualThread)Thread.currentThread();
+	if (lock.isLocal()) {
+	    lock.lock();
+	    return lock.timelessAwait(this, time, unit, true);
+	}
+	boolean res = t.condLockDelay(this, time, unit);
+	lock.setOwner(t);
+	return res;
     }
 }
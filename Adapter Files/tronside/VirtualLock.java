@@ -4,6 +4,7 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * VirtualLock replaces the Lock when running within virtual time framework.
@@ -11,6 +12,20 @@ import java.util.concurrent.TimeUnit;
  * then internal ReentrantLock (and its Conditions) is created.
  * Only threads originating from VirtualThread object can create and manipulate
  * instances of VirtualLock.
+ *<p>
+ * A lock can be declared timeless if no virtual time ever passes while it is
+ * held (the owner never delays or waits for other threads, except by waiting
+ * for its conditions). Then the lock is acquired and released locally
+ * without clock requests, and the clock mutex is taken only to wait for or
+ * to signal a condition when some thread actually waits.
+ *<p>
+ * On a clock service which cannot lock conditionally (a remote clock, see
+ * VirtualThread.conditionalLocking()), the other locks are gated: the
+ * ownership is kept locally in the same way, so tryLock() is a local test,
+ * while a thread finding the lock held waits in the clock, on a condition
+ * signalled at release, with the clock mutex as its guard. The virtual time
+ * can thus pass while the owner delays, and tryLock(long, TimeUnit) waits
+ * with a clock delay. The clock is involved only under contention.
  *
  *@author Marius Mikucionis <marius@cs.aau.dk>
  *@see VirtualThread
@@ -30,6 +45,26 @@ public class VirtualLock implements Lock
     protected VirtualThread owner;
     private final ReentrantLock l;
     private final String name;
+    /**
+     * Local lock of a timeless or gated lock in virtual time, otherwise null.
+     */
+    private final ReentrantLock fast;
+    /**
+     * Whether threads wait for the local lock in the clock.
+     */
+    private final boolean gated;
+    /**
+     * Signalled when a gated lock is released while threads wait for it.
+     */
+    private final VirtualCondition released;
+    /**
+     * The number of threads waiting for conditions of a timeless lock.
+     */
+    private final AtomicInteger waiters = new AtomicInteger();
+    /**
+     * The number of threads waiting in the clock for a gated lock.
+     */
+    private final AtomicInteger blocked = new AtomicInteger();
 
     /**
      * Creates a virtual lock which is located at virtual clock process.
@@ -37,13 +72,28 @@ public class VirtualLock implements Lock
      * @see VirtualThread#DBG
      */
     public VirtualLock(String name)
+    {
+	this(name, false);
+    }
+
+    /**
+     * Creates a virtual lock which is located at virtual clock process.
+     * @param name specify your friendly name to identify it in debug logs.
+     * @param timeless true if no virtual time passes while the lock is held,
+     * so that it can be acquired and released without clock requests.
+     * @see VirtualThread#DBG
+     */
+    public VirtualLock(String name, boolean timeless)
     {
 	VirtualThread t = (VirtualThread)Thread.currentThread();
 	id = t.mutexInit();
 	if (id < 0) l = new ReentrantLock();
 	else l = null;
+	gated = (l == null && !timeless && !t.conditionalLocking());
+	fast = (l == null && (timeless || gated)) ? new ReentrantLock() : null;
 	owner = null;
 	this.name = name;
+	released = gated ? new VirtualCondition(this, name+"-released") : null;
     }
 
     /**
@@ -58,8 +108,11 @@ public class VirtualLock implements Lock
 	id = t.mutexInit();
 	if (id < 0) l = new ReentrantLock();
 	else l = null;
+	gated = (l == null && !t.conditionalLocking());
+	fast = gated ? new ReentrantLock() : null;
 	owner = null;
 	name = t.getName()+"-lock";
+	released = gated ? new VirtualCondition(this, name+"-released") : null;
     }
 
     /**
@@ -83,6 +136,17 @@ public class VirtualLock implements Lock
      * @return true if the lock is taken.
      */
     public boolean isLocked(){ return (owner!=null); }
+    /**
+     * Checks whether this lock is acquired and released without clock
+     * requests.
+     * @return true if the lock was declared timeless and virtual time is used.
+     */
+    public boolean isTimeless(){ return (fast!=null && !gated); }
+    /**
+     * Checks whether the ownership is kept locally, the lock being timeless
+     * or gated, so that the conditions take the clock mutex only to wait.
+     */
+    boolean isLocal(){ return (fast!=null); }
 
     /**
      * Acquires the ownership of this lock. 
@@ -94,27 +158,116 @@ public class VirtualLock implements Lock
 	if (l != null) l.lock();
 	else {
 	    VirtualThread t = (VirtualThread)Thread.currentThread();
-	    t.mutexLock(this);
+	    if (gated) gatedLock(t, 0, null);
+	    else if (fast != null) fast.lock();
+	    else t.mutexLock(this);
 	    owner = t;// set reference after gaining mutex
 	}
     }
     /**
-     * Not implemented in virtual time framework.
+     * Acquires the ownership of this lock unless the thread is interrupted.
+     * In virtual time the interrupt is checked before blocking in the clock,
+     * a thread already blocked there waits until the lock is released.
+     */
+    public void lockInterruptibly() throws InterruptedException
+    {
+	if (l != null) l.lockInterruptibly();
+	else {
+	    VirtualThread t = (VirtualThread)Thread.currentThread();
+	    if (fast != null && !gated) fast.lockInterruptibly();
+	    else {
+		if (Thread.interrupted()) throw new InterruptedException();
+		if (gated) gatedLock(t, 0, null);
+		else t.mutexLock(this);
+	    }
+	    owner = t;
+	}
+    }
+    /**
+     * Acquires the ownership of this lock only if it is free.
+     * In virtual time, a lock known to be held is not requested from the
+     * clock at all, and a timeless or gated lock never is.
+     * @return true if the lock was acquired.
+     */
+    public boolean tryLock()
+    {
+	if (l != null) return l.tryLock();
+	VirtualThread t = (VirtualThread)Thread.currentThread();
+	if (fast != null) {
+	    if (!fast.tryLock()) return false;
+	} else if (owner != null || !t.mutexTryLock(this)) return false;
+	owner = t;
+	return true;
+    }
+    /**
+     * Acquires the ownership of this lock unless the time delay elapses
+     * first. A timeless lock is never held for virtual time, so it is
+     * acquired without a time limit.
+     * @param time specifies the duration of time delay.
+     * @param unit specifies the time units the time delay is in.
+     * @return true if the lock was acquired, false for timeout.
      */
-    public void lockInterruptibly() {
-	throw new UnsupportedOperationException("not implemented");
+    public boolean tryLock(long time, TimeUnit unit)
+	throws InterruptedException
+    {
+	if (l != null) return l.tryLock(time, unit);
+	VirtualThread t = (VirtualThread)Thread.currentThread();
+	if (gated) {
+	    if (Thread.interrupted()) throw new InterruptedException();
+	    if (!gatedLock(t, time, unit)) return false;
+	} else if (fast != null) fast.lockInterruptibly();
+	else if (!t.mutexLock(this, time, unit)) return false;
+	owner = t;
+	return true;
     }
+
     /**
-     * Not implemented in virtual time framework.
+     * Acquires the local lock of a gated lock, waiting in the clock while
+     * it is held.
+     * @param unit the time unit of the delay, null to wait without limit.
+     * @return true if the lock was acquired, false for timeout.
      */
-    public boolean tryLock() {
-	throw new UnsupportedOperationException("not implemented");
+    private boolean gatedLock(VirtualThread t, long time, TimeUnit unit)
+    {
+	if (fast.tryLock()) return true;
+	boolean interrupted = false;
+	long left = (unit != null) ? unit.toMicros(time) : 0;
+	t.mutexLock(this);
+	blocked.incrementAndGet(); // seen by the releaser after this point
+	try {
+	    while (!fast.tryLock()) {
+		if (unit != null && left <= 0) return false;
+		try {
+		    if (unit == null) t.condWait(released);
+		    else {
+			long start = t.getTime(true);
+			if (!t.condDelay(released, left, TimeUnit.MICROSECONDS))
+			    left = 0; // timed out, a last try
+			else left -= (t.getTime(true) - start) * 1000;
+		    }
+		} catch (InterruptedException e) { // a clock error, retried
+		    interrupted = true;
+		}
+	    }
+	    return true;
+	} finally {
+	    blocked.decrementAndGet();
+	    t.mutexUnlock(this);
+	    if (interrupted) Thread.currentThread().interrupt();
+	}
     }
+
     /**
-     * Not implemented in virtual time framework.
+     * Releases the local lock of a timeless or gated lock, waking up the
+     * threads waiting for a gated one in the clock.
      */
-    public boolean tryLock(long time, TimeUnit unit) {
-	throw new UnsupportedOperationException("not implemented");
+    private void localUnlock(VirtualThread t)
+    {
+	fast.unlock();
+	if (gated && blocked.get() > 0) {
+	    t.mutexLock(this);
+	    t.condSignalUnlock(released, true);
+	}
     }
     /**
      * Creates a condition variable associated with this lock.
@@ -157,7 +310,142 @@ public class VirtualLock implements Lock
 	    if (t != owner)
 		throw new IllegalMonitorStateException("caller is not owner");
 	    owner = null; // clear reference while protected by mutex
-	    t.mutexUnlock(this);
+	    if (fast != null) localUnlock(t);
+	    else t.mutexUnlock(this);
+	}
+    }
+
+    /**
+     * Signals one thread waiting for the condition and releases this lock
+     * in a single clock request.
+     * @param c the condition created by this lock.
+     * @see VirtualCondition#signalAndUnlock
+     */
+    public void signalAndUnlock(Condition c)
+    {
+	if (l != null) {
+	    c.signal();
+	    l.unlock();
+	} else ((VirtualCondition)c).signalAndUnlock();
+    }
+
+    /**
+     * Signals all threads waiting for the condition and releases this lock
+     * in a single clock request.
+     * @param c the condition created by this lock.
+     * @see VirtualCondition#signalAllAndUnlock
+     */
+    public void signalAllAndUnlock(Condition c)
+    {
+	if (l != null) {
+	    c.signalAll();
+	    l.unlock();
+	} else ((VirtualCondition)c).signalAllAndUnlock();
+    }
+
+    /**
+     * Waits until the condition is signalled and returns with this lock
+     * released, in a single clock request.
+     * @param c the condition created by this lock.
+     * @see VirtualCondition#awaitAndUnlock()
+     */
+    public void awaitAndUnlock(Condition c) throws InterruptedException
+    {
+	if (l != null) {
+	    try { c.await(); }
+	    finally { l.unlock(); }
+	} else ((VirtualCondition)c).awaitAndUnlock();
+    }
+
+    /**
+     * Waits until the condition is signalled or the time delay elapses and
+     * returns with this lock released, in a single clock request.
+     * @param c the condition created by this lock.
+     * @param time specifies the duration of time delay.
+     * @param unit specifies the time units the time delay is in.
+     * @return true if the condition was signaled, otherwise false for timeout.
+     * @see VirtualCondition#awaitAndUnlock(long, TimeUnit)
+     */
+    public boolean awaitAndUnlock(Condition c, long time, TimeUnit unit)
+	throws InterruptedException
+    {
+	if (l != null) {
+	    try { return c.await(time, unit); }
+	    finally { l.unlock(); }
+	} else return ((VirtualCondition)c).awaitAndUnlock(time, unit);
+    }
+
+    /**
+     * Acquires this lock and then waits until the condition is signalled or
+     * the time delay elapses, in a single clock request. Returns with this
+     * lock acquired.
+     * @param c the condition created by this lock.
+     * @param time specifies the duration of time delay.
+     * @param unit specifies the time units the time delay is in.
+     * @return true if the condition was signaled, otherwise false for timeout.
+     * @see VirtualCondition#lockAndAwait
+     */
+    public boolean lockAndAwait(Condition c, long time, TimeUnit unit)
+	throws InterruptedException
+    {
+	if (l != null) {
+	    l.lock();
+	    boolean ok = false;
+	    try {
+		boolean res = c.await(time, unit);
+		ok = true;
+		return res;
+	    } finally { if (!ok) l.unlock(); }
+	} else return ((VirtualCondition)c).lockAndAwait(time, unit);
+    }
+
+    /**
+     * Waits for the condition of a timeless or gated lock held by the
+     * calling thread. The clock mutex is taken before the local lock is
+     * released, hence a signalling thread cannot miss the waiter.
+     * @param unit the time unit of the delay, null for no delay.
+     * @param relock true if the thread should return with this lock held.
+     * @return true if the condition was signaled, otherwise false for timeout.
+     */
+    boolean timelessAwait(VirtualCondition c, long time, TimeUnit unit,
+			  boolean relock)
+	throws InterruptedException
+    {
+	VirtualThread t = (VirtualThread)Thread.currentThread();
+	t.mutexLock(this);
+	waiters.incrementAndGet();
+	owner = null;
+	fast.unlock();
+	if (gated && blocked.get() > 0)
+	    t.condBroadcast(released); // under the clock mutex already
+	try {
+	    return t.condUnlockWait(c, time, unit);
+	} finally {
+	    waiters.decrementAndGet();
+	    if (relock) {
+		if (gated) gatedLock(t, 0, null);
+		else fast.lock();
+		owner = t;
+	    }
+	}
+    }
+
+    /**
+     * Signals the condition of a timeless or gated lock held by the calling
+     * thread, the clock is involved only if some thread waits.
+     * @param all true if all waiting threads should be signalled.
+     * @param unlock true if this lock should be released afterwards.
+     */
+    void timelessSignal(VirtualCondition c, boolean all, boolean unlock)
+    {
+	VirtualThread t = (VirtualThread)Thread.currentThread();
+	if (waiters.get() > 0) {
+	    t.mutexLock(this);
+	    t.condSignalUnlock(c, all);
+	}
+	if (unlock) {
+	    owner = null;
+	    localUnlock(t);
 	}
     }
 }
@@ -1,10 +1,6 @@
 package com.uppaal.tron;
 
-import java.net.Socket;
 import java.net.UnknownHostException;
-import java.net.ConnectException;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 
 import java.util.concurrent.TimeUnit;
@@ -45,15 +41,18 @@ public class VirtualThread extends Thread
     public static boolean DBG = (System.getenv("DEBUG_THREADS")!=null);
     static String host = null;
     static int port;
+    static boolean multiplexed = false;
+    private static ClockMultiplexer mux = null;
+    static LocalClock local = null;
     private static Object lock = new Object();
     /**
      * Returns true if host clock is used instead of virtual time framework.
      */
-    public static boolean realtime() { return (host == null); }
+    public static boolean realtime() { return (host == null && local == null); }
     /**
      * Returns true if virtual time framework is used instead of host clock.
      */
-    public static boolean virtualtime() { return (host != null); }
+    public static boolean virtualtime() { return !realtime(); }
 
     /**
      * Turn on the virtual time framework, where the clock service is provided
@@ -62,10 +61,43 @@ public class VirtualThread extends Thread
      * @param port the port number where clock service is listening.
      */
     public static void setRemoteClock(String host, int port) {
-	if (DBG) System.err.println("Setting virtual clock to "+host+":"+port);
+	setRemoteClock(host, port, false);
+    }
+
+    /**
+     * Turn on the virtual time framework, where the clock service is provided
+     * at specified network location.
+     * @param host the name of the machine where the clock service is running.
+     * @param port the port number where clock service is listening.
+     * @param multiplexed true if all threads should share one connection to
+     * a multiplexing clock service (such as ClockGateway), false if every
+     * thread should open its own connection.
+     * @see ClockGateway
+     */
+    public static void setRemoteClock(String host, int port,
+				      boolean multiplexed) {
+	if (DBG) System.err.println("Setting virtual clock to "+host+":"+port
+				    +(multiplexed ? " (multiplexed)" : ""));
 	synchronized (lock) {
 	    VirtualThread.host = host;
 	    VirtualThread.port = port;
+	    VirtualThread.multiplexed = multiplexed;
+	    VirtualThread.local = null;
+	}
+    }
+
+    /**
+     * Turn on the virtual time framework, where the clock is provided by the
+     * engine within this process. No clock service process is needed, but
+     * the virtual time cannot be shared with other processes, like tester.
+     * @param clock the clock engine to be used by virtual threads.
+     * @see LocalClock
+     */
+    public static void setLocalClock(LocalClock clock) {
+	if (DBG) System.err.println("Setting virtual clock to local engine");
+	synchronized (lock) {
+	    VirtualThread.host = null;
+	    VirtualThread.local = clock;
 	}
     }
 
@@ -104,6 +136,14 @@ public class VirtualThread extends Thread
     static final char C_Signal = 12;
     static final char C_Broadcast = 13;
     static final char C_GetTime = 14;
+    // compound commands, saving a round trip each:
+    static final char C_SignalUnlock = 15;// signal, then unlock
+    static final char C_BroadcastUnlock = 16;// broadcast, then unlock
+    static final char C_UnlockWait = 17;// wait without relocking
+    static final char C_LockDelay = 18;// lock, then delay
+    // conditional locking:
+    static final char C_MutexTryLock = 19;// C_OK or C_Busy
+    static final char C_MutexTimedLock = 20;// C_OK or C_TimedOut
 
     static final char C_Error = 64;
     static final char C_TimedOut = 65;
@@ -112,53 +152,44 @@ public class VirtualThread extends Thread
 
     static final char C_Quit = 127;
 
-    private boolean abort = false;
-    private DataInputStream is = null;
-    private DataOutputStream os = null;
+    private ClockConnection clock = null;
 
     /**
-     * Starts this thread.
+     * Opens the connection of this thread to the clock service.
      */
-    public void start()
+    private ClockConnection connect(String name)
+	throws IOException
     {
-	String myhost = null;
-	int myport = 0;
+	String myhost;
+	int myport;
 	synchronized (lock) {
-	    if (host != null) {
-		myhost = host;
-		myport = port;
+	    if (local != null) return local.attach(this);
+	    if (host == null) return null;
+	    myhost = host;
+	    myport = port;
+	    if (multiplexed) {
+		if (mux == null) mux = ClockMultiplexer.open(myhost, myport, 10);
+		return mux.attach(name);
 	    }
 	}
-	if (myhost != null) {
-	    int tries = 10;
-	    while (tries > 0) try {
-		tries--;
-		if (DBG) System.err.println("Connecting to clock #"+tries);
-		Socket socket = new Socket(myhost, myport);
-		socket.setTcpNoDelay(true);
-		is = new DataInputStream(socket.getInputStream());
-		os = new DataOutputStream(socket.getOutputStream());
-		String id = getName();
-		os.writeByte(id.length());
-		os.writeBytes(id);
-	    } catch (UnknownHostException e) {
-		System.err.println(e);
-		System.exit(1);
-	    } catch (ConnectException e) {
-		System.err.println(e);
-		try { Thread.sleep(2000); } // let's retry
-		catch(InterruptedException ex){}
-	    } catch (IOException e) {
-		System.err.println(e);
-		System.exit(1);
-	    } finally {
-		if (is != null) {
-		    if (DBG)
-			System.out.println("Connected to clock: "+getName());
-		    break;
-		}
-		if (tries <= 0) System.exit(1);
-	    }
+	return SocketClockConnection.open(myhost, myport, name, 10);
+    }
+
+    /**
+     * Starts this thread.
+     */
+    public void start()
+    {
+	try {
+	    clock = connect(getName());
+	    if (clock != null && DBG)
+		System.out.println("Connected to clock: "+getName());
+	} catch (UnknownHostException e) {
+	    System.err.println(e);
+	    System.exit(1);
+	} catch (IOException e) {
+	    System.err.println(e);
+	    System.exit(1);
 	}
 	super.start();
     }
@@ -173,10 +204,8 @@ public class VirtualThread extends Thread
      */
     protected void deactivate()
     {
-	if (os != null)  try {
-	    os.writeByte(C_Deactivate);
-	    os.flush();
-	    is.readInt();
+	if (clock != null)  try {
+	    clock.call(C_Deactivate);
 	} catch (IOException e) {
 	    System.err.println(e);
 	    System.exit(1);
@@ -190,10 +219,8 @@ public class VirtualThread extends Thread
      */
     protected void activate()
     {
-	if (os != null)  try {
-	    os.writeByte(C_Activate);
-	    os.flush();
-	    is.readInt();
+	if (clock != null)  try {
+	    clock.call(C_Activate);
 	} catch (IOException e) {
 	    System.err.println(e);
 	    System.exit(1);
@@ -202,9 +229,8 @@ public class VirtualThread extends Thread
 
     protected void quit()
     {
-	if (os != null)  try {
-	    os.writeByte(C_Quit);
-	    os.flush();
+	if (clock != null)  try {
+	    clock.send(C_Quit);
 	} catch (IOException e) {
 	    System.err.println(e);
 	    System.exit(1);
@@ -213,10 +239,8 @@ public class VirtualThread extends Thread
 
     protected int mutexInit()
     {
-	if (os != null)  try {
-	    os.writeByte(C_MutexInit);
-	    os.flush();
-	    return is.readInt();
+	if (clock != null)  try {
+	    return clock.call(C_MutexInit);
 	} catch (IOException e) {
 	    System.err.println(e);
 	    System.exit(1);
@@ -226,10 +250,8 @@ public class VirtualThread extends Thread
 
     protected void mutexDestroy(VirtualLock m)
     {
-	if (os != null)  try {
-	    os.writeByte(C_MutexDest);
-	    os.writeInt(m.id);
-	    os.flush();
+	if (clock != null)  try {
+	    clock.send(C_MutexDest, m.id);
 	} catch (IOException e) {
 	    System.err.println(e);
 	    System.exit(1);
@@ -238,13 +260,10 @@ public class VirtualThread extends Thread
 
     protected void mutexLock(VirtualLock m)
     {
-	if (os != null)  try {
-	    os.writeByte(C_MutexLock);
-	    os.writeInt(m.id);
-	    os.flush();
+	if (clock != null)  try {
 	    if (DBG)
 		System.err.println(getName()+" tries to lock "+m.getName());
-	    int res = is.readInt(); // block until result comes out
+	    int res = clock.call(C_MutexLock, m.id); // block until result
 	    if (DBG) System.err.println(getName()+" locked "+m.getName());
 	    if (res==0) return;
 	    else {
@@ -257,13 +276,71 @@ public class VirtualThread extends Thread
 	}
     }
 
+    /**
+     * Acquires the mutex only if it is free. Only a clock locking
+     * conditionally executes it, VirtualLock emulates it on the others.
+     * @return true if the mutex was acquired.
+     * @see VirtualThread#conditionalLocking
+     */
+    protected boolean mutexTryLock(VirtualLock m)
+    {
+	if (clock != null)  try {
+	    int res = clock.call(C_MutexTryLock, m.id);
+	    if (res==C_OK || res==C_Busy) {
+		if (DBG && res==C_OK)
+		    System.err.println(getName()+" locked "+m.getName());
+		return (res==C_OK);
+	    }
+	    System.err.println(getName()+" failed to lock mutex: "+res);
+	    System.exit(1);
+	} catch (IOException e) {
+	    System.err.println(e);
+	    System.exit(1);
+	}
+	return false;
+    }
+
+    /**
+     * Acquires the mutex unless the time delay elapses first. Only a clock
+     * locking conditionally executes it, VirtualLock emulates it on the
+     * others.
+     * @return true if the mutex was acquired, false for timeout.
+     * @see VirtualThread#conditionalLocking
+     */
+    protected boolean mutexLock(VirtualLock m, long time, TimeUnit unit)
+    {
+	if (clock != null)  try {
+	    int[] t = secMicros(time, unit);
+	    if (DBG) System.err.println(getName()+" tries to lock "
+					+m.getName()+" for "+time);
+	    int res = clock.call(C_MutexTimedLock, m.id, t[0], t[1]);
+	    if (res==C_OK || res==C_TimedOut) {
+		if (DBG && res==C_OK)
+		    System.err.println(getName()+" locked "+m.getName());
+		return (res==C_OK);
+	    }
+	    System.err.println(getName()+" failed to lock mutex: "+res);
+	    System.exit(1);
+	} catch (IOException e) {
+	    System.err.println(e);
+	    System.exit(1);
+	}
+	return false;
+    }
+
+    /**
+     * Checks whether the clock of this thread executes C_MutexTryLock and
+     * C_MutexTimedLock (only the LocalClock does), true without a clock.
+     */
+    boolean conditionalLocking()
+    {
+	return (clock == null || clock.conditionalLocking());
+    }
+
     protected void mutexUnlock(VirtualLock m)
     {
-	if (os != null)  try {
-	    os.writeByte(C_MutexUnlock);
-	    os.writeInt(m.id);
-	    os.flush();
-	    int res = is.readInt();
+	if (clock != null)  try {
+	    int res = clock.call(C_MutexUnlock, m.id);
 	    if (res!=0) {
 		System.err.println(getName()+" failed to unlock "+m.getName()
 				   +": "+res);
@@ -278,10 +355,8 @@ public class VirtualThread extends Thread
 
     protected int condInit()
     {
-	if (os != null)  try {
-	    os.writeByte(C_CondInit);
-	    os.flush();
-	    return is.readInt();
+	if (clock != null)  try {
+	    return clock.call(C_CondInit);
 	} catch (IOException e) {
 	    System.err.println(e);
 	    System.exit(1);
@@ -291,10 +366,8 @@ public class VirtualThread extends Thread
 
     protected void condDestroy(VirtualCondition c)
     {
-	if (os != null)  try {
-	    os.writeByte(C_CondDest);
-	    os.writeInt(c.id);
-	    os.flush();
+	if (clock != null)  try {
+	    clock.send(C_CondDest, c.id);
 	} catch (IOException e) {
 	    System.err.println(e);
 	    System.exit(1);
@@ -303,15 +376,11 @@ public class VirtualThread extends Thread
 
     protected void condWait(VirtualCondition c) throws InterruptedException
     {
-	if (os != null) {
+	if (clock != null) {
 	    try {
-		os.writeByte(C_Wait);
-		os.writeInt(c.id);
-		os.writeInt(c.lock.id);
-		os.flush();
 		if (DBG)
 		    System.err.println(getName()+" waiting for "+c.getName());
-		is.readInt();// block on reading the result
+		clock.call(C_Wait, c.id, c.lock.id);// block on the result
 		if (DBG)
 		    System.err.println(getName()+" received "+c.getName());
 	    } catch (IOException e) {
@@ -324,7 +393,7 @@ public class VirtualThread extends Thread
     protected boolean condDelay(VirtualCondition c, long time, TimeUnit unit)
 	throws InterruptedException
     {
-	if (os != null) {
+	if (clock != null) {
 	    int res, sec, micros;
 	    switch (unit) {
 	    case MICROSECONDS:
@@ -347,14 +416,9 @@ public class VirtualThread extends Thread
 		throw new UnsupportedOperationException("unknown timeunit");
 	    }
 	    try {
-		os.writeByte(C_Delay);
-		os.writeInt(c.id);
-		os.writeInt(c.lock.id);
-		os.writeInt(sec);
-		os.writeInt(micros);
-		os.flush();
 		if (DBG) System.err.println(getName()+" waiting for "+c.getName()+" for "+time);
-		res = is.readInt(); // block on reading the result
+		// block on reading the result:
+		res = clock.call(C_Delay, c.id, c.lock.id, sec, micros);
 		if (DBG) System.err.println(getName()+" received "+c.getName());
 		switch (res) {
 		case C_OK: return true;
@@ -372,16 +436,12 @@ public class VirtualThread extends Thread
     protected boolean condWait(VirtualCondition c, long millis)
 	throws InterruptedException
     {
-	if (os != null) {
+	if (clock != null) {
 	    int res;
 	    try {
-		os.writeByte(C_TimedWait);
-		os.writeInt(c.id);
-		os.writeInt(c.lock.id);
-		os.writeInt((int)(millis / 1000));
-		os.writeInt((int)(millis % 1000 * 1000));
-		os.flush();
-		res = is.readInt(); // block on reading the result
+		res = clock.call(C_TimedWait, c.id, c.lock.id,
+				 (int)(millis / 1000),
+				 (int)(millis % 1000 * 1000));
 		switch (res) {
 		case C_OK: return true;
 		case C_TimedOut: return false;
@@ -399,16 +459,12 @@ public class VirtualThread extends Thread
     protected boolean condDelay(VirtualCondition c, long millis)
 	throws InterruptedException
     {
-	if (os != null) {
+	if (clock != null) {
 	    int res;
 	    try {
-		os.writeByte(C_Delay);
-		os.writeInt(c.id);
-		os.writeInt(c.lock.id);
-		os.writeInt((int)(millis / 1000));
-		os.writeInt((int)(millis % 1000 * 1000));
-		os.flush();
-		res = is.readInt(); // block on reading the result
+		res = clock.call(C_Delay, c.id, c.lock.id,
+				 (int)(millis / 1000),
+				 (int)(millis % 1000 * 1000));
 		switch (res) {
 		case C_OK: return true;
 		case C_TimedOut: return false;
@@ -425,7 +481,7 @@ public class VirtualThread extends Thread
 
 
     protected void condSignal(VirtualCondition c) {
-	if (os != null) {
+	if (clock != null) {
 	    throw new UnsupportedOperationException("not implemented");
 	}
 	throw new UnsupportedOperationException("not connected");
@@ -433,11 +489,9 @@ public class VirtualThread extends Thread
 
     protected void condBroadcast(VirtualCondition c)
     {
-	if (os != null) {
+	if (clock != null) {
 	    try {
-		os.writeByte(C_Broadcast);
-		os.writeInt(c.id);
-		os.flush();
+		clock.send(C_Broadcast, c.id);
 	    } catch (IOException e) {
 		System.err.println(e);
 		System.exit(1);
@@ -446,15 +500,84 @@ public class VirtualThread extends Thread
 	    throw new UnsupportedOperationException("not connected");
     }
 
-    protected long getTime()
+    /**
+     * Converts the time delay into [int32 of seconds] [int32 of microseconds]
+     * clock arguments.
+     */
+    private static int[] secMicros(long time, TimeUnit unit)
     {
-	long millis = 0;
-	if (os != null) {
+	long micros = unit.toMicros(time);
+	return new int[] { (int)(micros / 1000000), (int)(micros % 1000000) };
+    }
+
+    protected void condSignalUnlock(VirtualCondition c, boolean all)
+    {
+	if (clock != null) {
+	    try {
+		int res = clock.call(all ? C_BroadcastUnlock : C_SignalUnlock,
+				     c.id, c.lock.id);
+		if (res!=0) {
+		    System.err.println(getName()+" failed to unlock "
+				       +c.lock.getName()+": "+res);
+		    System.exit(1);
+		}
+		if (DBG) System.err.println(getName()+" signalled "+c.getName()
+					    +" and unlocked "+c.lock.getName());
+	    } catch (IOException e) {
+		System.err.println(e);
+		System.exit(1);
+	    }
+	} else
+	    throw new UnsupportedOperationException("not connected");
+    }
+
+    /**
+     * Waits for the condition (for at most the time, if unit is not null)
+     * and returns without reacquiring the lock.
+     */
+    protected boolean condUnlockWait(VirtualCondition c, long time,
+				     TimeUnit unit)
+	throws InterruptedException
+    {
+	if (clock != null) {
+	    int[] t = (unit != null) ? secMicros(time, unit)
+		: new int[] { -1, 0 };
+	    try {
+		if (DBG) System.err.println(getName()+" unlocks and waits for "
+					    +c.getName());
+		int res = clock.call(C_UnlockWait, c.id, c.lock.id, t[0], t[1]);
+		switch (res) {
+		case C_OK: return true;
+		case C_TimedOut: return false;
+		default: throw new InterruptedException("Clock error: "+res);
+		}
+	    } catch (IOException e) {
+		System.err.println(e);
+		System.exit(1);
+	    }
+	}
+	throw new UnsupportedOperationException("not connected");
+    }
+
+    /**
+     * Acquires the lock and then waits for the condition for at most the
+     * time, returns with the lock held.
+     */
+    protected boolean condLockDelay(VirtualCondition c, long time,
+				    TimeUnit unit)
+	throws InterruptedException
+    {
+	if (clock != null) {
+	    int[] t = secMicros(time, unit);
 	    try {
-		os.writeByte(C_GetTime); os.flush();
-		millis = is.readInt() * 1000; // seconds
-		millis += is.readInt() / 1000; // micro seconds
-		return millis;
+		if (DBG) System.err.println(getName()+" locks and waits for "
+					    +c.getName()+" for "+time);
+		int res = clock.call(C_LockDelay, c.id, c.lock.id, t[0], t[1]);
+		switch (res) {
+		case C_OK: return true;
+		case C_TimedOut: return false;
+		default: throw new InterruptedException("Clock error: "+res);
+		}
 	    } catch (IOException e) {
 		System.err.println(e);
 		System.exit(1);
@@ -463,17 +586,61 @@ public class VirtualThread extends Thread
 	throw new UnsupportedOperationException("not connected");
     }
 
+    /**
+     * Returns the clock value of this thread's connection.
+     * @param exact true if the clock service must be asked, false if the
+     * value cached since the last blocking clock request can be used.
+     */
+    protected long getTime(boolean exact)
+    {
+	if (clock != null) {
+	    try {
+		return clock.getTime(exact);
+	    } catch (IOException e) {
+		System.err.println(e);
+		System.exit(1);
+	    }
+	}
+	throw new UnsupportedOperationException("not connected");
+    }
+
+    protected long getTime()
+    {
+	return getTime(false);
+    }
+
     /**
      * Returns a number of milliseconds since beginning of epoch or 
      * start of virtual clock.
+     * In virtual time the value is served without a clock request as long as
+     * it is known to be current: the calling thread is active and has not
+     * been blocked in the clock since the value was received.
      * @return current time in milliseconds.
+     * @see VirtualThread#getClockTimeMillis
      */
     public static long getTimeMillis()
     {
-	if (host == null) return System.currentTimeMillis();
-	else {
-	    VirtualThread orig = (VirtualThread)Thread.currentThread();
-	    return orig.getTime();
-	}
+	return getTimeMillis(false);
+    }
+
+    /**
+     * Returns a number of milliseconds since beginning of epoch or 
+     * start of virtual clock, always asking the clock service in virtual
+     * time.
+     * @return current time in milliseconds.
+     */
+    public static long getClockTimeMillis()
+    {
+	return getTimeMillis(true);
+    }
+
+    private static long getTimeMillis(boolean exact)
+    {
+	if (realtime()) return System.currentTimeMillis();
+	Thread current = Thread.currentThread();
+	if (local != null && !(current instanceof VirtualThread
+			       && ((VirtualThread)current).clock != null))
+	    return local.getTimeMicros() / 1000; // e.g. the main thread
+	return ((VirtualThread)current).getTime(exact);
     }
 }
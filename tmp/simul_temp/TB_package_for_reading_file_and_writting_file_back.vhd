@@ -23,7 +23,7 @@ package TB_Package is
                                   signal valid_out: out std_logic;
                                   signal port_in: out std_logic_vector);
 
-  procedure get_packet(DATA_WIDTH, initial_delay: in integer;
+  procedure get_packet(DATA_WIDTH, initial_delay, Node_ID: in integer;
 		       signal clk: in std_logic;
                        signal credit_out: out std_logic;
 		       signal valid_in: in std_logic;
@@ -166,7 +166,7 @@ begin
     wait;
   end gen_packet_from_file;
 
-  procedure get_packet(DATA_WIDTH, initial_delay: in integer; --initial_delaywaits for this no. of clock cycles before sending the packet!
+  procedure get_packet(DATA_WIDTH, initial_delay, Node_ID: in integer; --initial_delaywaits for this no. of clock cycles before sending the packet!
                        signal clk: in std_logic;
                        signal credit_out: out std_logic;
                        signal valid_in: in std_logic;
@@ -201,7 +201,7 @@ begin
                   counter := counter+1;
                  	tail_data_read := to_integer(unsigned(port_in(28 downto 1)));
     			        report "Packet received from" & integer'image(source_node) & " to " & integer'image(destination_node) & "with body:" & integer'image(body_data_read) & "with tail:" & integer'image(tail_data_read);
-                  write(LINEVARIABLE, "Packet received from " & integer'image(source_node) & " to " & integer'image(destination_node) & " with body: "& integer'image(body_data_read) &  " with tail: " & integer'image(tail_data_read));
+                  write(LINEVARIABLE, "Packet received from " & integer'image(source_node) & " to " & integer'image(destination_node) & " with body: "& integer'image(body_data_read) &  " with tail: " & integer'image(tail_data_read) & " at node: " & integer'image(Node_ID));
                   writeline(VEC_FILE, LINEVARIABLE);
                   counter := 0;
                   P_length:= 0;
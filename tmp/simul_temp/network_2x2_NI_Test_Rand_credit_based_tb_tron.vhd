@@ -109,10 +109,10 @@ gen_packet_from_file(2, 50, 0, 10000 ns, "testgen_3.txt",clk, credit_counter_out
 
 
 -- connecting the packet receivers
-get_packet(32, 5, clk, credit_in_L_0, valid_out_L_0, TX_L_0);
-get_packet(32, 5, clk, credit_in_L_1, valid_out_L_1, TX_L_1);
-get_packet(32, 5, clk, credit_in_L_2, valid_out_L_2, TX_L_2);
-get_packet(32, 5, clk, credit_in_L_3, valid_out_L_3, TX_L_3);
+get_packet(32, 5, 0, clk, credit_in_L_0, valid_out_L_0, TX_L_0);
+get_packet(32, 5, 1, clk, credit_in_L_1, valid_out_L_1, TX_L_1);
+get_packet(32, 5, 2, clk, credit_in_L_2, valid_out_L_2, TX_L_2);
+get_packet(32, 5, 3, clk, credit_in_L_3, valid_out_L_3, TX_L_3);
 
 
 end;